@@ -4,10 +4,14 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE_TAGS := optional
 
-LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+    $(call all-Iaidl-files-under, src)
+LOCAL_AIDL_INCLUDES := $(LOCAL_PATH)/src
 
 LOCAL_USE_AAPT2 := true
 
+LOCAL_STATIC_JAVA_LIBRARIES := BlissUpdaterCore
+
 LOCAL_STATIC_ANDROID_LIBRARIES := \
     bliss_updater_sdk \
     com.google.android.material_material \
@@ -32,6 +36,12 @@ LOCAL_REQUIRED_MODULES := privapp_whitelist_com.blissroms.updater.xml
 
 include $(BUILD_PACKAGE)
 
+include $(CLEAR_VARS)
+LOCAL_MODULE := BlissUpdaterCore
+LOCAL_SRC_FILES := $(call all-java-files-under, core/src/main/java)
+LOCAL_SDK_VERSION := current
+include $(BUILD_STATIC_JAVA_LIBRARY)
+
 include $(CLEAR_VARS)
 LOCAL_MODULE := privapp_whitelist_com.blissroms.updater.xml
 LOCAL_MODULE_CLASS := ETC
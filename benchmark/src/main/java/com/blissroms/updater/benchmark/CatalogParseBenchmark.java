@@ -0,0 +1,92 @@
+package com.blissroms.updater.benchmark;
+
+import com.blissroms.updater.core.Log;
+import com.blissroms.updater.misc.UpdateCatalog;
+import com.blissroms.updater.model.UpdateBase;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of update lists as sent by the server, from the file they are cached in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogParseBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    private File mFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Don't measure the logging of the filtered out updates
+        Log.setPrinter((priority, tag, msg, tr) -> {
+        });
+        mFile = File.createTempFile("catalog", ".json");
+        Files.write(mFile.toPath(), generate(entries).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Benchmark
+    public List<UpdateBase> parse() throws IOException, JSONException {
+        return UpdateCatalog.parse(mFile, UpdateBase::new, null);
+    }
+
+    @Benchmark
+    public List<UpdateBase> parseFiltered() throws IOException, JSONException {
+        // Roughly what the app does to drop the builds older than the installed one
+        return UpdateCatalog.parse(mFile, UpdateBase::new,
+                update -> update.getTimestamp() % 2 == 0);
+    }
+
+    static String generate(int entries) {
+        StringBuilder json = new StringBuilder(entries * 320);
+        json.append("{\"response\":[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"datetime\":").append(1600000000L + i)
+                    .append(",\"filename\":\"Bliss-v16.").append(i)
+                    .append("-device-OFFICIAL-gapps.zip\"")
+                    .append(",\"id\":\"").append(String.format("%064x", i)).append('"')
+                    .append(",\"size\":").append(2000000000L + i)
+                    .append(",\"url\":\"https://downloads.example.org/device/Bliss-v16.")
+                    .append(i).append(".zip\"")
+                    .append(",\"version\":\"16.").append(i % 10).append('"')
+                    .append(",\"sha256\":\"").append(String.format("%064x", i * 31L))
+                    .append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+}
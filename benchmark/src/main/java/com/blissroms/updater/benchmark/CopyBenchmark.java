@@ -0,0 +1,74 @@
+package com.blissroms.updater.benchmark;
+
+import com.blissroms.updater.misc.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy of a package with progress reporting, as done when installing on devices that
+ * need uncrypt. Divide the size by the time to get the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"64", "512"})
+    public int sizeMiB;
+
+    private File mSource;
+    private File mDestination;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mSource = File.createTempFile("source", ".zip");
+        mDestination = new File(mSource.getAbsolutePath() + ".copy");
+        byte[] chunk = new byte[1024 * 1024];
+        try (RandomAccessFile file = new RandomAccessFile(mSource, "rw")) {
+            // Actually write the data, a sparse file would make reads free
+            for (int i = 0; i < sizeMiB; i++) {
+                chunk[0] = (byte) i;
+                file.write(chunk);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mSource.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mDestination.delete();
+    }
+
+    @Benchmark
+    public void copy() throws IOException {
+        FileUtils.copyFile(mSource, mDestination, null);
+    }
+
+    @Benchmark
+    public void copyWithProgress(Blackhole blackhole) throws IOException {
+        FileUtils.copyFile(mSource, mDestination, blackhole::consume);
+    }
+}
@@ -0,0 +1,91 @@
+package com.blissroms.updater.benchmark;
+
+import com.blissroms.updater.download.DownloadClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download of a package served from the loopback interface, which measures the cost of
+ * the download loop itself. Divide the size by the time to get the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"64", "512"})
+    public int sizeMiB;
+
+    private FaultInjectingServer mServer;
+    private File mDestination;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new FaultInjectingServer(sizeMiB * 1024L * 1024L);
+        mDestination = File.createTempFile("download", ".zip");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.close();
+        //noinspection ResultOfMethodCallIgnored
+        mDestination.delete();
+    }
+
+    @Benchmark
+    public long download() throws IOException, InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean success = new AtomicBoolean();
+        final AtomicLong progressUpdates = new AtomicLong();
+        DownloadClient client = new DownloadClient.Builder()
+                .setUrl(mServer.getUrl())
+                .setDestination(mDestination)
+                .setProgressListener((bytesRead, contentLength, speed, eta) ->
+                        progressUpdates.incrementAndGet())
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(DownloadClient.Headers headers) {
+                    }
+
+                    @Override
+                    public void onSuccess() {
+                        success.set(true);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                        done.countDown();
+                    }
+                })
+                .build();
+        client.start();
+        done.await();
+        if (!success.get()) {
+            throw new IOException("Download failed");
+        }
+        return progressUpdates.get();
+    }
+}
@@ -0,0 +1,108 @@
+package com.blissroms.updater.benchmark;
+
+import com.blissroms.updater.core.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to complete downloads through the faults that slow them down in the field:
+ * mirrors to skip, connections reset midway, a stalled response. Whether the result is
+ * right is checked by DownloadFaultTest, not here.
+ *
+ * Packages of several GB can be used, e.g. -p sizeMiB=4096, they aren't stored on the
+ * server side. Bandwidth and latency apply to every response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class DownloadFaultBenchmark {
+
+    private static final int MAX_ATTEMPTS = 10;
+
+    @Param({"clean", "redirect", "resets", "trickle"})
+    public String scenario;
+
+    @Param({"64"})
+    public int sizeMiB;
+
+    // 0 for no limit
+    @Param({"0"})
+    public int bandwidthMiBps;
+
+    @Param({"0"})
+    public int latencyMillis;
+
+    private FaultInjectingServer mServer;
+    private File mDestination;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Log.setPrinter((priority, tag, msg, tr) -> {
+        });
+        mServer = new FaultInjectingServer(sizeMiB * 1024L * 1024L);
+        mServer.setBandwidth(bandwidthMiBps * 1024L * 1024L);
+        mServer.setLatency(latencyMillis);
+        mDestination = File.createTempFile("download", ".zip");
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() {
+        mServer.reset();
+        //noinspection ResultOfMethodCallIgnored
+        mDestination.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.close();
+        //noinspection ResultOfMethodCallIgnored
+        mDestination.delete();
+    }
+
+    @Benchmark
+    public int download() throws IOException, InterruptedException {
+        final long size = mServer.getSize();
+        final Downloader downloader = new Downloader(mServer.getUrl(), mDestination);
+        switch (scenario) {
+            case "clean":
+                downloader.runToCompletion(1);
+                break;
+            case "redirect":
+                mServer.enqueue(FaultInjectingServer.Fault.redirect(3));
+                downloader.runToCompletion(1);
+                break;
+            case "resets":
+                for (int i = 1; i <= 4; i++) {
+                    mServer.enqueue(FaultInjectingServer.Fault.resetAfter(size / 5));
+                }
+                downloader.runToCompletion(MAX_ATTEMPTS);
+                break;
+            case "trickle":
+                mServer.enqueue(FaultInjectingServer.Fault.trickle(16 * 1024, 2000));
+                downloader.runToCompletion(1);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+        return downloader.getAttempts();
+    }
+}
@@ -0,0 +1,92 @@
+package com.blissroms.updater.benchmark;
+
+import com.blissroms.updater.download.DownloadClient;
+import com.blissroms.updater.download.DownloadMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drives DownloadClient the way UpdaterController does: duplicate links are followed,
+ * the ETag of the first response is kept and sent back with If-Range when resuming.
+ */
+class Downloader {
+
+    private final String mUrl;
+    private final File mDestination;
+    private final DownloadMetrics mMetrics = new DownloadMetrics();
+
+    private String mETag;
+    private int mAttempts;
+    private boolean mFirstAttempt = true;
+
+    Downloader(String url, File destination) {
+        mUrl = url;
+        mDestination = destination;
+    }
+
+    int getAttempts() {
+        return mAttempts;
+    }
+
+    DownloadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Start the download, or resume it if it was already started.
+     *
+     * @return whether the download completed
+     */
+    boolean run() throws IOException, InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] success = new boolean[1];
+        DownloadClient.Builder builder = new DownloadClient.Builder()
+                .setUrl(mUrl)
+                .setDestination(mDestination)
+                .setUseDuplicateLinks(true)
+                .setMetrics(mMetrics)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(DownloadClient.Headers headers) {
+                        mETag = headers.get("ETag");
+                    }
+
+                    @Override
+                    public void onSuccess() {
+                        success[0] = true;
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                        done.countDown();
+                    }
+                });
+        if (!mFirstAttempt) {
+            builder.setIfRange(mETag);
+        }
+        DownloadClient client = builder.build();
+        if (mFirstAttempt) {
+            client.start();
+        } else {
+            client.resume();
+        }
+        mFirstAttempt = false;
+        mAttempts++;
+        done.await();
+        return success[0];
+    }
+
+    /**
+     * Resume the download until it completes, failing after the given number of attempts.
+     */
+    void runToCompletion(int maxAttempts) throws IOException, InterruptedException {
+        while (!run()) {
+            if (mAttempts >= maxAttempts) {
+                throw new IOException("Download failed after " + mAttempts + " attempts");
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.blissroms.updater.benchmark;
+
+import com.blissroms.updater.misc.EventRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording an event while other threads record theirs. Run with -prof gc to
+ * check that nothing is allocated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class EventRingBenchmark {
+
+    private static final String SUBJECT = "download";
+
+    private final EventRing mEvents = new EventRing(256, new String[] { "event" });
+
+    @Benchmark
+    public void record() {
+        mEvents.record(0, SUBJECT, 1, 2);
+    }
+}
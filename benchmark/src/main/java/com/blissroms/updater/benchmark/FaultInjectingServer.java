@@ -0,0 +1,371 @@
+package com.blissroms.updater.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP server on the loopback interface serving a generated OTA package, with scripted
+ * faults, bandwidth shaping and latency injection.
+ *
+ * The package is sparse: it's all zeros except for a stamp at the start of every MiB
+ * holding the content version and the offset, so that packages of several GB can be
+ * served and verified without being stored anywhere. Range and If-Range requests are
+ * supported and the ETag changes with the version.
+ *
+ * Faults are queued and each one applies to the next request for the package, the
+ * requests without a fault are served normally.
+ */
+class FaultInjectingServer implements AutoCloseable {
+
+    static final String PATH = "/update.zip";
+    private static final String MIRROR_PATH = "/mirror" + PATH;
+    private static final String BROKEN_MIRROR_PATH = "/broken" + PATH;
+
+    private static final int STAMP_INTERVAL = 1024 * 1024;
+    private static final int STAMP_SIZE = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    static final class Fault {
+        private enum Kind {
+            IGNORE_RANGE,
+            REDIRECT,
+            RESET,
+            TRICKLE,
+            CHANGE_CONTENT,
+        }
+
+        private final Kind mKind;
+        private final long mValue;
+        private final long mDurationMillis;
+
+        private Fault(Kind kind, long value, long durationMillis) {
+            mKind = kind;
+            mValue = value;
+            mDurationMillis = durationMillis;
+        }
+
+        /**
+         * Reply with the whole package, whatever range was asked for.
+         */
+        static Fault ignoreRange() {
+            return new Fault(Kind.IGNORE_RANGE, 0, 0);
+        }
+
+        /**
+         * Redirect to a mirror that doesn't work, advertising the given number of
+         * broken duplicates before a working one with Link headers (RFC 6249).
+         */
+        static Fault redirect(int brokenDuplicates) {
+            return new Fault(Kind.REDIRECT, brokenDuplicates, 0);
+        }
+
+        /**
+         * Drop the connection once the given number of bytes of the body were sent.
+         */
+        static Fault resetAfter(long bytes) {
+            return new Fault(Kind.RESET, bytes, 0);
+        }
+
+        /**
+         * Send the body at the given rate for the given time, then at full speed.
+         */
+        static Fault trickle(long bytesPerSecond, long durationMillis) {
+            return new Fault(Kind.TRICKLE, bytesPerSecond, durationMillis);
+        }
+
+        /**
+         * Change the content of the package, and so its ETag, before replying.
+         */
+        static Fault changeContent() {
+            return new Fault(Kind.CHANGE_CONTENT, 0, 0);
+        }
+    }
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final long mSize;
+
+    private final Queue<Fault> mFaults = new ArrayDeque<>();
+    private volatile int mVersion = 1;
+    private volatile long mBytesPerSecond;
+    private volatile long mLatencyMillis;
+    private volatile boolean mSendETag = true;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    FaultInjectingServer(long size) throws IOException {
+        mSize = size;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", exchange -> {
+            try {
+                handle(exchange);
+            } catch (IOException e) {
+                // The client went away or the connection was dropped on purpose
+            } finally {
+                exchange.close();
+            }
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    String getUrl() {
+        return getUrl(PATH);
+    }
+
+    private String getUrl(String path) {
+        return "http://" + mServer.getAddress().getHostString() + ":" +
+                mServer.getAddress().getPort() + path;
+    }
+
+    long getSize() {
+        return mSize;
+    }
+
+    synchronized void enqueue(Fault fault) {
+        mFaults.add(fault);
+    }
+
+    /**
+     * Limit the speed of every response, 0 for no limit.
+     */
+    void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Wait for the given time before sending the headers of every response.
+     */
+    void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * Whether to send an ETag, without it the client can't resume safely.
+     */
+    void setSendETag(boolean sendETag) {
+        mSendETag = sendETag;
+    }
+
+    /**
+     * Forget the pending faults and go back to the first version of the content.
+     */
+    synchronized void reset() {
+        mFaults.clear();
+        mVersion = 1;
+        mRequestCount.set(0);
+        mBytesSent.set(0);
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    private synchronized Fault nextFault() {
+        return mFaults.poll();
+    }
+
+    private String getETag() {
+        return "\"v" + mVersion + "\"";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        mRequestCount.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        sleep(mLatencyMillis);
+        if (path.equals(BROKEN_MIRROR_PATH)) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        } else if (!path.equals(PATH) && !path.equals(MIRROR_PATH)) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        Fault fault = nextFault();
+        Fault.Kind kind = fault != null ? fault.mKind : null;
+        if (kind == Fault.Kind.REDIRECT) {
+            exchange.getResponseHeaders().add("Location", getUrl(BROKEN_MIRROR_PATH));
+            for (int i = 0; i < fault.mValue; i++) {
+                exchange.getResponseHeaders().add("Link", "<" + getUrl(BROKEN_MIRROR_PATH) +
+                        "?" + i + ">; rel=duplicate; pri=" + (i + 1));
+            }
+            exchange.getResponseHeaders().add("Link", "<" + getUrl(MIRROR_PATH) +
+                    ">; rel=duplicate; pri=" + (fault.mValue + 1));
+            exchange.sendResponseHeaders(302, -1);
+            return;
+        } else if (kind == Fault.Kind.CHANGE_CONTENT) {
+            mVersion++;
+        }
+
+        long start = 0;
+        long end = mSize - 1;
+        boolean partial = false;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (range != null && kind != Fault.Kind.IGNORE_RANGE &&
+                (ifRange == null || ifRange.equals(getETag()))) {
+            Matcher matcher = RANGE_PATTERN.matcher(range);
+            if (matcher.matches()) {
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Long.parseLong(matcher.group(2)));
+                }
+                if (start > end) {
+                    exchange.getResponseHeaders().add("Content-Range", "bytes */" + mSize);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                partial = true;
+            }
+        }
+
+        exchange.getResponseHeaders().add("Content-Type", "application/zip");
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        if (mSendETag) {
+            exchange.getResponseHeaders().add("ETag", getETag());
+        }
+        if (partial) {
+            exchange.getResponseHeaders().add("Content-Range",
+                    "bytes " + start + "-" + end + "/" + mSize);
+        }
+        long length = end - start + 1;
+        exchange.sendResponseHeaders(partial ? 206 : 200, length);
+
+        long resetAfter = kind == Fault.Kind.RESET ? fault.mValue : Long.MAX_VALUE;
+        long trickleRate = kind == Fault.Kind.TRICKLE ? fault.mValue : 0;
+        long trickleEnd = kind == Fault.Kind.TRICKLE ?
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fault.mDurationMillis) : 0;
+        writeBody(exchange.getResponseBody(), start, length, resetAfter, trickleRate,
+                trickleEnd);
+    }
+
+    private void writeBody(OutputStream os, long start, long length, long resetAfter,
+            long trickleRate, long trickleEnd) throws IOException {
+        final int version = mVersion;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        boolean trickling = trickleRate > 0;
+        long phaseStartMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        long phaseSent = 0;
+        long sent = 0;
+        while (sent < length) {
+            if (sent >= resetAfter) {
+                // Closing a fixed length response before its end drops the connection
+                os.flush();
+                throw new IOException("Connection reset on purpose");
+            }
+            if (trickling && System.nanoTime() >= trickleEnd) {
+                trickling = false;
+                phaseStartMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+                phaseSent = 0;
+            }
+            long rate = trickling ? trickleRate : mBytesPerSecond;
+            int count = (int) Math.min(buffer.length, Math.min(length, resetAfter) - sent);
+            if (rate > 0) {
+                // Small writes keep the rate smooth
+                count = (int) Math.max(1, Math.min(count, rate / 20));
+            }
+            fill(buffer, start + sent, count, version);
+            os.write(buffer, 0, count);
+            sent += count;
+            phaseSent += count;
+            mBytesSent.addAndGet(count);
+
+            if (rate > 0) {
+                os.flush();
+                long elapsedMillis =
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) - phaseStartMillis;
+                sleep(phaseSent * 1000 / rate - elapsedMillis);
+            }
+        }
+    }
+
+    /**
+     * Write the content of the given version of the package at the given position.
+     */
+    static void fill(byte[] buffer, long position, int length, int version) {
+        Arrays.fill(buffer, 0, length, (byte) 0);
+        long stamp = position - position % STAMP_INTERVAL;
+        for (; stamp < position + length; stamp += STAMP_INTERVAL) {
+            for (int i = 0; i < STAMP_SIZE; i++) {
+                long at = stamp + i;
+                if (at >= position && at < position + length) {
+                    long value = i < 8 ? version : stamp;
+                    buffer[(int) (at - position)] = (byte) (value >>> ((i % 8) * 8));
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that the file is the whole package, as served right now.
+     */
+    void verify(File file) throws IOException {
+        if (file.length() != mSize) {
+            throw new IOException("Expected " + mSize + " bytes, got " + file.length());
+        }
+        final byte[] expected = new byte[STAMP_INTERVAL];
+        final byte[] actual = new byte[STAMP_INTERVAL];
+        try (InputStream is = new FileInputStream(file)) {
+            for (long position = 0; position < mSize; ) {
+                int count = (int) Math.min(actual.length, mSize - position);
+                for (int read = 0; read < count; ) {
+                    int n = is.read(actual, read, count - read);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                    read += n;
+                }
+                fill(expected, position, count, mVersion);
+                for (int i = 0; i < count; i++) {
+                    if (expected[i] != actual[i]) {
+                        throw new IOException("Content mismatch at " + (position + i));
+                    }
+                }
+                position += count;
+            }
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,60 @@
+package com.blissroms.updater.benchmark;
+
+import com.blissroms.updater.misc.ProgressTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing progress while a client polls it, as the updater and a client do through
+ * the shared memory. Reads fail if they never get a consistent record.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgressTableBenchmark {
+
+    private static final String DOWNLOAD_ID = "0123456789abcdef0123456789abcdef";
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(ProgressTable.sizeFor(32));
+    private final ProgressTable mWriter = ProgressTable.create(mBuffer, 32);
+    private final ProgressTable mReader = ProgressTable.open(mBuffer.duplicate());
+    private final ProgressTable.Record mRecord = new ProgressTable.Record();
+    private long mBytes;
+
+    @Benchmark
+    @Group("poll")
+    @GroupThreads(1)
+    public void publish() {
+        mBytes++;
+        mWriter.publish(DOWNLOAD_ID, mBytes, mBytes * 2, mBytes, mBytes, 0);
+    }
+
+    @Benchmark
+    @Group("poll")
+    @GroupThreads(1)
+    public long read() {
+        if (!mReader.read(0, mRecord)) {
+            throw new IllegalStateException("No consistent record");
+        }
+        if (mRecord.getTotalBytes() != mRecord.getDownloadedBytes() * 2) {
+            throw new IllegalStateException("Torn record");
+        }
+        return mRecord.getDownloadedBytes();
+    }
+}
@@ -0,0 +1,160 @@
+package com.blissroms.updater.benchmark;
+
+import com.blissroms.updater.core.Log;
+import com.blissroms.updater.download.DownloadClient;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Progress callbacks per GiB downloaded, before and after they were throttled.
+ *
+ * "perRead" is the loop the download client used to have, reporting after every read
+ * of up to 8 KiB. "throttled" is the download client as it is now, reporting at most
+ * every 100 ms. The callbacksPerGiB counter is the figure to compare, the time shows
+ * what the callbacks cost. Set bandwidthMiBps to get the count for a given link: with
+ * no limit the loopback transfer is over too fast for the time based throttle to show.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ProgressThrottleBenchmark {
+
+    private static final double GIB = 1024 * 1024 * 1024;
+
+    @Param({"perRead", "throttled"})
+    public String listener;
+
+    @Param({"64"})
+    public int sizeMiB;
+
+    // 0 for no limit
+    @Param({"0", "20"})
+    public int bandwidthMiBps;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public double callbacksPerGiB;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            callbacksPerGiB = 0;
+        }
+    }
+
+    private FaultInjectingServer mServer;
+    private File mDestination;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Log.setPrinter((priority, tag, msg, tr) -> {
+        });
+        mServer = new FaultInjectingServer(sizeMiB * 1024L * 1024L);
+        mServer.setBandwidth(bandwidthMiBps * 1024L * 1024L);
+        mDestination = File.createTempFile("download", ".zip");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.close();
+        //noinspection ResultOfMethodCallIgnored
+        mDestination.delete();
+    }
+
+    @Benchmark
+    public long download(Counters counters) throws IOException, InterruptedException {
+        final long callbacks;
+        switch (listener) {
+            case "perRead":
+                callbacks = downloadPerRead();
+                break;
+            case "throttled":
+                callbacks = downloadThrottled();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown listener " + listener);
+        }
+        counters.callbacksPerGiB = callbacks * GIB / mServer.getSize();
+        return callbacks;
+    }
+
+    private long downloadPerRead() throws IOException {
+        final HttpURLConnection connection =
+                (HttpURLConnection) new URL(mServer.getUrl()).openConnection();
+        long callbacks = 0;
+        try (InputStream is = connection.getInputStream();
+             OutputStream os = new FileOutputStream(mDestination)) {
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) > 0) {
+                os.write(buffer, 0, count);
+                callbacks++;
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return callbacks;
+    }
+
+    private long downloadThrottled() throws IOException, InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean success = new AtomicBoolean();
+        final long[] callbacks = new long[1];
+        DownloadClient client = new DownloadClient.Builder()
+                .setUrl(mServer.getUrl())
+                .setDestination(mDestination)
+                // Called on the download thread only
+                .setProgressListener((bytesRead, contentLength, speed, eta) ->
+                        callbacks[0]++)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(DownloadClient.Headers headers) {
+                    }
+
+                    @Override
+                    public void onSuccess() {
+                        success.set(true);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(boolean cancelled) {
+                        done.countDown();
+                    }
+                })
+                .build();
+        client.start();
+        done.await();
+        if (!success.get()) {
+            throw new IOException("Download failed");
+        }
+        return callbacks[0];
+    }
+}
@@ -0,0 +1,98 @@
+package com.blissroms.updater.benchmark;
+
+import com.blissroms.updater.misc.ZipReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Locating the payload of an A/B package, what is done before every install.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipIndexBenchmark {
+
+    private static final String PAYLOAD = "payload.bin";
+    private static final String PROPERTIES = "payload_properties.txt";
+
+    // Number of entries besides the payload, OTA packages have a handful of them
+    @Param({"8", "1000"})
+    public int extraEntries;
+
+    private File mFile;
+    private FileChannel mChannel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("package", ".zip");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mFile))) {
+            for (int i = 0; i < extraEntries; i++) {
+                zos.putNextEntry(new ZipEntry("META-INF/com/android/entry" + i));
+                zos.write(("entry " + i + "\n").getBytes(StandardCharsets.UTF_8));
+                zos.closeEntry();
+            }
+            writeStored(zos, PROPERTIES, "FILE_HASH=abc\nFILE_SIZE=1048576\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            writeStored(zos, PAYLOAD, new byte[1024 * 1024]);
+        }
+        mChannel = new FileInputStream(mFile).getChannel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mChannel.close();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long payloadOffset() throws IOException {
+        ZipReader zipReader = new ZipReader(mChannel);
+        return zipReader.getDataOffset(zipReader.getEntry(PAYLOAD));
+    }
+
+    @Benchmark
+    public String payloadProperties() throws IOException {
+        return new ZipReader(mChannel).readEntryAsString(PROPERTIES);
+    }
+
+    private static void writeStored(ZipOutputStream zos, String name, byte[] data)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        zos.putNextEntry(entry);
+        zos.write(data);
+        zos.closeEntry();
+    }
+}
@@ -0,0 +1,109 @@
+package com.blissroms.updater.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.blissroms.updater.core.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Downloads going through the edge cases seen in the field. Every scenario checks that
+ * the downloaded package is the one the server has in the end.
+ */
+public class DownloadFaultTest {
+
+    private static final long SIZE = 8 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 10;
+
+    private FaultInjectingServer mServer;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        Log.setPrinter((priority, tag, msg, tr) -> {
+        });
+        mServer = new FaultInjectingServer(SIZE);
+        mDestination = File.createTempFile("download", ".zip");
+        //noinspection ResultOfMethodCallIgnored
+        mDestination.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+        //noinspection ResultOfMethodCallIgnored
+        mDestination.delete();
+    }
+
+    private Downloader newDownloader() {
+        return new Downloader(mServer.getUrl(), mDestination);
+    }
+
+    @Test
+    public void clean() throws Exception {
+        Downloader downloader = newDownloader();
+        downloader.runToCompletion(1);
+        mServer.verify(mDestination);
+        assertEquals(1, downloader.getAttempts());
+    }
+
+    @Test
+    public void ignoredRangeStartsOver() throws Exception {
+        // The client must notice it got the whole package and start over
+        mServer.enqueue(FaultInjectingServer.Fault.resetAfter(SIZE / 2));
+        mServer.enqueue(FaultInjectingServer.Fault.ignoreRange());
+        newDownloader().runToCompletion(2);
+        mServer.verify(mDestination);
+    }
+
+    @Test
+    public void noResumeWithoutETag() throws Exception {
+        mServer.setSendETag(false);
+        mServer.enqueue(FaultInjectingServer.Fault.resetAfter(SIZE / 2));
+        mServer.enqueue(FaultInjectingServer.Fault.ignoreRange());
+        Downloader downloader = newDownloader();
+        assertFalse(downloader.run());
+        assertFalse("Resumed without a validator", downloader.run());
+        newDownloader().runToCompletion(1);
+        mServer.verify(mDestination);
+    }
+
+    @Test
+    public void brokenMirrorsAreSkipped() throws Exception {
+        mServer.enqueue(FaultInjectingServer.Fault.redirect(3));
+        newDownloader().runToCompletion(1);
+        mServer.verify(mDestination);
+    }
+
+    @Test
+    public void resumesAfterResets() throws Exception {
+        for (int i = 1; i <= 4; i++) {
+            mServer.enqueue(FaultInjectingServer.Fault.resetAfter(SIZE / 5));
+        }
+        Downloader downloader = newDownloader();
+        downloader.runToCompletion(MAX_ATTEMPTS);
+        mServer.verify(mDestination);
+        assertEquals(5, downloader.getAttempts());
+    }
+
+    @Test
+    public void changedContentStartsOver() throws Exception {
+        mServer.enqueue(FaultInjectingServer.Fault.resetAfter(SIZE / 2));
+        mServer.enqueue(FaultInjectingServer.Fault.changeContent());
+        newDownloader().runToCompletion(2);
+        mServer.verify(mDestination);
+    }
+
+    @Test
+    public void trickle() throws Exception {
+        mServer.enqueue(FaultInjectingServer.Fault.trickle(16 * 1024, 2000));
+        newDownloader().runToCompletion(1);
+        mServer.verify(mDestination);
+    }
+}
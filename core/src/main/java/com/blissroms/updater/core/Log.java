@@ -0,0 +1,70 @@
+package com.blissroms.updater.core;
+
+/**
+ * Logging for the code shared with the JVM tools, which can't use android.util.Log.
+ *
+ * Messages go to stderr unless a printer is set; the app sets one forwarding them to
+ * logcat. The priorities have the same values as the ones of android.util.Log.
+ */
+public final class Log {
+
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    public interface Printer {
+        void println(int priority, String tag, String msg, Throwable tr);
+    }
+
+    private static final String[] PRIORITY_NAMES = {
+            "V", "V", "V", "D", "I", "W", "E", "A"
+    };
+
+    private static volatile Printer sPrinter = (priority, tag, msg, tr) -> {
+        System.err.println(PRIORITY_NAMES[priority] + "/" + tag + ": " + msg);
+        if (tr != null) {
+            tr.printStackTrace();
+        }
+    };
+
+    private Log() {
+    }
+
+    public static void setPrinter(Printer printer) {
+        sPrinter = printer;
+    }
+
+    public static void d(String tag, String msg) {
+        sPrinter.println(DEBUG, tag, msg, null);
+    }
+
+    public static void d(String tag, String msg, Throwable tr) {
+        sPrinter.println(DEBUG, tag, msg, tr);
+    }
+
+    public static void i(String tag, String msg) {
+        sPrinter.println(INFO, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg) {
+        sPrinter.println(WARN, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        sPrinter.println(WARN, tag, msg, tr);
+    }
+
+    public static void e(String tag, String msg) {
+        sPrinter.println(ERROR, tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        sPrinter.println(ERROR, tag, msg, tr);
+    }
+
+    public static void wtf(String tag, String msg) {
+        sPrinter.println(ASSERT, tag, msg, null);
+    }
+}
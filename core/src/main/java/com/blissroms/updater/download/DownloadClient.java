@@ -60,6 +60,8 @@ public interface DownloadClient {
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private String mIfRange;
+        private DownloadMetrics mMetrics;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -70,7 +72,7 @@ public interface DownloadClient {
                 throw new IllegalStateException("No download callback defined");
             }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+                    mUseDuplicateLinks, mIfRange, mMetrics);
         }
 
         public Builder setUrl(String url) {
@@ -97,5 +99,23 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * ETag of the partially downloaded file. When resuming, the server will send
+         * the whole file again if it no longer matches.
+         */
+        public Builder setIfRange(String eTag) {
+            mIfRange = eTag;
+            return this;
+        }
+
+        /**
+         * Where to record how the download goes. Reuse the same one when resuming to
+         * keep track of all the attempts.
+         */
+        public Builder setMetrics(DownloadMetrics metrics) {
+            mMetrics = metrics;
+            return this;
+        }
     }
 }
@@ -0,0 +1,382 @@
+package com.blissroms.updater.download;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how the download of an update went, across all its attempts.
+ *
+ * The throughput is sampled over fixed intervals. The samples go to a ring buffer
+ * holding the most recent ones and to a histogram covering the whole download, both
+ * made of primitive arrays allocated once, so recording a read never allocates.
+ */
+public class DownloadMetrics {
+
+    public static final long SAMPLE_INTERVAL_MS = 1000;
+    // Reads further apart than this count as a stall
+    public static final long STALL_THRESHOLD_MS = 2000;
+
+    private static final int MAX_SAMPLES = 900;
+    // Bucket i counts the intervals with a throughput in [2^(i-1), 2^i) KiB/s,
+    // bucket 0 the intervals without any byte
+    public static final int HISTOGRAM_BUCKETS = 22;
+
+    private final long[] mSampleTimes = new long[MAX_SAMPLES];
+    private final int[] mSampleSpeeds = new int[MAX_SAMPLES];
+    private int mSampleCount;
+    private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+
+    private long mStartTime;
+    private int mAttempts;
+    private long mAttemptStartMillis;
+    private boolean mFirstByteSeen;
+    private long mFirstTtfbMillis = -1;
+    private long mLastTtfbMillis = -1;
+    private String mMirror;
+    private long mBytes;
+    private long mWastedBytes;
+    private int mStalls;
+    private long mStallMillis;
+    private long mActiveMillis;
+    private long mLastReadMillis;
+    private long mIntervalStartMillis;
+    private long mIntervalBytes;
+    private long mVerifyMillis = -1;
+    private long mInstallMillis = -1;
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    public synchronized void onAttemptStarted() {
+        if (mAttempts == 0) {
+            mStartTime = System.currentTimeMillis();
+        }
+        mAttempts++;
+        mAttemptStartMillis = now();
+        mFirstByteSeen = false;
+    }
+
+    /**
+     * @param mirror the host the content is actually downloaded from
+     */
+    public synchronized void onResponse(String mirror) {
+        mMirror = mirror;
+    }
+
+    /**
+     * The server sent the whole file instead of what was missing, the bytes downloaded
+     * so far are thrown away.
+     */
+    public synchronized void onRestart(long wastedBytes) {
+        mWastedBytes += wastedBytes;
+    }
+
+    public synchronized void onBytes(int count) {
+        final long now = now();
+        if (!mFirstByteSeen) {
+            mFirstByteSeen = true;
+            mLastTtfbMillis = now - mAttemptStartMillis;
+            if (mFirstTtfbMillis < 0) {
+                mFirstTtfbMillis = mLastTtfbMillis;
+            }
+            mLastReadMillis = now;
+            mIntervalStartMillis = now;
+        }
+        final long gap = now - mLastReadMillis;
+        if (gap >= STALL_THRESHOLD_MS) {
+            mStalls++;
+            mStallMillis += gap;
+        }
+        mActiveMillis += gap;
+        mLastReadMillis = now;
+        mBytes += count;
+        mIntervalBytes += count;
+        // Close the intervals that ended, the ones without reads have no bytes
+        while (now - mIntervalStartMillis >= SAMPLE_INTERVAL_MS) {
+            addSample(mIntervalStartMillis, mIntervalBytes);
+            mIntervalStartMillis += SAMPLE_INTERVAL_MS;
+            mIntervalBytes = 0;
+        }
+    }
+
+    public synchronized void onAttemptEnded() {
+        if (mFirstByteSeen && mIntervalBytes > 0) {
+            // Extrapolate the last partial interval
+            long elapsed = Math.max(1, mLastReadMillis - mIntervalStartMillis);
+            addSample(mIntervalStartMillis, mIntervalBytes * SAMPLE_INTERVAL_MS / elapsed);
+            mIntervalBytes = 0;
+        }
+        mFirstByteSeen = false;
+    }
+
+    public synchronized void setVerifyMillis(long millis) {
+        mVerifyMillis = millis;
+    }
+
+    public synchronized void setInstallMillis(long millis) {
+        mInstallMillis = millis;
+    }
+
+    private void addSample(long time, long bytes) {
+        final int kibPerSecond = (int) Math.min(Integer.MAX_VALUE,
+                bytes * 1000 / SAMPLE_INTERVAL_MS / 1024);
+        final int index = mSampleCount % MAX_SAMPLES;
+        mSampleTimes[index] = time;
+        mSampleSpeeds[index] = kibPerSecond;
+        mSampleCount++;
+        mHistogram[getBucket(kibPerSecond)]++;
+    }
+
+    private static int getBucket(int kibPerSecond) {
+        int bucket = 32 - Integer.numberOfLeadingZeros(kibPerSecond);
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
+    /**
+     * Get the throughput below which the given percentage of the intervals were, in
+     * KiB/s. The histogram only gives the upper bound of the bucket.
+     */
+    private long getPercentile(int percentile) {
+        long total = 0;
+        for (long count : mHistogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (total * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            seen += mHistogram[i];
+            if (seen >= threshold) {
+                return i == 0 ? 0 : 1L << i;
+            }
+        }
+        return 1L << (HISTOGRAM_BUCKETS - 1);
+    }
+
+    /**
+     * Copy the most recent samples, oldest first.
+     *
+     * @return the number of samples copied
+     */
+    public synchronized int getRecentSamples(long[] times, int[] kibPerSecond) {
+        final int count = Math.min(Math.min(mSampleCount, MAX_SAMPLES),
+                Math.min(times.length, kibPerSecond.length));
+        for (int i = 0; i < count; i++) {
+            int index = (mSampleCount - count + i) % MAX_SAMPLES;
+            times[i] = mSampleTimes[index];
+            kibPerSecond[i] = mSampleSpeeds[index];
+        }
+        return count;
+    }
+
+    public synchronized long[] getHistogram() {
+        return mHistogram.clone();
+    }
+
+    public synchronized Summary getSummary() {
+        Summary summary = new Summary();
+        summary.mStartTime = mStartTime;
+        summary.mAttempts = mAttempts;
+        summary.mFirstTtfbMillis = mFirstTtfbMillis;
+        summary.mLastTtfbMillis = mLastTtfbMillis;
+        summary.mMirror = mMirror;
+        summary.mBytes = mBytes;
+        summary.mWastedBytes = mWastedBytes;
+        summary.mStalls = mStalls;
+        summary.mStallMillis = mStallMillis;
+        summary.mActiveMillis = mActiveMillis;
+        summary.mMedianKibPerSecond = getPercentile(50);
+        summary.mP10KibPerSecond = getPercentile(10);
+        summary.mP90KibPerSecond = getPercentile(90);
+        summary.mVerifyMillis = mVerifyMillis;
+        summary.mInstallMillis = mInstallMillis;
+        return summary;
+    }
+
+    /**
+     * What is kept once the download is over. Durations are -1 when not known.
+     */
+    public static class Summary {
+        private String mDownloadId;
+        private String mResult;
+        private long mStartTime;
+        private int mAttempts;
+        private long mFirstTtfbMillis = -1;
+        private long mLastTtfbMillis = -1;
+        private String mMirror;
+        private long mBytes;
+        private long mWastedBytes;
+        private int mStalls;
+        private long mStallMillis;
+        private long mActiveMillis;
+        private long mP10KibPerSecond;
+        private long mMedianKibPerSecond;
+        private long mP90KibPerSecond;
+        private long mVerifyMillis = -1;
+        private long mInstallMillis = -1;
+
+        public String getDownloadId() {
+            return mDownloadId;
+        }
+
+        public void setDownloadId(String downloadId) {
+            mDownloadId = downloadId;
+        }
+
+        /**
+         * How far the update went, as last recorded.
+         */
+        public String getResult() {
+            return mResult;
+        }
+
+        public void setResult(String result) {
+            mResult = result;
+        }
+
+        /**
+         * Wall clock time of the first attempt.
+         */
+        public long getStartTime() {
+            return mStartTime;
+        }
+
+        public void setStartTime(long startTime) {
+            mStartTime = startTime;
+        }
+
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        public void setAttempts(int attempts) {
+            mAttempts = attempts;
+        }
+
+        public int getRetries() {
+            return Math.max(0, mAttempts - 1);
+        }
+
+        public long getFirstTtfbMillis() {
+            return mFirstTtfbMillis;
+        }
+
+        public void setFirstTtfbMillis(long millis) {
+            mFirstTtfbMillis = millis;
+        }
+
+        public long getLastTtfbMillis() {
+            return mLastTtfbMillis;
+        }
+
+        public void setLastTtfbMillis(long millis) {
+            mLastTtfbMillis = millis;
+        }
+
+        public String getMirror() {
+            return mMirror;
+        }
+
+        public void setMirror(String mirror) {
+            mMirror = mirror;
+        }
+
+        /**
+         * Bytes received, including the wasted ones.
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public void setBytes(long bytes) {
+            mBytes = bytes;
+        }
+
+        public long getWastedBytes() {
+            return mWastedBytes;
+        }
+
+        public void setWastedBytes(long wastedBytes) {
+            mWastedBytes = wastedBytes;
+        }
+
+        public int getStalls() {
+            return mStalls;
+        }
+
+        public void setStalls(int stalls) {
+            mStalls = stalls;
+        }
+
+        public long getStallMillis() {
+            return mStallMillis;
+        }
+
+        public void setStallMillis(long millis) {
+            mStallMillis = millis;
+        }
+
+        /**
+         * Time spent receiving data, from the first to the last byte of each attempt.
+         */
+        public long getActiveMillis() {
+            return mActiveMillis;
+        }
+
+        public void setActiveMillis(long millis) {
+            mActiveMillis = millis;
+        }
+
+        public long getP10KibPerSecond() {
+            return mP10KibPerSecond;
+        }
+
+        public void setP10KibPerSecond(long kibPerSecond) {
+            mP10KibPerSecond = kibPerSecond;
+        }
+
+        public long getMedianKibPerSecond() {
+            return mMedianKibPerSecond;
+        }
+
+        public void setMedianKibPerSecond(long kibPerSecond) {
+            mMedianKibPerSecond = kibPerSecond;
+        }
+
+        public long getP90KibPerSecond() {
+            return mP90KibPerSecond;
+        }
+
+        public void setP90KibPerSecond(long kibPerSecond) {
+            mP90KibPerSecond = kibPerSecond;
+        }
+
+        public long getVerifyMillis() {
+            return mVerifyMillis;
+        }
+
+        public void setVerifyMillis(long millis) {
+            mVerifyMillis = millis;
+        }
+
+        public long getInstallMillis() {
+            return mInstallMillis;
+        }
+
+        public void setInstallMillis(long millis) {
+            mInstallMillis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return mDownloadId + " " + mResult + " attempts=" + mAttempts + " ttfb=" + mFirstTtfbMillis + "/" +
+                    mLastTtfbMillis + "ms mirror=" + mMirror + " bytes=" + mBytes +
+                    " wasted=" + mWastedBytes + " stalls=" + mStalls + " (" + mStallMillis +
+                    "ms) active=" + mActiveMillis + "ms KiB/s p10/p50/p90=" +
+                    mP10KibPerSecond + "/" + mMedianKibPerSecond + "/" + mP90KibPerSecond +
+                    " verify=" + mVerifyMillis + "ms install=" + mInstallMillis + "ms";
+        }
+    }
+}
@@ -15,8 +15,7 @@
  */
 package com.blissroms.updater.download;
 
-import android.os.SystemClock;
-import android.util.Log;
+import com.blissroms.updater.core.Log;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -29,6 +28,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,12 +36,17 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    // Reads are 8 KiB at most, don't report each one of them
+    private static final long PROGRESS_REPORT_INTERVAL_MS = 100;
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final String mIfRange;
+    private final DownloadMetrics mMetrics;
 
     private DownloadThread mDownloadThread;
 
@@ -56,12 +61,17 @@ public class HttpURLConnectionClient implements DownloadClient {
     HttpURLConnectionClient(String url, File destination,
             DownloadClient.ProgressListener progressListener,
             DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
+            boolean useDuplicateLinks, String ifRange, DownloadMetrics metrics)
+            throws IOException {
         mClient = (HttpURLConnection) new URL(url).openConnection();
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        // Weak validators can't be used with If-Range
+        mIfRange = ifRange != null && !ifRange.startsWith("W/") ? ifRange : null;
+        // Not recording anything is cheaper than checking for null on each read
+        mMetrics = metrics != null ? metrics : new DownloadMetrics();
     }
 
     @Override
@@ -99,6 +109,9 @@ public class HttpURLConnectionClient implements DownloadClient {
         }
         long offset = mDestination.length();
         mClient.setRequestProperty("Range", "bytes=" + offset + "-");
+        if (mIfRange != null) {
+            mClient.setRequestProperty("If-Range", mIfRange);
+        }
         downloadFileInternalCommon(true);
     }
 
@@ -133,15 +146,15 @@ public class HttpURLConnectionClient implements DownloadClient {
         private long mLastMillis = 0;
         private long mSpeed = -1;
         private long mEta = -1;
+        private long mLastReportMillis = 0;
 
-        private final boolean mResume;
+        private boolean mResume;
 
         private DownloadThread(boolean resume) {
             mResume = resume;
         }
 
-        private void calculateSpeed() {
-            final long millis = SystemClock.elapsedRealtime();
+        private void calculateSpeed(long millis) {
             final long delta = millis - mLastMillis;
             if (delta > 500) {
                 final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
@@ -164,11 +177,15 @@ public class HttpURLConnectionClient implements DownloadClient {
 
         private void changeClientUrl(URL newUrl) throws IOException {
             String range = mClient.getRequestProperty("Range");
+            String ifRange = mClient.getRequestProperty("If-Range");
             mClient.disconnect();
             mClient = (HttpURLConnection) newUrl.openConnection();
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
+            if (ifRange != null) {
+                mClient.setRequestProperty("If-Range", ifRange);
+            }
         }
 
         private void handleDuplicateLinks() throws IOException {
@@ -243,6 +260,7 @@ public class HttpURLConnectionClient implements DownloadClient {
 
         @Override
         public void run() {
+            mMetrics.onAttemptStarted();
             try {
                 mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
                 mClient.connect();
@@ -253,11 +271,17 @@ public class HttpURLConnectionClient implements DownloadClient {
                     responseCode = mClient.getResponseCode();
                 }
 
+                mMetrics.onResponse(mClient.getURL().getHost());
                 mCallback.onResponse(new Headers());
 
                 if (mResume && isPartialContentCode(responseCode)) {
                     mTotalBytesRead = mDestination.length();
                     Log.d(TAG, "The server fulfilled the partial content request");
+                } else if (mResume && mIfRange != null && isSuccessCode(responseCode)) {
+                    // The file changed on the server, what we have is useless
+                    Log.d(TAG, "The file no longer matches " + mIfRange + ", starting over");
+                    mMetrics.onRestart(mDestination.length());
+                    mResume = false;
                 } else if (mResume || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
                     mCallback.onFailure(isInterrupted());
@@ -268,24 +292,37 @@ public class HttpURLConnectionClient implements DownloadClient {
                         InputStream inputStream = mClient.getInputStream();
                         OutputStream outputStream = new FileOutputStream(mDestination, mResume)
                 ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
+                    final long contentLength = mClient.getContentLengthLong();
+                    mTotalBytes = contentLength + mTotalBytesRead;
                     byte[] b = new byte[8192];
                     int count;
                     while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
                         outputStream.write(b, 0, count);
                         mTotalBytesRead += count;
-                        calculateSpeed();
+                        mMetrics.onBytes(count);
+                        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+                        calculateSpeed(millis);
                         calculateEta();
-                        if (mProgressListener != null) {
+                        if (mProgressListener != null &&
+                                millis - mLastReportMillis >= PROGRESS_REPORT_INTERVAL_MS) {
+                            mLastReportMillis = millis;
                             mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
                         }
                     }
+                    mMetrics.onAttemptEnded();
                     if (mProgressListener != null) {
                         mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
                     }
 
                     outputStream.flush();
 
+                    if (!isInterrupted() && contentLength >= 0 &&
+                            mTotalBytesRead < mTotalBytes) {
+                        // Not every implementation reports a connection closed too early
+                        throw new IOException("Connection closed after " + mTotalBytesRead +
+                                " of " + mTotalBytes + " bytes");
+                    }
+
                     if (isInterrupted()) {
                         mCallback.onFailure(true);
                     } else {
@@ -294,6 +331,8 @@ public class HttpURLConnectionClient implements DownloadClient {
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Error downloading file", e);
+                // The callbacks may read the metrics, close the last sample first
+                mMetrics.onAttemptEnded();
                 mCallback.onFailure(isInterrupted());
             } finally {
                 mClient.disconnect();
@@ -0,0 +1,98 @@
+package com.blissroms.updater.misc;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the last events of the app in memory so that they can be dumped.
+ *
+ * Recording an event doesn't lock nor allocate: writers claim a slot with an atomic
+ * increment and fill preallocated arrays. Each slot has a sequence number that is odd
+ * while it is being written, readers skip the slots that changed under them. A writer
+ * lapped by the others only loses its own event.
+ */
+public class EventRing {
+
+    private final String[] mTypeNames;
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mTimes;
+    private final AtomicIntegerArray mTypes;
+    private final AtomicReferenceArray<String> mSubjects;
+    private final AtomicLongArray mArgs1;
+    private final AtomicLongArray mArgs2;
+
+    /**
+     * @param capacity rounded up to a power of two
+     * @param typeNames the names of the event types, used when dumping
+     */
+    public EventRing(int capacity, String[] typeNames) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mTypeNames = typeNames;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        mTimes = new AtomicLongArray(size);
+        mTypes = new AtomicIntegerArray(size);
+        mSubjects = new AtomicReferenceArray<>(size);
+        mArgs1 = new AtomicLongArray(size);
+        mArgs2 = new AtomicLongArray(size);
+    }
+
+    /**
+     * @param subject what the event is about, usually a download ID. Pass an existing
+     *                string, building one would allocate
+     */
+    public void record(int type, String subject, long arg1, long arg2) {
+        final long n = mNext.getAndIncrement();
+        final int slot = (int) (n & mMask);
+        mSequences.set(slot, 2 * n + 1);
+        mTimes.set(slot, System.currentTimeMillis());
+        mTypes.set(slot, type);
+        mSubjects.set(slot, subject);
+        mArgs1.set(slot, arg1);
+        mArgs2.set(slot, arg2);
+        mSequences.set(slot, 2 * n + 2);
+    }
+
+    public long getRecordedCount() {
+        return mNext.get();
+    }
+
+    /**
+     * Print the last events, oldest first.
+     */
+    public void dump(PrintWriter pw, int max) {
+        final long end = mNext.get();
+        final long start = Math.max(0, end - Math.min(max, mMask + 1));
+        final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS",
+                Locale.US);
+        pw.println("  Events: " + end + " recorded, last " + (end - start) + ":");
+        for (long n = start; n < end; n++) {
+            final int slot = (int) (n & mMask);
+            final long sequence = mSequences.get(slot);
+            if (sequence != 2 * n + 2) {
+                // Being written or already overwritten
+                continue;
+            }
+            final long time = mTimes.get(slot);
+            final int type = mTypes.get(slot);
+            final String subject = mSubjects.get(slot);
+            final long arg1 = mArgs1.get(slot);
+            final long arg2 = mArgs2.get(slot);
+            if (mSequences.get(slot) != sequence) {
+                continue;
+            }
+            String name = type >= 0 && type < mTypeNames.length ?
+                    mTypeNames[type] : Integer.toString(type);
+            pw.println("    " + format.format(new Date(time)) + " " + name + " " + subject +
+                    " " + arg1 + " " + arg2);
+        }
+    }
+}
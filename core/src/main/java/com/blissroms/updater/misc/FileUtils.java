@@ -15,12 +15,13 @@
  */
 package com.blissroms.updater.misc;
 
-import android.util.Log;
+import com.blissroms.updater.core.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
@@ -72,6 +73,47 @@ public class FileUtils {
         }
     }
 
+    public static String toHexString(byte[] bytes) {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return whether both files exist and have the same content
+     */
+    public static boolean contentEquals(File a, File b) throws IOException {
+        if (!a.isFile() || !b.isFile() || a.length() != b.length()) {
+            return false;
+        }
+        byte[] bufferA = new byte[8192];
+        byte[] bufferB = new byte[8192];
+        try (InputStream streamA = new FileInputStream(a);
+             InputStream streamB = new FileInputStream(b)) {
+            int count;
+            while ((count = streamA.read(bufferA)) > 0) {
+                int read = 0;
+                while (read < count) {
+                    int n = streamB.read(bufferB, read, count - read);
+                    if (n < 0) {
+                        return false;
+                    }
+                    read += n;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (bufferA[i] != bufferB[i]) {
+                        return false;
+                    }
+                }
+            }
+            return streamB.read() < 0;
+        }
+    }
+
     public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
             throws IOException {
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
@@ -0,0 +1,277 @@
+package com.blissroms.updater.misc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fixed layout table with the progress of the updates, meant to live in memory shared
+ * with other processes so that they can read it as often as they like without calling
+ * us.
+ *
+ * Layout, big endian:
+ *   header: int magic, int version, int capacity, int record size
+ *   record: long sequence, long downloaded bytes, long total bytes, long speed,
+ *           long eta, int install progress, int id length, id (UTF-8)
+ *
+ * A single process writes the table. The sequence of a record is odd while the record
+ * is being written; readers copy the record and start over if the sequence was odd or
+ * changed under them. Free records have an id length of 0.
+ */
+public class ProgressTable {
+
+    public static final int MAGIC = 0x50524f47;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 144;
+    public static final int MAX_ID_LENGTH = 96;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_RECORD_SIZE = 12;
+
+    private static final int OFFSET_SEQUENCE = 0;
+    private static final int OFFSET_DOWNLOADED = 8;
+    private static final int OFFSET_TOTAL = 16;
+    private static final int OFFSET_SPEED = 24;
+    private static final int OFFSET_ETA = 32;
+    private static final int OFFSET_INSTALL_PROGRESS = 40;
+    private static final int OFFSET_ID_LENGTH = 44;
+    private static final int OFFSET_ID = 48;
+
+    private static final int MAX_READ_ATTEMPTS = 100;
+
+    public static class Record {
+        private String mDownloadId;
+        private long mDownloadedBytes;
+        private long mTotalBytes;
+        private long mSpeed;
+        private long mEta;
+        private int mInstallProgress;
+
+        public String getDownloadId() {
+            return mDownloadId;
+        }
+
+        public long getDownloadedBytes() {
+            return mDownloadedBytes;
+        }
+
+        public long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        public long getSpeed() {
+            return mSpeed;
+        }
+
+        public long getEta() {
+            return mEta;
+        }
+
+        public int getInstallProgress() {
+            return mInstallProgress;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    // Writer side only, guarded by this
+    private final Map<String, Integer> mSlots = new HashMap<>();
+    private final boolean[] mUsedSlots;
+
+    // Java 8 has no fences: a volatile store followed by a volatile load keeps the
+    // accesses to the buffer on their side, ART emits the matching barriers
+    private volatile int mFence;
+
+    private ProgressTable(ByteBuffer buffer, int capacity) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mUsedSlots = new boolean[capacity];
+    }
+
+    public static int sizeFor(int capacity) {
+        return HEADER_SIZE + capacity * RECORD_SIZE;
+    }
+
+    /**
+     * Format buffer, the returned table is the only one allowed to write to it.
+     */
+    public static ProgressTable create(ByteBuffer buffer, int capacity) {
+        if (buffer.capacity() < sizeFor(capacity)) {
+            throw new IllegalArgumentException("Buffer too small for " + capacity +
+                    " records");
+        }
+        for (int i = 0; i < sizeFor(capacity); i += 4) {
+            buffer.putInt(i, 0);
+        }
+        buffer.putInt(OFFSET_VERSION, VERSION);
+        buffer.putInt(OFFSET_CAPACITY, capacity);
+        buffer.putInt(OFFSET_RECORD_SIZE, RECORD_SIZE);
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        return new ProgressTable(buffer, capacity);
+    }
+
+    /**
+     * Read a table formatted by create(), possibly in another process.
+     */
+    public static ProgressTable open(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(OFFSET_MAGIC) != MAGIC) {
+            throw new IllegalArgumentException("Not a progress table");
+        }
+        if (buffer.getInt(OFFSET_VERSION) != VERSION ||
+                buffer.getInt(OFFSET_RECORD_SIZE) != RECORD_SIZE) {
+            throw new IllegalArgumentException("Unsupported progress table version " +
+                    buffer.getInt(OFFSET_VERSION));
+        }
+        int capacity = buffer.getInt(OFFSET_CAPACITY);
+        if (capacity < 0 || buffer.capacity() < sizeFor(capacity)) {
+            throw new IllegalArgumentException("Truncated progress table");
+        }
+        return new ProgressTable(buffer, capacity);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return false if the table is full or the ID too long
+     */
+    public synchronized boolean publish(String downloadId, long downloadedBytes,
+            long totalBytes, long speed, long eta, int installProgress) {
+        Integer slot = mSlots.get(downloadId);
+        if (slot == null) {
+            slot = allocate(downloadId);
+            if (slot == null) {
+                return false;
+            }
+        }
+        final int base = HEADER_SIZE + slot * RECORD_SIZE;
+        final long sequence = beginWrite(base);
+        mBuffer.putLong(base + OFFSET_DOWNLOADED, downloadedBytes);
+        mBuffer.putLong(base + OFFSET_TOTAL, totalBytes);
+        mBuffer.putLong(base + OFFSET_SPEED, speed);
+        mBuffer.putLong(base + OFFSET_ETA, eta);
+        mBuffer.putInt(base + OFFSET_INSTALL_PROGRESS, installProgress);
+        endWrite(base, sequence);
+        return true;
+    }
+
+    public synchronized void remove(String downloadId) {
+        Integer slot = mSlots.remove(downloadId);
+        if (slot == null) {
+            return;
+        }
+        final int base = HEADER_SIZE + slot * RECORD_SIZE;
+        final long sequence = beginWrite(base);
+        mBuffer.putInt(base + OFFSET_ID_LENGTH, 0);
+        endWrite(base, sequence);
+        mUsedSlots[slot] = false;
+    }
+
+    /**
+     * Copy a consistent snapshot of a record.
+     *
+     * @return false if the record is free or kept changing while being read
+     */
+    public boolean read(int slot, Record record) {
+        final int base = HEADER_SIZE + slot * RECORD_SIZE;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            final long sequence = mBuffer.getLong(base + OFFSET_SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            fence();
+            final int idLength = mBuffer.getInt(base + OFFSET_ID_LENGTH);
+            if (idLength <= 0 || idLength > MAX_ID_LENGTH) {
+                fence();
+                if (mBuffer.getLong(base + OFFSET_SEQUENCE) == sequence) {
+                    return false;
+                }
+                continue;
+            }
+            final long downloadedBytes = mBuffer.getLong(base + OFFSET_DOWNLOADED);
+            final long totalBytes = mBuffer.getLong(base + OFFSET_TOTAL);
+            final long speed = mBuffer.getLong(base + OFFSET_SPEED);
+            final long eta = mBuffer.getLong(base + OFFSET_ETA);
+            final int installProgress = mBuffer.getInt(base + OFFSET_INSTALL_PROGRESS);
+            final byte[] id = new byte[idLength];
+            for (int i = 0; i < idLength; i++) {
+                id[i] = mBuffer.get(base + OFFSET_ID + i);
+            }
+            fence();
+            if (mBuffer.getLong(base + OFFSET_SEQUENCE) != sequence) {
+                continue;
+            }
+            record.mDownloadId = new String(id, StandardCharsets.UTF_8);
+            record.mDownloadedBytes = downloadedBytes;
+            record.mTotalBytes = totalBytes;
+            record.mSpeed = speed;
+            record.mEta = eta;
+            record.mInstallProgress = installProgress;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the slot of downloadId, -1 if it has none
+     */
+    public int find(String downloadId) {
+        Record record = new Record();
+        for (int slot = 0; slot < mCapacity; slot++) {
+            if (read(slot, record) && downloadId.equals(record.mDownloadId)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private Integer allocate(String downloadId) {
+        byte[] id = downloadId.getBytes(StandardCharsets.UTF_8);
+        if (id.length == 0 || id.length > MAX_ID_LENGTH) {
+            return null;
+        }
+        for (int slot = 0; slot < mCapacity; slot++) {
+            if (!mUsedSlots[slot]) {
+                final int base = HEADER_SIZE + slot * RECORD_SIZE;
+                final long sequence = beginWrite(base);
+                // Don't show what the previous owner of the slot left
+                for (int offset = OFFSET_DOWNLOADED; offset < OFFSET_ID_LENGTH; offset += 4) {
+                    mBuffer.putInt(base + offset, 0);
+                }
+                for (int i = 0; i < id.length; i++) {
+                    mBuffer.put(base + OFFSET_ID + i, id[i]);
+                }
+                mBuffer.putInt(base + OFFSET_ID_LENGTH, id.length);
+                endWrite(base, sequence);
+                mUsedSlots[slot] = true;
+                mSlots.put(downloadId, slot);
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private long beginWrite(int base) {
+        final long sequence = mBuffer.getLong(base + OFFSET_SEQUENCE) + 1;
+        mBuffer.putLong(base + OFFSET_SEQUENCE, sequence);
+        fence();
+        return sequence;
+    }
+
+    private void endWrite(int base, long sequence) {
+        fence();
+        mBuffer.putLong(base + OFFSET_SEQUENCE, sequence + 1);
+    }
+
+    private void fence() {
+        mFence = 0;
+        int ignored = mFence;
+    }
+}
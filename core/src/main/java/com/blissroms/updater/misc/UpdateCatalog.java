@@ -0,0 +1,95 @@
+package com.blissroms.updater.misc;
+
+import com.blissroms.updater.core.Log;
+import com.blissroms.updater.model.UpdateBase;
+import com.blissroms.updater.model.UpdateBaseInfo;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Parser of the update lists sent by the server.
+ */
+public class UpdateCatalog {
+
+    private static final String TAG = "UpdateCatalog";
+
+    private UpdateCatalog() {
+    }
+
+    /**
+     * @param factory creates the objects the updates are parsed into
+     * @param filter the updates to keep, null to keep all of them
+     */
+    public static <T extends UpdateBase> List<T> parse(File file, Supplier<T> factory,
+            Predicate<? super T> filter) throws IOException, JSONException {
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        return parse(json, factory, filter);
+    }
+
+    public static <T extends UpdateBase> List<T> parse(String json, Supplier<T> factory,
+            Predicate<? super T> filter) throws JSONException {
+        JSONObject obj = new JSONObject(json);
+        JSONArray updatesList = obj.getJSONArray("response");
+        List<T> updates = new ArrayList<>(updatesList.length());
+        for (int i = 0; i < updatesList.length(); i++) {
+            if (updatesList.isNull(i)) {
+                continue;
+            }
+            try {
+                T update = parseUpdate(updatesList.getJSONObject(i), factory.get());
+                if (filter == null || filter.test(update)) {
+                    updates.add(update);
+                } else {
+                    Log.d(TAG, "Ignoring incompatible update " + update.getName());
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Could not parse update object, index=" + i, e);
+            }
+        }
+        return updates;
+    }
+
+    private static <T extends UpdateBase> T parseUpdate(JSONObject object, T update)
+            throws JSONException {
+        update.setTimestamp(object.getLong("datetime"));
+        update.setName(object.getString("filename"));
+        update.setDownloadId(object.getString("id"));
+        update.setFileSize(object.getLong("size"));
+        update.setDownloadUrl(object.getString("url"));
+        update.setVersion(object.getString("version"));
+        update.setDigest(object.optString("sha256", null));
+        return update;
+    }
+
+    /**
+     * @return true if newList has at least an update not available in oldList
+     */
+    public static boolean hasNewUpdates(List<? extends UpdateBaseInfo> oldList,
+            List<? extends UpdateBaseInfo> newList) {
+        Set<String> oldIds = new HashSet<>();
+        for (UpdateBaseInfo update : oldList) {
+            oldIds.add(update.getDownloadId());
+        }
+        // In case of no new updates, the old list should
+        // have all (if not more) the updates
+        for (UpdateBaseInfo update : newList) {
+            if (!oldIds.contains(update.getDownloadId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
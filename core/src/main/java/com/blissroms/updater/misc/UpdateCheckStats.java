@@ -0,0 +1,135 @@
+package com.blissroms.updater.misc;
+
+import com.blissroms.updater.core.Log;
+import com.blissroms.updater.download.DownloadClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the checks for new updates made since the process started, whoever made
+ * them.
+ *
+ * The list is always downloaded in full, a check is counted as a cache hit when what was
+ * downloaded is the same as the cached list, i.e. when a conditional request would have
+ * been enough.
+ */
+public class UpdateCheckStats {
+
+    private static final String TAG = "UpdateCheckStats";
+
+    private static final UpdateCheckStats sInstance = new UpdateCheckStats();
+
+    private final AtomicLong mChecks = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mTotalMillis = new AtomicLong();
+    private final AtomicLong mMaxMillis = new AtomicLong();
+    private volatile long mLastMillis = -1;
+
+    public static UpdateCheckStats get() {
+        return sInstance;
+    }
+
+    /**
+     * Wrap the callback of the download of the update list to measure it. Call right
+     * before starting the download.
+     *
+     * @param cached the list downloaded by the previous check
+     * @param fetched where the list is being downloaded
+     */
+    public DownloadClient.DownloadCallback track(final File cached, final File fetched,
+            final DownloadClient.DownloadCallback callback) {
+        final long start = System.nanoTime();
+        return new DownloadClient.DownloadCallback() {
+            @Override
+            public void onResponse(DownloadClient.Headers headers) {
+                callback.onResponse(headers);
+            }
+
+            @Override
+            public void onSuccess() {
+                boolean cacheHit = false;
+                try {
+                    // Before the callback replaces the cached list with the new one
+                    cacheHit = FileUtils.contentEquals(cached, fetched);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not compare the update lists", e);
+                }
+                record(start, true, cacheHit);
+                callback.onSuccess();
+            }
+
+            @Override
+            public void onFailure(boolean cancelled) {
+                if (!cancelled) {
+                    record(start, false, false);
+                }
+                callback.onFailure(cancelled);
+            }
+        };
+    }
+
+    private void record(long start, boolean success, boolean cacheHit) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        mChecks.incrementAndGet();
+        if (!success) {
+            mFailures.incrementAndGet();
+        } else if (cacheHit) {
+            mCacheHits.incrementAndGet();
+        }
+        mTotalMillis.addAndGet(millis);
+        mLastMillis = millis;
+        long max;
+        while (millis > (max = mMaxMillis.get())) {
+            if (mMaxMillis.compareAndSet(max, millis)) {
+                break;
+            }
+        }
+    }
+
+    public long getCheckCount() {
+        return mChecks.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    public long getCacheHitCount() {
+        return mCacheHits.get();
+    }
+
+    /**
+     * @return the share of the successful checks that were cache hits, 0 if none
+     */
+    public float getCacheHitRate() {
+        long successes = mChecks.get() - mFailures.get();
+        return successes > 0 ? mCacheHits.get() / (float) successes : 0;
+    }
+
+    public long getAverageMillis() {
+        long checks = mChecks.get();
+        return checks > 0 ? mTotalMillis.get() / checks : 0;
+    }
+
+    public long getMaxMillis() {
+        return mMaxMillis.get();
+    }
+
+    /**
+     * @return the duration of the last check, -1 if none
+     */
+    public long getLastMillis() {
+        return mLastMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "checks=" + getCheckCount() + " failures=" + getFailureCount() +
+                " cacheHits=" + getCacheHitCount() + " avg=" + getAverageMillis() +
+                "ms max=" + getMaxMillis() + "ms last=" + getLastMillis() + "ms";
+    }
+}
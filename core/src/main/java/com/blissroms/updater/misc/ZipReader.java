@@ -0,0 +1,276 @@
+package com.blissroms.updater.misc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal zip reader working on a FileChannel, so that it can be used with file
+ * descriptors we don't have a path for.
+ *
+ * Only the end of central directory record and the central directory are read, the
+ * entries are then looked up by name. Zip64 archives are supported. The channel is
+ * not closed by the reader.
+ */
+public class ZipReader {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    // Entries we read in memory are metadata files, refuse anything bigger than this
+    private static final int MAX_READ_SIZE = 1024 * 1024;
+
+    public static class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private long mDataOffset = -1;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private ByteBuffer mCentralDirectory;
+
+    public ZipReader(FileChannel channel) throws IOException {
+        mChannel = channel;
+        readCentralDirectory();
+    }
+
+    /**
+     * Feed the central directory to the given digest. It holds the name, CRC and size
+     * of every entry, so its hash identifies the content of the archive.
+     */
+    public void digestCentralDirectory(MessageDigest digest) {
+        ByteBuffer centralDirectory = mCentralDirectory.duplicate();
+        centralDirectory.rewind();
+        digest.update(centralDirectory);
+    }
+
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Get the offset of the data of the given entry from the start of the archive.
+     * The local header is read since its extra field can differ from the central one.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        if (entry.mDataOffset < 0) {
+            ByteBuffer header = read(entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Bad local header for " + entry.mName);
+            }
+            int nameLength = header.getShort(26) & 0xffff;
+            int extraLength = header.getShort(28) & 0xffff;
+            entry.mDataOffset = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE +
+                    nameLength + extraLength;
+        }
+        return entry.mDataOffset;
+    }
+
+    /**
+     * Read the uncompressed content of a small entry.
+     */
+    public byte[] readEntry(Entry entry) throws IOException {
+        if (entry.mSize > MAX_READ_SIZE || entry.mCompressedSize > MAX_READ_SIZE) {
+            throw new ZipException(entry.mName + " is too big");
+        }
+        ByteBuffer data = read(getDataOffset(entry), (int) entry.mCompressedSize);
+        byte[] compressed = new byte[data.remaining()];
+        data.get(compressed);
+        if (entry.mMethod == METHOD_STORED) {
+            return compressed;
+        } else if (entry.mMethod != METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.mMethod);
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] content = new byte[(int) entry.mSize];
+            int inflated = 0;
+            while (inflated < content.length && !inflater.finished()) {
+                int count = inflater.inflate(content, inflated, content.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != content.length) {
+                throw new ZipException("Truncated entry " + entry.mName);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupted entry " + entry.mName + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public String readEntryAsString(String name) throws IOException {
+        Entry entry = getEntry(name);
+        if (entry == null) {
+            throw new ZipException("Couldn't find " + name);
+        }
+        return new String(readEntry(entry), StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long fileSize = mChannel.size();
+        if (fileSize < EOCD_SIZE) {
+            throw new ZipException("Not a zip archive");
+        }
+
+        // The record is at the end of the file, followed by a comment of variable size
+        int tailSize = (int) Math.min(fileSize, EOCD_SIZE + MAX_COMMENT_SIZE);
+        long tailOffset = fileSize - tailSize;
+        ByteBuffer tail = read(tailOffset, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tailSize) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+
+        long locatorOffset = tailOffset + eocd - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locatorOffset >= 0) {
+            ByteBuffer locator = read(locatorOffset, ZIP64_EOCD_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                ByteBuffer eocd64 = read(locator.getLong(8), 56);
+                if (eocd64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new ZipException("Bad zip64 end of central directory");
+                }
+                entryCount = eocd64.getLong(32);
+                cdSize = eocd64.getLong(40);
+                cdOffset = eocd64.getLong(48);
+            }
+        }
+
+        if (cdOffset + cdSize > fileSize || cdSize > Integer.MAX_VALUE) {
+            throw new ZipException("Bad central directory");
+        }
+        ByteBuffer cd = read(cdOffset, (int) cdSize);
+        for (long i = 0; i < entryCount; i++) {
+            readCentralHeader(cd);
+        }
+        mCentralDirectory = cd;
+    }
+
+    private void readCentralHeader(ByteBuffer cd) throws ZipException {
+        int start = cd.position();
+        if (cd.remaining() < CENTRAL_HEADER_SIZE || cd.getInt(start) != CENTRAL_HEADER_SIGNATURE) {
+            throw new ZipException("Bad central directory entry");
+        }
+        int method = cd.getShort(start + 10) & 0xffff;
+        long compressedSize = cd.getInt(start + 20) & 0xffffffffL;
+        long size = cd.getInt(start + 24) & 0xffffffffL;
+        int nameLength = cd.getShort(start + 28) & 0xffff;
+        int extraLength = cd.getShort(start + 30) & 0xffff;
+        int commentLength = cd.getShort(start + 32) & 0xffff;
+        long localHeaderOffset = cd.getInt(start + 42) & 0xffffffffL;
+        if (cd.remaining() < CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength) {
+            throw new ZipException("Bad central directory entry");
+        }
+
+        byte[] nameBytes = new byte[nameLength];
+        cd.position(start + CENTRAL_HEADER_SIZE);
+        cd.get(nameBytes);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+        // Values that don't fit 32 bits are moved to the zip64 extra field, in this order
+        int extra = start + CENTRAL_HEADER_SIZE + nameLength;
+        int extraEnd = extra + extraLength;
+        while (extra + 4 <= extraEnd) {
+            int id = cd.getShort(extra) & 0xffff;
+            int dataSize = cd.getShort(extra + 2) & 0xffff;
+            if (id == ZIP64_EXTRA_ID) {
+                int field = extra + 4;
+                if (size == 0xffffffffL && field + 8 <= extraEnd) {
+                    size = cd.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == 0xffffffffL && field + 8 <= extraEnd) {
+                    compressedSize = cd.getLong(field);
+                    field += 8;
+                }
+                if (localHeaderOffset == 0xffffffffL && field + 8 <= extraEnd) {
+                    localHeaderOffset = cd.getLong(field);
+                }
+                break;
+            }
+            extra += 4 + dataSize;
+        }
+
+        cd.position(extraEnd + commentLength);
+        mEntries.put(name, new Entry(name, method, compressedSize, size, localHeaderOffset));
+    }
+}
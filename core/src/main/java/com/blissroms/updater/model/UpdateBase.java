@@ -23,6 +23,7 @@ public class UpdateBase implements UpdateBaseInfo {
     private long mTimestamp;
     private String mVersion;
     private long mFileSize;
+    private String mDigest;
 
     public UpdateBase() {
     }
@@ -34,6 +35,7 @@ public class UpdateBase implements UpdateBaseInfo {
         mTimestamp = update.getTimestamp();
         mVersion = update.getVersion();
         mFileSize = update.getFileSize();
+        mDigest = update.getDigest();
     }
 
     @Override
@@ -89,4 +91,13 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setFileSize(long fileSize) {
         mFileSize = fileSize;
     }
+
+    @Override
+    public String getDigest() {
+        return mDigest;
+    }
+
+    public void setDigest(String digest) {
+        mDigest = digest;
+    }
 }
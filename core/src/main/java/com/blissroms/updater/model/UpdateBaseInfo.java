@@ -27,4 +27,6 @@ public interface UpdateBaseInfo {
     String getDownloadUrl();
 
     long getFileSize();
+
+    String getDigest();
 }
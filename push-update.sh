@@ -37,7 +37,6 @@ fi
 zip_name=`basename "$zip_path"`
 id=`echo "$zip_name" | sha1sum | cut -d' ' -f1`
 version=`echo "$zip_name" | cut -d'-' -f2`
-type=`echo "$zip_name" | cut -d'-' -f4`
 build_date=`echo "$zip_name" | cut -d'-' -f3 | cut -d'_' -f1`
 if [ "`uname`" = "Darwin" ]; then
     timestamp=`date -jf "%Y%m%d %H:%M:%S" "$build_date 23:59:59" +%s`
@@ -54,8 +53,8 @@ adb shell chmod 664 "$zip_path_device"
 # Kill the app before updating the database
 adb shell "killall com.blissroms.updater 2>/dev/null"
 adb shell "sqlite3 /data/data/com.blissroms.updater/databases/updates.db" \
-    "\"INSERT INTO updates (status, path, download_id, timestamp, type, version, size)" \
-    "  VALUES ($status, '$zip_path_device', '$id', $timestamp, '$type', '$version', $size)\""
+    "\"INSERT INTO updates (status, path, download_id, timestamp, version, size, name, bytes_done)" \
+    "  VALUES ($status, '$zip_path_device', '$id', $timestamp, '$version', $size, '$zip_name', $size)\""
 
 # Exit root mode
 adb unroot
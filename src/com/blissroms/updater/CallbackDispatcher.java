@@ -0,0 +1,226 @@
+package com.blissroms.updater;
+
+import static com.blissroms.updater.model.Update.UpdateToUpdateItemInfo;
+
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.blissos.updatersdk.IUpdaterCallback;
+import com.blissos.updatersdk.UpdateItemInfo;
+import com.blissroms.updater.controller.UpdaterController;
+import com.blissroms.updater.model.Update;
+import com.blissroms.updater.model.UpdateInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delivers the events of one IUpdater callback in order, on a pool shared by all the
+ * clients: a client slow to handle its calls holds a single thread of the pool, and
+ * only delays itself as long as the pool has others.
+ *
+ * Status changes and check results are delivered in order. Progress is coalesced per
+ * update and delivered at most once per interval, reading the state of the update when
+ * it is sent: a client that can't keep up gets fewer but current events.
+ */
+class CallbackDispatcher {
+
+    private static final String TAG = "CallbackDispatcher";
+
+    interface Call {
+        void call(IUpdaterCallback callback) throws RemoteException;
+    }
+
+    private final IUpdaterCallback mCallback;
+    private final int mPid;
+    private final UpdaterController mController;
+    private final long mIntervalMillis;
+    private final Executor mExecutor;
+    private final Handler mHandler;
+
+    private final Runnable mDeliverProgressRunnable = () -> execute(this::deliverProgress);
+    private final Runnable mDrainRunnable = this::drain;
+
+    // Guarded by mQueue
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    private boolean mDraining;
+    private boolean mQuit;
+
+    // Guarded by mPendingProgress, true for install progress
+    private final Map<String, Boolean> mPendingProgress = new LinkedHashMap<>();
+    private boolean mProgressScheduled;
+    private volatile long mLastProgressMillis;
+    private long mOfferedCount;
+    private long mDeliveredCount;
+    private volatile int mFailedCount;
+    private volatile boolean mProgressEnabled = true;
+
+    /**
+     * @param executor runs the calls, shared by all the dispatchers
+     * @param handler delays the progress, shared by all the dispatchers
+     */
+    CallbackDispatcher(IUpdaterCallback callback, int pid, UpdaterController controller,
+            long intervalMillis, Executor executor, Handler handler) {
+        mCallback = callback;
+        mPid = pid;
+        mController = controller;
+        mIntervalMillis = intervalMillis;
+        mExecutor = executor;
+        mHandler = handler;
+    }
+
+    IUpdaterCallback getCallback() {
+        return mCallback;
+    }
+
+    int getPid() {
+        return mPid;
+    }
+
+    /**
+     * Queue a call, delivered after the ones queued before it.
+     */
+    void post(Call call) {
+        execute(() -> deliver(call));
+    }
+
+    void postStatusChange(String downloadId) {
+        // The new status supersedes the progress waiting to be sent
+        synchronized (mPendingProgress) {
+            mPendingProgress.remove(downloadId);
+        }
+        post(callback -> {
+            UpdateItemInfo update = getUpdateItemInfo(downloadId);
+            if (update != null) {
+                callback.onStatusChange(update);
+            }
+        });
+    }
+
+    /**
+     * Stop sending progress to clients that read it from the shared memory.
+     */
+    void setProgressEnabled(boolean enabled) {
+        mProgressEnabled = enabled;
+    }
+
+    void offerProgress(String downloadId, boolean install) {
+        if (!mProgressEnabled) {
+            return;
+        }
+        synchronized (mPendingProgress) {
+            mOfferedCount++;
+            mPendingProgress.put(downloadId, install);
+            if (mProgressScheduled) {
+                return;
+            }
+            mProgressScheduled = true;
+        }
+        long delay = mLastProgressMillis + mIntervalMillis - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mDeliverProgressRunnable, Math.max(0, delay));
+    }
+
+    void quit() {
+        mHandler.removeCallbacks(mDeliverProgressRunnable);
+        synchronized (mQueue) {
+            mQuit = true;
+            mQueue.clear();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mPendingProgress) {
+            pw.println("    pid " + mPid + ": progress " +
+                    (mProgressEnabled ? "" : "(shared memory) ") + "offered=" + mOfferedCount +
+                    " delivered=" + mDeliveredCount + " pending=" + mPendingProgress.size() +
+                    ", failed calls=" + mFailedCount);
+        }
+    }
+
+    private void deliverProgress() {
+        List<Map.Entry<String, Boolean>> pending;
+        synchronized (mPendingProgress) {
+            mProgressScheduled = false;
+            if (mPendingProgress.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(mPendingProgress.entrySet());
+            mPendingProgress.clear();
+            mDeliveredCount += pending.size();
+        }
+        mLastProgressMillis = SystemClock.uptimeMillis();
+        for (Map.Entry<String, Boolean> entry : pending) {
+            final boolean install = entry.getValue();
+            deliver(callback -> {
+                UpdateItemInfo update = getUpdateItemInfo(entry.getKey());
+                if (update == null) {
+                    return;
+                }
+                if (install) {
+                    callback.onInstallProgress(update);
+                } else {
+                    callback.onDownloadProgressChange(update);
+                }
+            });
+        }
+    }
+
+    private void execute(Runnable task) {
+        synchronized (mQueue) {
+            if (mQuit) {
+                return;
+            }
+            mQueue.add(task);
+            if (mDraining) {
+                return;
+            }
+            mDraining = true;
+        }
+        try {
+            mExecutor.execute(mDrainRunnable);
+        } catch (RejectedExecutionException e) {
+            // The task stays queued, the next one tries again
+            synchronized (mQueue) {
+                mDraining = false;
+            }
+        }
+    }
+
+    // Runs the queued tasks one at a time, on one pool thread at a time
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (mQueue) {
+                task = mQuit ? null : mQueue.poll();
+                if (task == null) {
+                    mDraining = false;
+                    return;
+                }
+            }
+            task.run();
+        }
+    }
+
+    private void deliver(Call call) {
+        try {
+            call.call(mCallback);
+        } catch (RemoteException | RuntimeException e) {
+            // Dead clients are dropped by RemoteCallbackList
+            mFailedCount++;
+            Log.w(TAG, "Could not deliver to pid " + mPid, e);
+        }
+    }
+
+    private UpdateItemInfo getUpdateItemInfo(String downloadId) {
+        UpdateInfo update = mController.getUpdate(downloadId);
+        return update != null ? UpdateToUpdateItemInfo(new Update(update)) : null;
+    }
+}
@@ -19,21 +19,47 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
 import android.os.IBinder;
-import android.os.SystemClock;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.text.TextUtils;
 import android.util.Log;
-import android.widget.Toast;
 
 import androidx.core.app.NotificationCompat;
+import androidx.preference.PreferenceManager;
 
+import com.blissroms.updater.misc.FileExporter;
 import com.blissroms.updater.misc.FileUtils;
+import com.blissroms.updater.misc.NotificationPublisher;
+import com.blissroms.updater.misc.TaskExecutors;
+import com.blissroms.updater.misc.Utils;
+import com.blissroms.updater.model.UpdateInfo;
 
 import com.blissroms.updater.R;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.NumberFormat;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ExportUpdateService extends Service {
 
@@ -46,14 +72,112 @@ public class ExportUpdateService extends Service {
 
     public static final String EXTRA_SOURCE_FILE = "source_file";
     public static final String EXTRA_DEST_FILE = "dest_file";
+    public static final String EXTRA_DIGEST = "digest";
+    // Batch exports, arrays of the same size
+    public static final String EXTRA_SOURCE_FILES = "source_files";
+    public static final String EXTRA_DEST_FILES = "dest_files";
+    public static final String EXTRA_DIGESTS = "digests";
+    // Storage Access Framework tree to export EXTRA_SOURCE_FILES to, as EXTRA_DEST_NAMES
+    public static final String EXTRA_DEST_TREE_URI = "dest_tree_uri";
+    public static final String EXTRA_DEST_NAMES = "dest_names";
+
+    private static final String MIME_ZIP = "application/zip";
+    private static final String SIDECAR_EXT = ".sha256";
+    private static final String PREF_EXPORT_STATE_PREFIX = "export_state_";
 
     private static final String EXPORT_NOTIFICATION_CHANNEL =
             "export_notification_channel";
 
+    private static final long NOTIFICATION_PROGRESS_INTERVAL_MS = 1000;
+
     private volatile boolean mIsExporting = false;
 
-    private Thread mExportThread;
-    private ExportRunnable mExportRunnable;
+    private Future<?> mExportTask;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private NotificationPublisher mNotificationPublisher;
+
+    // Only accessed on the main thread
+    private final Queue<ExportJob> mPendingJobs = new ArrayDeque<>();
+    private final List<String> mExportedNames = new ArrayList<>();
+    private int mJobCount;
+    private int mFailedCount;
+    private NotificationCompat.Builder mNotificationBuilder;
+    private NotificationCompat.BigTextStyle mNotificationStyle;
+
+    private static class ExportJob {
+        private final File mSource;
+        private final File mDestination;
+        private final String mDigest;
+        private final Uri mTreeUri;
+        private final String mName;
+
+        private ExportJob(File source, File destination, String digest) {
+            mSource = source;
+            mDestination = destination;
+            mDigest = digest;
+            mTreeUri = null;
+            mName = destination.getName();
+        }
+
+        private ExportJob(File source, Uri treeUri, String name, String digest) {
+            mSource = source;
+            mDestination = null;
+            mDigest = digest;
+            mTreeUri = treeUri;
+            mName = name;
+        }
+    }
+
+    /**
+     * Export the given updates to the export directory in a single session.
+     */
+    public static void exportUpdates(Context context, List<? extends UpdateInfo> updates) {
+        File exportPath = Utils.getExportPath(context);
+        File[] sources = new File[updates.size()];
+        File[] destinations = new File[updates.size()];
+        String[] digests = new String[updates.size()];
+        for (int i = 0; i < updates.size(); i++) {
+            UpdateInfo update = updates.get(i);
+            File dest = new File(exportPath, update.getName());
+            if (dest.exists()) {
+                dest = Utils.appendSequentialNumber(dest);
+            }
+            sources[i] = update.getFile();
+            destinations[i] = dest;
+            digests[i] = update.getDigest();
+        }
+        Intent intent = new Intent(context, ExportUpdateService.class);
+        intent.setAction(ACTION_START_EXPORTING);
+        intent.putExtra(EXTRA_SOURCE_FILES, sources);
+        intent.putExtra(EXTRA_DEST_FILES, destinations);
+        intent.putExtra(EXTRA_DIGESTS, digests);
+        context.startService(intent);
+    }
+
+    /**
+     * Export the given updates to a Storage Access Framework tree the app has been
+     * granted access to. Interrupted exports are resumed when requested again.
+     */
+    public static void exportUpdatesToTree(Context context, List<? extends UpdateInfo> updates,
+            Uri treeUri) {
+        File[] sources = new File[updates.size()];
+        String[] names = new String[updates.size()];
+        String[] digests = new String[updates.size()];
+        for (int i = 0; i < updates.size(); i++) {
+            UpdateInfo update = updates.get(i);
+            sources[i] = update.getFile();
+            names[i] = update.getName();
+            digests[i] = update.getDigest();
+        }
+        Intent intent = new Intent(context, ExportUpdateService.class);
+        intent.setAction(ACTION_START_EXPORTING);
+        intent.putExtra(EXTRA_SOURCE_FILES, sources);
+        intent.putExtra(EXTRA_DEST_TREE_URI, treeUri);
+        intent.putExtra(EXTRA_DEST_NAMES, names);
+        intent.putExtra(EXTRA_DIGESTS, digests);
+        context.startService(intent);
+    }
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -63,26 +187,25 @@ public class ExportUpdateService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (ACTION_START_EXPORTING.equals(intent.getAction())) {
+            List<ExportJob> jobs = getJobs(intent);
             if (mIsExporting) {
-                Log.e(TAG, "Already exporting an update");
-                Toast.makeText(this, R.string.toast_already_exporting, Toast.LENGTH_SHORT).show();
-                return START_NOT_STICKY;
+                // Run them in the current session
+                Log.d(TAG, "Queueing " + jobs.size() + " exports");
+            }
+            mPendingJobs.addAll(jobs);
+            mJobCount += jobs.size();
+            if (!mIsExporting && !mPendingJobs.isEmpty()) {
+                mIsExporting = true;
+                startExporting();
             }
-            mIsExporting = true;
-            File source = (File) intent.getSerializableExtra(EXTRA_SOURCE_FILE);
-            File destination = (File) intent.getSerializableExtra(EXTRA_DEST_FILE);
-            startExporting(source, destination);
         } else if (ACTION_STOP_EXPORTING.equals(intent.getAction())) {
             if (mIsExporting) {
-                mExportThread.interrupt();
+                // The task removes the partial file once it notices the interruption
+                mExportTask.cancel(true);
+                mNotificationPublisher.cancelPending(NOTIFICATION_ID);
                 stopForeground(true);
-                try {
-                    mExportThread.join();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Error while waiting for thread");
-                }
-                mExportRunnable.cleanUp();
                 mIsExporting = false;
+                resetSession();
             }
         } else {
             Log.e(TAG, "No action specified");
@@ -95,119 +218,284 @@ public class ExportUpdateService extends Service {
         return START_NOT_STICKY;
     }
 
+    private static List<ExportJob> getJobs(Intent intent) {
+        List<ExportJob> jobs = new ArrayList<>();
+        File[] sources = (File[]) intent.getSerializableExtra(EXTRA_SOURCE_FILES);
+        File[] destinations = (File[]) intent.getSerializableExtra(EXTRA_DEST_FILES);
+        String[] digests = intent.getStringArrayExtra(EXTRA_DIGESTS);
+        Uri treeUri = intent.getParcelableExtra(EXTRA_DEST_TREE_URI);
+        String[] names = intent.getStringArrayExtra(EXTRA_DEST_NAMES);
+        if (sources != null && destinations != null && sources.length == destinations.length) {
+            for (int i = 0; i < sources.length; i++) {
+                String digest = digests != null && i < digests.length ? digests[i] : null;
+                jobs.add(new ExportJob(sources[i], destinations[i], digest));
+            }
+        } else if (sources != null && treeUri != null && names != null &&
+                sources.length == names.length) {
+            for (int i = 0; i < sources.length; i++) {
+                String digest = digests != null && i < digests.length ? digests[i] : null;
+                jobs.add(new ExportJob(sources[i], treeUri, names[i], digest));
+            }
+        }
+
+        File source = (File) intent.getSerializableExtra(EXTRA_SOURCE_FILE);
+        File destination = (File) intent.getSerializableExtra(EXTRA_DEST_FILE);
+        if (source != null && destination != null) {
+            jobs.add(new ExportJob(source, destination, intent.getStringExtra(EXTRA_DIGEST)));
+        }
+        return jobs;
+    }
+
     private class ExportRunnable implements Runnable {
-        private final File mSource;
-        private final File mDestination;
+        private final ExportJob mJob;
         private final FileUtils.ProgressCallBack mProgressCallBack;
-        private final Runnable mRunnableComplete;
-        private final Runnable mRunnableFailed;
 
-        private ExportRunnable(File source, File destination,
-                FileUtils.ProgressCallBack progressCallBack,
-                Runnable runnableComplete, Runnable runnableFailed) {
-            mSource = source;
-            mDestination = destination;
+        private ExportRunnable(ExportJob job, FileUtils.ProgressCallBack progressCallBack) {
+            mJob = job;
             mProgressCallBack = progressCallBack;
-            mRunnableComplete = runnableComplete;
-            mRunnableFailed = runnableFailed;
         }
 
         @Override
         public void run() {
+            boolean success;
             try {
-                FileUtils.copyFile(mSource, mDestination, mProgressCallBack);
-                mIsExporting = false;
-                if (!mExportThread.isInterrupted()) {
-                    Log.d(TAG, "Completed");
-                    mRunnableComplete.run();
+                if (mJob.mTreeUri != null) {
+                    exportToTree(mJob, mProgressCallBack);
+                    Log.d(TAG, "Exported " + mJob.mName + " to " + mJob.mTreeUri);
                 } else {
-                    Log.d(TAG, "Aborted");
+                    FileExporter.Method method = FileExporter.export(mJob.mSource,
+                            mJob.mDestination, mJob.mDigest, mProgressCallBack);
+                    Log.d(TAG, "Exported " + mJob.mDestination + " (" + method + ")");
                 }
+                success = true;
             } catch (IOException e) {
-                mIsExporting = false;
-                Log.e(TAG, "Could not copy file", e);
-                mRunnableFailed.run();
-            } finally {
-                stopSelf();
+                if (!Thread.currentThread().isInterrupted()) {
+                    Log.e(TAG, "Could not export " + mJob.mSource, e);
+                }
+                success = false;
             }
+
+            if (Thread.currentThread().isInterrupted()) {
+                Log.d(TAG, "Aborted");
+                // Documents are kept so that the export can be resumed
+                if (mJob.mDestination != null) {
+                    //noinspection ResultOfMethodCallIgnored
+                    mJob.mDestination.delete();
+                }
+                return;
+            }
+            final boolean exported = success;
+            mMainHandler.post(() -> onJobDone(mJob, exported));
+        }
+    }
+
+    /**
+     * Stream the source into a document of the tree. The length synced so far is saved
+     * in the preferences, so an interrupted export continues where it stopped. The
+     * document is read back and its SHA-256 written next to it.
+     */
+    private void exportToTree(ExportJob job, FileUtils.ProgressCallBack progressCallBack)
+            throws IOException {
+        final ContentResolver resolver = getContentResolver();
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        final String stateKey = PREF_EXPORT_STATE_PREFIX +
+                Integer.toHexString((job.mTreeUri + "/" + job.mName).hashCode());
+        final Uri parentUri = DocumentsContract.buildDocumentUriUsingTree(job.mTreeUri,
+                DocumentsContract.getTreeDocumentId(job.mTreeUri));
+
+        Uri documentUri = null;
+        long offset = 0;
+        ParcelFileDescriptor pfd = null;
+        boolean readable = true;
+        try {
+            JSONObject state = new JSONObject(prefs.getString(stateKey, "{}"));
+            if (job.mSource.getAbsolutePath().equals(state.optString("source")) &&
+                    job.mSource.length() == state.optLong("length", -1)) {
+                documentUri = Uri.parse(state.getString("uri"));
+                offset = state.getLong("offset");
+                // "w" could truncate the document, only resume if it can seek
+                pfd = resolver.openFileDescriptor(documentUri, "rw");
+                Log.d(TAG, "Resuming " + job.mName + " from " + offset);
+            }
+        } catch (JSONException | FileNotFoundException | SecurityException |
+                IllegalArgumentException e) {
+            Log.d(TAG, "Can't resume " + job.mName + ", starting over", e);
+        }
+        if (pfd == null) {
+            documentUri = DocumentsContract.createDocument(resolver, parentUri, MIME_ZIP,
+                    job.mName);
+            if (documentUri == null) {
+                throw new IOException("Could not create " + job.mName);
+            }
+            pfd = openReadWrite(resolver, documentUri);
+            if (pfd == null) {
+                // We won't be able to read it back
+                pfd = resolver.openFileDescriptor(documentUri, "w");
+                readable = false;
+            }
+            if (pfd == null) {
+                throw new FileNotFoundException("Could not open " + documentUri);
+            }
+            offset = 0;
         }
 
-        private void cleanUp() {
-            //noinspection ResultOfMethodCallIgnored
-            mDestination.delete();
+        final Uri exportedUri = documentUri;
+        final String digest;
+        try (FileOutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+             FileInputStream is = readable ?
+                     new ParcelFileDescriptor.AutoCloseInputStream(pfd.dup()) : null) {
+            digest = FileExporter.exportToChannel(job.mSource, os.getChannel(),
+                    is != null ? is.getChannel() : null, offset, progressCallBack, length -> {
+                        try {
+                            JSONObject state = new JSONObject();
+                            state.put("source", job.mSource.getAbsolutePath());
+                            state.put("length", job.mSource.length());
+                            state.put("uri", exportedUri.toString());
+                            state.put("offset", length);
+                            prefs.edit().putString(stateKey, state.toString()).commit();
+                        } catch (JSONException e) {
+                            Log.e(TAG, "Could not save the export state", e);
+                        }
+                    });
+        } catch (FileExporter.MismatchException e) {
+            // Don't resume from a copy that went wrong
+            prefs.edit().remove(stateKey).apply();
+            DocumentsContract.deleteDocument(resolver, exportedUri);
+            throw e;
+        }
+
+        prefs.edit().remove(stateKey).apply();
+        if (job.mDigest != null && !job.mDigest.equalsIgnoreCase(digest)) {
+            DocumentsContract.deleteDocument(resolver, exportedUri);
+            throw new IOException("Digest mismatch for " + job.mName + ": " + digest);
+        }
+
+        // Same format as sha256sum
+        Uri sidecarUri = DocumentsContract.createDocument(resolver, parentUri, "text/plain",
+                job.mName + SIDECAR_EXT);
+        if (sidecarUri == null) {
+            throw new IOException("Could not create the checksum of " + job.mName);
+        }
+        try (OutputStream os = resolver.openOutputStream(sidecarUri)) {
+            if (os == null) {
+                throw new IOException("Could not open " + sidecarUri);
+            }
+            os.write((digest + "  " + job.mName + "\n").getBytes(StandardCharsets.UTF_8));
         }
     }
 
-    private void startExporting(File source, File destination) {
+    /**
+     * Needed to seek and read the document back, not all the providers support it.
+     *
+     * @return null if the provider doesn't
+     */
+    private static ParcelFileDescriptor openReadWrite(ContentResolver resolver, Uri uri) {
+        try {
+            return resolver.openFileDescriptor(uri, "rw");
+        } catch (FileNotFoundException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void startExporting() {
         NotificationManager notificationManager = getSystemService(NotificationManager.class);
         NotificationChannel notificationChannel = new NotificationChannel(
                 EXPORT_NOTIFICATION_CHANNEL,
                 getString(R.string.export_channel_title),
                 NotificationManager.IMPORTANCE_LOW);
         notificationManager.createNotificationChannel(notificationChannel);
+        if (mNotificationPublisher == null) {
+            mNotificationPublisher = new NotificationPublisher(this, EXPORT_NOTIFICATION_CHANNEL,
+                    NOTIFICATION_PROGRESS_INTERVAL_MS);
+        }
 
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this,
+        mNotificationBuilder = new NotificationCompat.Builder(this,
                 EXPORT_NOTIFICATION_CHANNEL);
-        NotificationCompat.BigTextStyle notificationStyle = new NotificationCompat.BigTextStyle();
-        notificationBuilder.setContentTitle(getString(R.string.dialog_export_title));
-        notificationStyle.setBigContentTitle(getString(R.string.dialog_export_title));
-        notificationStyle.bigText(destination.getName());
-        notificationBuilder.setStyle(notificationStyle);
-        notificationBuilder.setSmallIcon(R.drawable.ic_system_update);
-        notificationBuilder.addAction(android.R.drawable.ic_media_pause,
+        mNotificationStyle = new NotificationCompat.BigTextStyle();
+        mNotificationBuilder.setContentTitle(getString(R.string.dialog_export_title));
+        mNotificationStyle.setBigContentTitle(getString(R.string.dialog_export_title));
+        mNotificationBuilder.setStyle(mNotificationStyle);
+        mNotificationBuilder.setSmallIcon(R.drawable.ic_system_update);
+        mNotificationBuilder.addAction(android.R.drawable.ic_media_pause,
                 getString(android.R.string.cancel),
                 getStopPendingIntent());
 
-        FileUtils.ProgressCallBack progressCallBack = new FileUtils.ProgressCallBack() {
-            private long mLastUpdate = -1;
-
-            @Override
-            public void update(int progress) {
-                long now = SystemClock.elapsedRealtime();
-                if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                    String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-                    notificationStyle.setSummaryText(percent);
-                    notificationBuilder.setProgress(100, progress, false);
-                    notificationManager.notify(NOTIFICATION_ID,
-                            notificationBuilder.build());
-                    mLastUpdate = now;
-                }
-            }
-        };
-
-        startForeground(NOTIFICATION_ID, notificationBuilder.build());
-        notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-
-        Runnable runnableComplete = () -> {
-            notificationStyle.setSummaryText(null);
-            notificationStyle.setBigContentTitle(
-                    getString(R.string.notification_export_success));
-            notificationBuilder.setContentTitle(
-                    getString(R.string.notification_export_success));
-            notificationBuilder.setProgress(0, 0, false);
-            notificationBuilder.setContentText(destination.getName());
-            notificationBuilder.mActions.clear();
-            notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-            stopForeground(STOP_FOREGROUND_DETACH);
-        };
-
-        Runnable runnableFailed = () -> {
-            notificationStyle.setSummaryText(null);
-            notificationStyle.setBigContentTitle(
-                    getString(R.string.notification_export_fail));
-            notificationBuilder.setContentTitle(
-                    getString(R.string.notification_export_fail));
-            notificationBuilder.setProgress(0, 0, false);
-            notificationBuilder.setContentText(null);
-            notificationBuilder.mActions.clear();
-            notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-            stopForeground(STOP_FOREGROUND_DETACH);
-        };
-
-        mExportRunnable = new ExportRunnable(source, destination, progressCallBack,
-                runnableComplete, runnableFailed);
-        mExportThread = new Thread(mExportRunnable);
-        mExportThread.start();
+        startForeground(NOTIFICATION_ID, mNotificationBuilder.build());
+        exportNext();
+    }
+
+    private void exportNext() {
+        final ExportJob job = mPendingJobs.poll();
+        if (job == null) {
+            finishExporting();
+            return;
+        }
+
+        final int index = mJobCount - mPendingJobs.size();
+        mNotificationStyle.bigText(job.mName);
+        mNotificationStyle.setSummaryText(null);
+        mNotificationBuilder.setSubText(mJobCount > 1 ? index + "/" + mJobCount : null);
+        mNotificationBuilder.setProgress(100, 0, false);
+        mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
+
+        // Called on the export thread, the publisher builds the notification on the main one
+        FileUtils.ProgressCallBack progressCallBack = progress ->
+                mNotificationPublisher.publish(NOTIFICATION_ID, index * 101 + progress, () -> {
+                    if (!mIsExporting) {
+                        return null;
+                    }
+                    mNotificationStyle.setSummaryText(
+                            mNotificationPublisher.formatPercent(progress));
+                    mNotificationBuilder.setProgress(100, progress, false);
+                    return mNotificationBuilder.build();
+                });
+
+        try {
+            mExportTask = TaskExecutors.copy().submit(new ExportRunnable(job, progressCallBack));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not start exporting " + job.mName, e);
+            onJobDone(job, false);
+        }
+    }
+
+    private void onJobDone(ExportJob job, boolean success) {
+        if (!mIsExporting) {
+            // Stopped meanwhile
+            return;
+        }
+        if (success) {
+            mExportedNames.add(job.mName);
+        } else {
+            mFailedCount++;
+        }
+        exportNext();
+    }
+
+    private void finishExporting() {
+        final int title = mFailedCount == 0 ? R.string.notification_export_success :
+                R.string.notification_export_fail;
+        mNotificationStyle.setSummaryText(null);
+        mNotificationStyle.setBigContentTitle(getString(title));
+        mNotificationStyle.bigText(TextUtils.join("\n", mExportedNames));
+        mNotificationBuilder.setContentTitle(getString(title));
+        mNotificationBuilder.setSubText(null);
+        mNotificationBuilder.setProgress(0, 0, false);
+        mNotificationBuilder.setContentText(mExportedNames.isEmpty() ? null :
+                TextUtils.join(", ", mExportedNames));
+        mNotificationBuilder.mActions.clear();
+        mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
+        stopForeground(STOP_FOREGROUND_DETACH);
+
+        mIsExporting = false;
+        resetSession();
+        stopSelf();
+    }
+
+    private void resetSession() {
+        mPendingJobs.clear();
+        mExportedNames.clear();
+        mJobCount = 0;
+        mFailedCount = 0;
     }
 
     private PendingIntent getStopPendingIntent() {
@@ -22,13 +22,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
-import org.json.JSONException;
 import com.blissroms.updater.controller.UpdaterController;
 import com.blissroms.updater.controller.UpdaterService;
+import com.blissroms.updater.misc.Constants;
+import com.blissroms.updater.misc.FileUtils;
 import com.blissroms.updater.misc.StringGenerator;
+import com.blissroms.updater.misc.TaskExecutors;
 import com.blissroms.updater.misc.Utils;
+import com.blissroms.updater.misc.ZipReader;
 import com.blissroms.updater.model.Update;
 import com.blissroms.updater.model.UpdateInfo;
 import com.blissroms.updater.model.UpdateStatus;
@@ -36,29 +42,39 @@ import com.blissroms.updater.model.UpdateStatus;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public class UpdateImporter {
     private static final int REQUEST_PICK = 9061;
     private static final String TAG = "UpdateImporter";
     private static final String MIME_ZIP = "application/zip";
-    private static final String FILE_NAME = "localUpdate.zip";
+    private static final String PART_FILE_EXT = ".part";
     private static final String METADATA_PATH = "META-INF/com/android/metadata";
     private static final String METADATA_TIMESTAMP_KEY = "post-timestamp=";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final Map<String, ImportLock> sImportLocks = new ConcurrentHashMap<>();
 
     private final Activity activity;
     private final Context context;
     private final Callbacks callbacks;
 
-    private Thread workingThread;
+    private final Set<Future<?>> workingTasks =
+            Collections.newSetFromMap(new ConcurrentHashMap<>());
 
     public UpdateImporter(Activity activity, Callbacks callbacks) {
         this.activity = activity;
@@ -73,10 +89,10 @@ public class UpdateImporter {
     }
 
     public void stopImport() {
-        if (workingThread != null && workingThread.isAlive()) {
-            workingThread.interrupt();
-            workingThread = null;
+        for (Future<?> task : workingTasks) {
+            task.cancel(true);
         }
+        workingTasks.clear();
     }
 
     public void openImportPicker() {
@@ -102,76 +118,361 @@ public class UpdateImporter {
             return false;
         }
 
-        boolean ret = onPicked(parcelDescriptor);
-        try {
-            parcelDescriptor.close();
-        } catch (IOException e) {
-            return false;
-        }
-        return ret;
+        return onPicked(parcelDescriptor);
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
+    /**
+     * Import the given package in the background. The descriptor is closed once the
+     * import is done. Imports of different packages can run in parallel, importing a
+     * package that is already on disk reuses it.
+     */
     public boolean onPicked(ParcelFileDescriptor pfd) {
         callbacks.onImportStarted();
 
-        workingThread = new Thread(() -> {
-            File importedFile = null;
+        workingTasks.removeIf(Future::isDone);
+        final Future<?> task;
+        try {
+            task = TaskExecutors.copy().submit(() -> {
+                try {
+                    final Update update;
+                    try {
+                        update = importPackage(pfd);
+                    } finally {
+                        pfd.close();
+                    }
+                    runOnCallbackThread(() -> callbacks.onImportCompleted(update));
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to import update package", e);
+                    runOnCallbackThread(() -> callbacks.onImportCompleted(null));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Too many imports running", e);
             try {
-                importedFile = importFile(pfd);
-                verifyPackage(importedFile);
-
-                final Update update = buildLocalUpdate(importedFile);
-                addUpdate(update);
-                if (activity != null)
-                    activity.runOnUiThread(() -> callbacks.onImportCompleted(update));
-                else
-                    callbacks.onImportCompleted(update);
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to import update package", e);
-                // Do not store invalid update
-                if (importedFile != null) {
-                    importedFile.delete();
+                pfd.close();
+            } catch (IOException ignored) {
+            }
+            runOnCallbackThread(() -> callbacks.onImportCompleted(null));
+            return false;
+        }
+        workingTasks.add(task);
+        return true;
+    }
+
+    private void runOnCallbackThread(Runnable runnable) {
+        if (activity != null) {
+            activity.runOnUiThread(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    private static class ImportedFile {
+        private final File file;
+        private final long size;
+        private final String digest;
+        private final long timeStamp;
+        // Set when the package was not copied, file is null then
+        private final ParcelFileDescriptor descriptor;
+
+        private ImportedFile(File file, long size, String digest, long timeStamp,
+                ParcelFileDescriptor descriptor) {
+            this.file = file;
+            this.size = size;
+            this.digest = digest;
+            this.timeStamp = timeStamp;
+            this.descriptor = descriptor;
+        }
+    }
+
+    private interface Import {
+        Update run() throws Exception;
+    }
+
+    private static class ImportLock {
+        // Guarded by sImportLocks
+        private int users;
+    }
+
+    /**
+     * Run an import of downloadId once the other imports of the same package are done.
+     * The lock is dropped when nobody uses it anymore.
+     */
+    private static Update runLocked(String downloadId, Import task) throws Exception {
+        final ImportLock lock = sImportLocks.compute(downloadId, (id, current) -> {
+            final ImportLock l = current != null ? current : new ImportLock();
+            l.users++;
+            return l;
+        });
+        try {
+            synchronized (lock) {
+                return task.run();
+            }
+        } finally {
+            sImportLocks.computeIfPresent(downloadId,
+                    (id, current) -> --current.users == 0 ? null : current);
+        }
+    }
+
+    /**
+     * Packages are identified by a SHA-256 of their size and zip central directory,
+     * which holds the CRC32 and the size of every entry. That recognizes a package
+     * without reading it whole, but is weaker than a digest of the whole content: two
+     * packages with the same entries, CRCs and sizes get the same ID. We only ever
+     * reuse a copy we verified before, and when the package was read whole its digest
+     * has to match as well.
+     */
+    private static String getContentKey(FileChannel channel) throws IOException {
+        final MessageDigest digest = newSha256();
+        final ByteBuffer size = ByteBuffer.allocate(Long.BYTES);
+        size.putLong(channel.size()).flip();
+        digest.update(size);
+        new ZipReader(channel).digestCentralDirectory(digest);
+        return FileUtils.toHexString(digest.digest());
+    }
+
+    private static MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private Update importPackage(ParcelFileDescriptor pfd) throws Exception {
+        final long size = pfd.getStatSize();
+        if (size <= 0) {
+            // We can only read it once, identify the copy instead
+            final ImportedFile copy = importFile(pfd);
+            final String downloadId;
+            try (FileChannel channel = new FileInputStream(copy.file).getChannel()) {
+                downloadId = Update.LOCAL_ID_PREFIX + getContentKey(channel);
+            } catch (IOException e) {
+                copy.file.delete();
+                throw e;
+            }
+            return runLocked(downloadId, () -> {
+                final Update existing = findImported(downloadId, copy.size, copy.digest);
+                if (existing != null) {
+                    copy.file.delete();
+                    return existing;
                 }
+                return addUpdate(storeCopy(copy, downloadId), downloadId);
+            });
+        }
 
-                if (activity != null)
-                    activity.runOnUiThread(() -> callbacks.onImportCompleted(null));
-                else
-                    callbacks.onImportCompleted(null);
+        final String downloadId;
+        try (FileInputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd.dup())) {
+            downloadId = Update.LOCAL_ID_PREFIX + getContentKey(is.getChannel());
+        }
+        // Identical imports wait for each other, different ones run in parallel
+        return runLocked(downloadId, () -> {
+            final Update existing = findImported(downloadId, size, null);
+            if (existing != null) {
+                return existing;
+            }
+            ImportedFile imported = importInPlace(pfd);
+            if (imported == null) {
+                imported = storeCopy(importFile(pfd), downloadId);
             }
+            return addUpdate(imported, downloadId);
         });
-        workingThread.start();
-        return true;
     }
 
+    /**
+     * Look for the package among what we already have: a previous import, or a
+     * download we can link to.
+     *
+     * @param digest the SHA-256 of the package if it was read whole, null otherwise
+     * @return the update, null if the package has to be imported
+     */
+    private Update findImported(String downloadId, long size, String digest)
+            throws IOException {
+        final UpdaterController controller = UpdaterController.getInstance(context);
+        controller.awaitLoaded();
+        final UpdateInfo existing = controller.getUpdate(downloadId);
+        if (existing != null && digest != null && existing.getDigest() != null &&
+                !digest.equalsIgnoreCase(existing.getDigest())) {
+            Log.w(TAG, downloadId + " has a different content, replacing it");
+            return null;
+        }
+        if (existing != null && existing.getStatus() != UpdateStatus.DELETED &&
+                (existing.isDescriptorBacked() ||
+                        (existing.getFile() != null && existing.getFile().exists()))) {
+            Log.d(TAG, downloadId + " was already imported");
+            return new Update(existing);
+        }
+        if (digest != null) {
+            // What is on disk can't be checked against the digest without reading it,
+            // keep the copy we already have instead
+            return null;
+        }
+
+        final File file = getImportedFile(downloadId);
+        if (!file.exists() || file.length() != size) {
+            if (!linkDownloadedCopy(controller, downloadId, size, file)) {
+                return null;
+            }
+        } else {
+            Log.d(TAG, downloadId + " is already on disk");
+        }
+
+        final long timeStamp;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            timeStamp = getTimeStamp(channel);
+        }
+        return addUpdate(new ImportedFile(file, size, null, timeStamp, null), downloadId);
+    }
+
+    private boolean linkDownloadedCopy(UpdaterController controller, String downloadId,
+            long size, File destination) {
+        for (UpdateInfo update : controller.getUpdates()) {
+            final File file = update.getFile();
+            if (Update.isLocalId(update.getDownloadId()) ||
+                    update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED ||
+                    file == null || file.length() != size) {
+                continue;
+            }
+            try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                if (!downloadId.equals(Update.LOCAL_ID_PREFIX + getContentKey(channel))) {
+                    continue;
+                }
+                // A link rather than the same file, deleting either must not affect the other
+                Os.link(file.getAbsolutePath(), destination.getAbsolutePath());
+                Log.d(TAG, downloadId + " linked to " + update.getDownloadId());
+                return true;
+            } catch (IOException | ErrnoException e) {
+                Log.e(TAG, "Could not link " + file, e);
+            }
+        }
+        return false;
+    }
+
+    private File getImportedFile(String downloadId) {
+        return new File(Utils.getDownloadPath(context), downloadId + ".zip");
+    }
+
+    /**
+     * Verify the copy and move it where the imports of this package are stored.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private ImportedFile storeCopy(ImportedFile copy, String downloadId) throws Exception {
+        verifyPackage(copy.file);
+        final File file = getImportedFile(downloadId);
+        if (!copy.file.renameTo(file)) {
+            copy.file.delete();
+            throw new IOException("Could not rename " + copy.file + " to " + file);
+        }
+        return new ImportedFile(file, copy.size, copy.digest, copy.timeStamp, null);
+    }
+
+    /**
+     * A/B packages can be applied by update_engine from a descriptor, keep the one we
+     * were given instead of copying the package. The descriptor must be seekable.
+     *
+     * @return null if the package has to be copied
+     */
+    private ImportedFile importInPlace(ParcelFileDescriptor parcelDescriptor)
+            throws IOException {
+        final long size = parcelDescriptor.getStatSize();
+        if (!Utils.isABDevice() || size <= 0) {
+            return null;
+        }
+
+        final ParcelFileDescriptor descriptor = parcelDescriptor.dup();
+        try {
+            final long timeStamp;
+            try (FileInputStream is =
+                    new ParcelFileDescriptor.AutoCloseInputStream(descriptor.dup())) {
+                final FileChannel channel = is.getChannel();
+                final ZipReader zipReader = new ZipReader(channel);
+                final ZipReader.Entry payloadEntry =
+                        zipReader.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+                if (payloadEntry == null ||
+                        payloadEntry.getMethod() != ZipReader.METHOD_STORED ||
+                        zipReader.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) == null) {
+                    Log.d(TAG, "Not an A/B package, copying it");
+                    descriptor.close();
+                    return null;
+                }
+                timeStamp = getTimeStamp(channel);
+            }
+
+            // verifyPackage() only takes a path. This one is only valid in this process
+            // while we hold the descriptor, so it is used here and never stored
+            try {
+                android.os.RecoverySystem.verifyPackage(
+                        new File("/proc/self/fd/" + descriptor.getFd()), null, null);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Verification failed", e);
+            }
+            Log.d(TAG, "Imported " + size + " bytes in place");
+            return new ImportedFile(null, size, null, timeStamp, descriptor);
+        } catch (IOException | RuntimeException e) {
+            descriptor.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy the package to a temporary file, hashing it as it goes, then read its
+     * metadata from the copy through the zip central directory. The source is read
+     * only once.
+     */
     @SuppressLint("SetWorldReadable")
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private File importFile(ParcelFileDescriptor parcelDescriptor) throws IOException {
-        final FileInputStream iStream = new FileInputStream(parcelDescriptor
-                .getFileDescriptor());
+    private ImportedFile importFile(ParcelFileDescriptor parcelDescriptor) throws IOException {
         final File downloadDir = Utils.getDownloadPath(context);
-        final File outFile = new File(downloadDir, FILE_NAME);
-        if (outFile.exists()) {
+        final File outFile = File.createTempFile("import-", PART_FILE_EXT, downloadDir);
+        final MessageDigest digest = newSha256();
+
+        final long totalSize = parcelDescriptor.getStatSize();
+        final long timeStamp;
+        final long startMillis = SystemClock.elapsedRealtime();
+        try (FileChannel inChannel = new FileInputStream(
+                parcelDescriptor.getFileDescriptor()).getChannel();
+             FileChannel outChannel = new RandomAccessFile(outFile, "rw").getChannel()) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long copied = 0;
+            int lastProgress = -1;
+            while (inChannel.read(buffer) >= 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Import cancelled");
+                }
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    copied += outChannel.write(buffer);
+                }
+                buffer.clear();
+
+                if (totalSize > 0) {
+                    int progress = (int) (copied * 100 / totalSize);
+                    if (progress != lastProgress) {
+                        lastProgress = progress;
+                        final int p = progress;
+                        runOnCallbackThread(() -> callbacks.onImportProgress(p));
+                    }
+                }
+            }
+            timeStamp = getTimeStamp(outChannel);
+        } catch (IOException e) {
             outFile.delete();
+            throw e;
         }
-        final FileOutputStream oStream = new FileOutputStream(outFile);
-
-        int read;
-        final byte[] buffer = new byte[4096];
-        while ((read = iStream.read(buffer)) > 0) {
-            oStream.write(buffer, 0, read);
-        }
-        oStream.flush();
-        oStream.close();
-        iStream.close();
 
         outFile.setReadable(true, false);
+        Log.d(TAG, "Imported " + outFile.length() + " bytes in " +
+                (SystemClock.elapsedRealtime() - startMillis) + " ms");
 
-        return outFile;
+        return new ImportedFile(outFile, outFile.length(),
+                FileUtils.toHexString(digest.digest()), timeStamp, null);
     }
 
-    private Update buildLocalUpdate(File file) {
-        final long timeStamp = getTimeStamp(file);
+    private Update buildLocalUpdate(ImportedFile imported, String downloadId) {
+        final File file = imported.file;
+        final long timeStamp = imported.timeStamp;
         final String buildDate = StringGenerator.getDateLocalizedUTC(
                 context, DateFormat.MEDIUM, timeStamp);
         final String name = context.getString(R.string.local_update_name);
@@ -179,8 +480,10 @@ public class UpdateImporter {
         update.setAvailableOnline(false);
         update.setName(name);
         update.setFile(file);
-        update.setFileSize(file.length());
-        update.setDownloadId(Update.LOCAL_ID);
+        update.setDescriptorBacked(imported.descriptor != null);
+        update.setFileSize(imported.size);
+        update.setDigest(imported.digest);
+        update.setDownloadId(downloadId);
         update.setTimestamp(timeStamp);
         update.setStatus(UpdateStatus.VERIFIED);
         update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
@@ -202,14 +505,19 @@ public class UpdateImporter {
         }
     }
 
-    private void addUpdate(Update update) {
+    private Update addUpdate(ImportedFile imported, String downloadId) {
+        final Update update = buildLocalUpdate(imported, downloadId);
         UpdaterController controller = UpdaterController.getInstance(context);
-        controller.addUpdate(update, false);
+        if (!controller.addImportedUpdate(update, imported.descriptor)) {
+            throw new IllegalStateException("Could not add " + downloadId);
+        }
+        return update;
     }
 
-    private long getTimeStamp(File file) {
+    private long getTimeStamp(FileChannel channel) {
         try {
-            final String metadataContent = readZippedFile(file, METADATA_PATH);
+            final String metadataContent = new ZipReader(channel)
+                    .readEntryAsString(METADATA_PATH);
             final String[] lines = metadataContent.split("\n");
             for (String line : lines) {
                 if (!line.startsWith(METADATA_TIMESTAMP_KEY)) {
@@ -229,46 +537,12 @@ public class UpdateImporter {
         return System.currentTimeMillis();
     }
 
-    private String readZippedFile(File file, String path) throws IOException {
-        final StringBuilder sb = new StringBuilder();
-        InputStream iStream = null;
-
-        try (final ZipFile zip = new ZipFile(file)) {
-            final Enumeration<? extends ZipEntry> iterator = zip.entries();
-            while (iterator.hasMoreElements()) {
-                final ZipEntry entry = iterator.nextElement();
-                if (!METADATA_PATH.equals(entry.getName())) {
-                    continue;
-                }
-
-                iStream = zip.getInputStream(entry);
-                break;
-            }
-
-            if (iStream == null) {
-                throw new FileNotFoundException("Couldn't find " + path + " in " + file.getName());
-            }
-
-            final byte[] buffer = new byte[1024];
-            int read;
-            while ((read = iStream.read(buffer)) > 0) {
-                sb.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to read file from zip package", e);
-            throw e;
-        } finally {
-            if (iStream != null) {
-                iStream.close();
-            }
-        }
-
-        return sb.toString();
-    }
-
     public interface Callbacks {
         void onImportStarted();
 
         void onImportCompleted(Update update);
+
+        default void onImportProgress(int progress) {
+        }
     }
 }
@@ -0,0 +1,16 @@
+package com.blissroms.updater;
+
+import android.app.Application;
+import android.util.Log;
+
+public class UpdaterApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // The core module can't use android.util.Log itself
+        com.blissroms.updater.core.Log.setPrinter((priority, tag, msg, tr) ->
+                Log.println(priority, tag, tr == null ? msg :
+                        msg + '\n' + Log.getStackTraceString(tr)));
+    }
+}
@@ -0,0 +1,256 @@
+package com.blissroms.updater;
+
+import static com.blissroms.updater.model.Update.UpdateToUpdateItemInfo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.blissos.updatersdk.UpdateItemInfo;
+import com.blissroms.updater.controller.ProgressMemory;
+import com.blissroms.updater.controller.UpdaterController;
+import com.blissroms.updater.download.DownloadMetrics;
+import com.blissroms.updater.extension.DiagnosticsSnapshot;
+import com.blissroms.updater.extension.DownloadStats;
+import com.blissroms.updater.extension.IMetricsListener;
+import com.blissroms.updater.extension.IUpdaterExtension;
+import com.blissroms.updater.extension.MetricsSample;
+import com.blissroms.updater.extension.ProgressRegion;
+import com.blissroms.updater.extension.UpdatesDelta;
+import com.blissroms.updater.misc.UpdateCheckStats;
+import com.blissroms.updater.model.Update;
+import com.blissroms.updater.model.UpdateInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of IUpdaterExtension, returned by UpdaterPublicService.
+ */
+class UpdaterExtension extends IUpdaterExtension.Stub {
+
+    private static final String TAG = "UpdaterExtension";
+
+    static final String ACTION_BIND = "com.blissroms.updater.action.EXTENSION";
+
+    private static final long MIN_SAMPLE_INTERVAL_MS = 1000;
+    // Keeps a page well below the binder transaction limit
+    private static final int MAX_DELTA_COUNT = 64;
+
+    interface Callbacks {
+        /**
+         * The client of callback reads the progress from the shared memory from now on.
+         */
+        void onProgressRegionShared(IBinder callback);
+    }
+
+    private final UpdaterController mController;
+    private final Callbacks mCallbacks;
+    private final Handler mHandler;
+    private final Runnable mSampleRunnable = this::sample;
+
+    private final RemoteCallbackList<IMetricsListener> mListeners =
+            new RemoteCallbackList<IMetricsListener>() {
+        @Override
+        public void onCallbackDied(IMetricsListener listener, Object cookie) {
+            mHandler.post(() -> mLastSampleMillis.remove(listener.asBinder()));
+        }
+    };
+    // Only accessed on the handler thread
+    private final Map<IBinder, Long> mLastSampleMillis = new HashMap<>();
+    // Sampling runs while there are both listeners and active updates
+    private boolean mSampling;
+
+    UpdaterExtension(Context context, Callbacks callbacks) {
+        mController = UpdaterController.getInstance(context);
+        mCallbacks = callbacks;
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public DiagnosticsSnapshot getDiagnostics() {
+        mController.awaitLoaded();
+        UpdateCheckStats checks = UpdateCheckStats.get();
+        DiagnosticsSnapshot snapshot = new DiagnosticsSnapshot();
+        snapshot.setTimestamp(System.currentTimeMillis());
+        snapshot.setCheckCount(checks.getCheckCount());
+        snapshot.setCheckFailureCount(checks.getFailureCount());
+        snapshot.setCheckAverageMillis(checks.getAverageMillis());
+        snapshot.setCheckMaxMillis(checks.getMaxMillis());
+        snapshot.setLastCheckMillis(checks.getLastMillis());
+        snapshot.setCheckCacheHitRate(checks.getCacheHitRate());
+        List<DownloadStats> downloads = new ArrayList<>();
+        for (DownloadMetrics.Summary summary : mController.getMetricsHistory()) {
+            downloads.add(toDownloadStats(summary));
+        }
+        snapshot.setDownloads(downloads);
+        return snapshot;
+    }
+
+    @Override
+    public void subscribeMetrics(IMetricsListener listener, long intervalMillis) {
+        if (listener == null) {
+            return;
+        }
+        final long interval = Math.max(MIN_SAMPLE_INTERVAL_MS, intervalMillis);
+        mListeners.register(listener, interval);
+        mHandler.post(() -> {
+            mLastSampleMillis.put(listener.asBinder(), 0L);
+            startSampling();
+        });
+    }
+
+    @Override
+    public void unsubscribeMetrics(IMetricsListener listener) {
+        if (listener == null) {
+            return;
+        }
+        mListeners.unregister(listener);
+        mHandler.post(() -> mLastSampleMillis.remove(listener.asBinder()));
+    }
+
+    @Override
+    public ProgressRegion getProgressRegion(IBinder callback) {
+        ProgressMemory progressMemory = mController.getProgressMemory();
+        if (progressMemory == null) {
+            return null;
+        }
+        if (callback != null) {
+            mCallbacks.onProgressRegionShared(callback);
+        }
+        ProgressRegion region = new ProgressRegion();
+        region.setMemory(progressMemory.getMemory());
+        return region;
+    }
+
+    @Override
+    public UpdatesDelta getUpdatesSince(long epoch, long generation, long position) {
+        mController.awaitLoaded();
+        UpdaterController.Changes changes = mController.getChangesSince(epoch, generation,
+                position, MAX_DELTA_COUNT);
+        List<UpdateItemInfo> changed = new ArrayList<>();
+        for (UpdateInfo update : changes.getChanged()) {
+            changed.add(UpdateToUpdateItemInfo(new Update(update)));
+        }
+        UpdatesDelta delta = new UpdatesDelta();
+        delta.setEpoch(changes.getEpoch());
+        delta.setGeneration(changes.getGeneration());
+        delta.setPosition(changes.getPosition());
+        delta.setReset(changes.isReset());
+        delta.setHasMore(changes.hasMore());
+        delta.setChanged(changed);
+        delta.setRemoved(changes.getRemoved());
+        return delta;
+    }
+
+    /**
+     * Called when the status of an update changed, it might have become active.
+     */
+    void onUpdateStatusChanged() {
+        mHandler.post(this::startSampling);
+    }
+
+    /**
+     * Stop the thread, the extension can't be used anymore.
+     */
+    void quit() {
+        mListeners.kill();
+        mHandler.getLooper().quitSafely();
+    }
+
+    private void startSampling() {
+        if (!mSampling && !mLastSampleMillis.isEmpty()) {
+            mSampling = true;
+            mHandler.post(mSampleRunnable);
+        }
+    }
+
+    private void sample() {
+        final long now = SystemClock.elapsedRealtime();
+        final List<MetricsSample> samples = getSamples();
+        if (samples.isEmpty()) {
+            // Nothing to report until an update becomes active
+            mSampling = false;
+            return;
+        }
+        long nextDelay = Long.MAX_VALUE;
+        int count = mListeners.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                IMetricsListener listener = mListeners.getBroadcastItem(i);
+                long interval = (Long) mListeners.getBroadcastCookie(i);
+                Long last = mLastSampleMillis.get(listener.asBinder());
+                long elapsed = last != null ? now - last : interval;
+                if (elapsed < interval) {
+                    nextDelay = Math.min(nextDelay, interval - elapsed);
+                    continue;
+                }
+                nextDelay = Math.min(nextDelay, interval);
+                mLastSampleMillis.put(listener.asBinder(), now);
+                try {
+                    listener.onMetricsSamples(samples);
+                } catch (RemoteException e) {
+                    // Unregistered by RemoteCallbackList once the death is noticed
+                    Log.w(TAG, "Could not send metrics", e);
+                }
+            }
+        } finally {
+            mListeners.finishBroadcast();
+        }
+        // Stop sampling once everyone is gone
+        mSampling = count > 0;
+        if (mSampling) {
+            mHandler.postDelayed(mSampleRunnable, nextDelay);
+        }
+    }
+
+    private List<MetricsSample> getSamples() {
+        final long now = System.currentTimeMillis();
+        List<MetricsSample> samples = new ArrayList<>();
+        for (UpdateInfo update : mController.getActiveUpdates()) {
+            MetricsSample sample = new MetricsSample();
+            sample.setTimestamp(now);
+            sample.setDownloadId(update.getDownloadId());
+            sample.setStatus(update.getStatus().name());
+            sample.setDownloadedBytes(update.getDownloadedBytes());
+            sample.setFileSize(update.getFileSize());
+            sample.setSpeed(update.getSpeed());
+            sample.setEta(update.getEta());
+            sample.setInstallProgress(update.getInstallProgress());
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    private static DownloadStats toDownloadStats(DownloadMetrics.Summary summary) {
+        DownloadStats stats = new DownloadStats();
+        stats.setDownloadId(summary.getDownloadId());
+        stats.setResult(summary.getResult());
+        stats.setStartTime(summary.getStartTime());
+        stats.setAttempts(summary.getAttempts());
+        stats.setFirstTtfbMillis(summary.getFirstTtfbMillis());
+        stats.setLastTtfbMillis(summary.getLastTtfbMillis());
+        stats.setMirror(summary.getMirror());
+        stats.setBytes(summary.getBytes());
+        stats.setWastedBytes(summary.getWastedBytes());
+        stats.setStalls(summary.getStalls());
+        stats.setStallMillis(summary.getStallMillis());
+        stats.setActiveMillis(summary.getActiveMillis());
+        stats.setP10KibPerSecond(summary.getP10KibPerSecond());
+        stats.setMedianKibPerSecond(summary.getMedianKibPerSecond());
+        stats.setP90KibPerSecond(summary.getP90KibPerSecond());
+        stats.setVerifyMillis(summary.getVerifyMillis());
+        stats.setInstallMillis(summary.getInstallMillis());
+        return stats;
+    }
+}
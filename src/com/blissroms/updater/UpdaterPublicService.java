@@ -11,8 +11,12 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -27,6 +31,8 @@ import com.blissroms.updater.controller.UpdaterController;
 import com.blissroms.updater.controller.UpdaterService;
 import com.blissroms.updater.download.DownloadClient;
 import com.blissroms.updater.misc.Constants;
+import com.blissroms.updater.misc.TaskExecutors;
+import com.blissroms.updater.misc.UpdateCheckStats;
 import com.blissroms.updater.misc.Utils;
 import com.blissroms.updater.model.Update;
 import com.blissroms.updater.model.UpdateInfo;
@@ -34,36 +40,105 @@ import com.blissroms.updater.model.UpdateInfo;
 import org.json.JSONException;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public class UpdaterPublicService extends Service {
     private static final String TAG = UpdaterPublicService.class.getSimpleName();
 
+    // Progress sent to each client at most this often
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
     private Context mContext;
-    private IUpdaterCallback mCallback;
     private UpdaterService mUpdaterService;
+    private UpdaterExtension mExtension;
+
+    // The cookie of each callback is its CallbackDispatcher
+    private final RemoteCallbackList<IUpdaterCallback> mCallbacks =
+            new RemoteCallbackList<IUpdaterCallback>() {
+        @Override
+        public void onCallbackDied(IUpdaterCallback callback, Object cookie) {
+            CallbackDispatcher dispatcher = (CallbackDispatcher) cookie;
+            Log.d(TAG, "Client " + dispatcher.getPid() + " died");
+            synchronized (mCallbacks) {
+                mClients.remove(callback.asBinder(), dispatcher);
+            }
+            dispatcher.quit();
+        }
+    };
+    // Guarded by mCallbacks, a client is identified by its callback, a process can have
+    // several
+    private final Map<IBinder, CallbackDispatcher> mClients = new HashMap<>();
+    // Delays the progress of all the dispatchers, which deliver on a shared pool
+    private final Handler mDispatchHandler = new Handler(Looper.getMainLooper());
+    // Guarded by mCallbacks, the callbacks whose clients read the progress from the
+    // shared memory, each dropped when its binder dies
+    private final Set<IBinder> mProgressRegionCallbacks = new HashSet<>();
 
     @Override
     public void onCreate() {
         super.onCreate();
 
         mContext = this;
-        mCallback = null;
+        mExtension = new UpdaterExtension(this, this::onProgressRegionShared);
+
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
+        intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
+        intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
+        LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver,
+                intentFilter);
 
         Intent intent = new Intent(this, UpdaterService.class);
         startService(intent);
         bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
     }
 
+    @Override
+    public void onDestroy() {
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        synchronized (mCallbacks) {
+            for (CallbackDispatcher dispatcher : mClients.values()) {
+                dispatcher.quit();
+            }
+            mClients.clear();
+            mCallbacks.kill();
+        }
+        mExtension.quit();
+        unbindService(mConnection);
+        super.onDestroy();
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
+        if (UpdaterExtension.ACTION_BIND.equals(intent.getAction())) {
+            return mExtension;
+        }
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("UpdaterPublicService: connected=" + (mUpdaterService != null));
+        synchronized (mCallbacks) {
+            pw.println("  Clients: " + mClients.size());
+            for (CallbackDispatcher dispatcher : mClients.values()) {
+                dispatcher.dump(pw);
+            }
+        }
+        UpdaterController.getInstance(this).dump(pw);
+    }
+
     private final ServiceConnection mConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName className,
@@ -81,50 +156,93 @@ public class UpdaterPublicService extends Service {
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (mCallback == null) {
-                Log.e(TAG, "No callback found");
-
-                return;
-            }
-
+            String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
             if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                UpdateInfo update = mUpdaterService.getUpdaterController().getUpdate(downloadId);
-                try {
-                    mCallback.onStatusChange(UpdateToUpdateItemInfo(new Update(update)));
-                } catch (RemoteException e) {
-                    e.printStackTrace();
+                for (CallbackDispatcher dispatcher : getDispatchers()) {
+                    dispatcher.postStatusChange(downloadId);
                 }
+                mExtension.onUpdateStatusChanged();
             } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                UpdateInfo update = mUpdaterService.getUpdaterController().getUpdate(downloadId);
-                try {
-                    mCallback.onDownloadProgressChange(UpdateToUpdateItemInfo(new Update(update)));
-                } catch (RemoteException e) {
-                    e.printStackTrace();
+                for (CallbackDispatcher dispatcher : getDispatchers()) {
+                    dispatcher.offerProgress(downloadId, false);
                 }
             } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
-                String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                UpdateInfo update = mUpdaterService.getUpdaterController().getUpdate(downloadId);
+                for (CallbackDispatcher dispatcher : getDispatchers()) {
+                    dispatcher.offerProgress(downloadId, true);
+                }
+            }
+        }
+    };
+
+    private void onProgressRegionShared(IBinder callback) {
+        synchronized (mCallbacks) {
+            if (!mProgressRegionCallbacks.contains(callback)) {
                 try {
-                    mCallback.onInstallProgress(UpdateToUpdateItemInfo(new Update(update)));
+                    callback.linkToDeath(() -> {
+                        synchronized (mCallbacks) {
+                            mProgressRegionCallbacks.remove(callback);
+                        }
+                    }, 0);
                 } catch (RemoteException e) {
-                    e.printStackTrace();
+                    // Already dead
+                    return;
                 }
+                mProgressRegionCallbacks.add(callback);
+            }
+            CallbackDispatcher dispatcher = mClients.get(callback);
+            if (dispatcher != null) {
+                dispatcher.setProgressEnabled(false);
             }
         }
-    };
+    }
+
+    private List<CallbackDispatcher> getDispatchers() {
+        synchronized (mCallbacks) {
+            return new ArrayList<>(mClients.values());
+        }
+    }
+
+    private void notifyUpdateCheckCompleted(boolean newUpdates) {
+        for (CallbackDispatcher dispatcher : getDispatchers()) {
+            dispatcher.post(callback -> callback.onUpdateCheckCompleted(newUpdates));
+        }
+    }
 
     private final IBinder mBinder = new IUpdater.Stub() {
         @Override
         public void setCallback(IUpdaterCallback cb) throws RemoteException {
-            mCallback = cb;
-
-            IntentFilter intentFilter = new IntentFilter();
-            intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
-            intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
-            intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
-            LocalBroadcastManager.getInstance(mContext).registerReceiver(mBroadcastReceiver, intentFilter);
+            // Each callback is a client of its own, so that a library and its host app
+            // don't replace each other's. null can't tell them apart and removes all
+            // the callbacks of the calling process.
+            final int pid = Binder.getCallingPid();
+            synchronized (mCallbacks) {
+                if (cb == null) {
+                    Iterator<CallbackDispatcher> iterator = mClients.values().iterator();
+                    while (iterator.hasNext()) {
+                        CallbackDispatcher dispatcher = iterator.next();
+                        if (dispatcher.getPid() == pid) {
+                            iterator.remove();
+                            mCallbacks.unregister(dispatcher.getCallback());
+                            dispatcher.quit();
+                        }
+                    }
+                    return;
+                }
+                final IBinder binder = cb.asBinder();
+                if (mClients.containsKey(binder)) {
+                    return;
+                }
+                CallbackDispatcher dispatcher = new CallbackDispatcher(cb, pid,
+                        UpdaterController.getInstance(mContext), PROGRESS_INTERVAL_MS,
+                        TaskExecutors.callbacks(), mDispatchHandler);
+                dispatcher.setProgressEnabled(!mProgressRegionCallbacks.contains(binder));
+                if (mCallbacks.register(cb, dispatcher)) {
+                    mClients.put(binder, dispatcher);
+                } else {
+                    // Already dead
+                    dispatcher.quit();
+                }
+            }
         }
 
         @Override
@@ -143,12 +261,7 @@ public class UpdaterPublicService extends Service {
                 @Override
                 public void onFailure(boolean cancelled) {
                     Log.e(TAG, "Could not download updates list, scheduling new check");
-                    try {
-                        if (mCallback != null)
-                            mCallback.onUpdateCheckCompleted(false);
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
-                    }
+                    notifyUpdateCheckCompleted(false);
                 }
 
                 @Override
@@ -182,21 +295,11 @@ public class UpdaterPublicService extends Service {
                         //noinspection ResultOfMethodCallIgnored
                         jsonNew.renameTo(json);
 
-                        try {
-                            if (mCallback != null)
-                                mCallback.onUpdateCheckCompleted(newUpdates);
-                        } catch (RemoteException e) {
-                            e.printStackTrace();
-                        }
+                        notifyUpdateCheckCompleted(newUpdates);
                     } catch (IOException | JSONException e) {
                         Log.e(TAG, "Could not parse list");
                         e.printStackTrace();
-                        try {
-                            if (mCallback != null)
-                                mCallback.onUpdateCheckCompleted(false);
-                        } catch (RemoteException r) {
-                            r.printStackTrace();
-                        }
+                        notifyUpdateCheckCompleted(false);
                     }
                 }
             };
@@ -205,25 +308,22 @@ public class UpdaterPublicService extends Service {
                 DownloadClient downloadClient = new DownloadClient.Builder()
                         .setUrl(url)
                         .setDestination(jsonNew)
-                        .setDownloadCallback(callback)
+                        .setDownloadCallback(UpdateCheckStats.get().track(json, jsonNew,
+                                callback))
                         .build();
                 downloadClient.start();
             } catch (IOException e) {
                 Log.e(TAG, "Could not fetch list");
                 e.printStackTrace();
-
-                try {
-                    if (mCallback != null)
-                        mCallback.onUpdateCheckCompleted(false);
-                } catch (RemoteException r) {
-                    r.printStackTrace();
-                }
+                notifyUpdateCheckCompleted(false);
             }
         }
 
         @Override
         public List<UpdateItemInfo> getAvaliableUpdates() throws RemoteException {
-            List<UpdateInfo> updates = mUpdaterService.getUpdaterController().getUpdates();
+            UpdaterController controller = mUpdaterService.getUpdaterController();
+            controller.awaitLoaded();
+            List<UpdateInfo> updates = controller.getUpdates();
             List<UpdateItemInfo> ret = new ArrayList<>();
 
             for (UpdateInfo update: updates) {
@@ -237,7 +337,9 @@ public class UpdaterPublicService extends Service {
 
         @Override
         public void downloadUpdate(String id) throws RemoteException {
-            mUpdaterService.getUpdaterController().startDownload(id);
+            UpdaterController controller = mUpdaterService.getUpdaterController();
+            controller.awaitLoaded();
+            controller.startDownload(id);
         }
 
         @Override
@@ -286,27 +388,35 @@ public class UpdaterPublicService extends Service {
 
         @Override
         public void importUpdate(ParcelFileDescriptor pfd) throws RemoteException {
+            // Only the process that asked for the import hears about it
+            final int pid = Binder.getCallingPid();
+            final List<CallbackDispatcher> dispatchers = new ArrayList<>();
+            for (CallbackDispatcher dispatcher : getDispatchers()) {
+                if (dispatcher.getPid() == pid) {
+                    dispatchers.add(dispatcher);
+                }
+            }
             UpdateImporter ui = new UpdateImporter(mContext, new UpdateImporter.Callbacks() {
                 @Override
                 public void onImportStarted() {
-                    try {
-                        mCallback.onImportStarted();
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
+                    for (CallbackDispatcher dispatcher : dispatchers) {
+                        dispatcher.post(IUpdaterCallback::onImportStarted);
                     }
                 }
 
                 @Override
                 public void onImportCompleted(Update update) {
-                    try {
-                        mCallback.onImportCompleted(UpdateToUpdateItemInfo(update));
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
+                    if (dispatchers.isEmpty()) {
+                        return;
+                    }
+                    UpdateItemInfo info = UpdateToUpdateItemInfo(update);
+                    for (CallbackDispatcher dispatcher : dispatchers) {
+                        dispatcher.post(callback -> callback.onImportCompleted(info));
                     }
                 }
             });
-            Thread importThread = new Thread(() -> ui.onPicked(pfd));
-            importThread.start();
+            // The import itself runs on the shared I/O executor
+            ui.onPicked(pfd);
         }
     };
 }
@@ -89,8 +89,13 @@ public class UpdaterReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         if (ACTION_INSTALL_REBOOT.equals(intent.getAction())) {
+            // Reboot once the pending writes are committed, without holding the main thread
+            final PendingResult result = goAsync();
             PowerManager pm = context.getSystemService(PowerManager.class);
-            pm.reboot(null);
+            UpdatesDbWriter.getInstance(context).flush(() -> {
+                result.finish();
+                pm.reboot(null);
+            });
         } else if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
             pref.edit().remove(Constants.PREF_NEEDS_REBOOT_ID).apply();
@@ -71,30 +71,48 @@ import com.blissroms.updater.controller.UpdaterService;
 import com.blissroms.updater.download.DownloadClient;
 import com.blissroms.updater.misc.BuildInfoUtils;
 import com.blissroms.updater.misc.Constants;
+import com.blissroms.updater.misc.ProgressCoalescer;
 import com.blissroms.updater.misc.StringGenerator;
+import com.blissroms.updater.misc.TaskExecutors;
+import com.blissroms.updater.misc.UpdateCheckStats;
 import com.blissroms.updater.misc.Utils;
 import com.blissroms.updater.model.Update;
 import com.blissroms.updater.model.UpdateInfo;
+import com.blissroms.updater.model.UpdateStatus;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 public class UpdatesActivity extends UpdatesListActivity implements UpdateImporter.Callbacks {
 
     private static final String TAG = "UpdatesActivity";
+    private static final int REQUEST_PICK_EXPORT_TREE = 9062;
     private UpdaterService mUpdaterService;
     private BroadcastReceiver mBroadcastReceiver;
 
     private UpdatesListAdapter mAdapter;
+    private ProgressCoalescer mProgressCoalescer;
 
     private View mRefreshIconView;
     private RotateAnimation mRefreshAnimation;
 
     private boolean mIsTV;
 
+    // Only touched on the main thread
+    private int mListGeneration;
+    private int mAppliedListGeneration;
+
+    private String mPendingExportId;
+
 
     private UpdateImporter mUpdateImporter;
     @SuppressWarnings("deprecation")
@@ -113,6 +131,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         RecyclerView recyclerView = findViewById(R.id.recycler_view);
         mAdapter = new UpdatesListAdapter(this);
         recyclerView.setAdapter(mAdapter);
+        // Progress can change many times per frame, only draw the latest value
+        mProgressCoalescer = ProgressCoalescer.forFrames(mAdapter::notifyItemProgressChanged);
         RecyclerView.LayoutManager layoutManager = new LinearLayoutManager(this);
         recyclerView.setLayoutManager(layoutManager);
         RecyclerView.ItemAnimator animator = recyclerView.getItemAnimator();
@@ -125,16 +145,21 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             public void onReceive(Context context, Intent intent) {
                 if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
                     String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
+                    mProgressCoalescer.remove(downloadId);
                     handleDownloadStatusChange(downloadId);
                     mAdapter.notifyItemChanged(downloadId);
                 } else if (UpdaterController.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction()) ||
                         UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
                     String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
-                    mAdapter.notifyItemChanged(downloadId);
+                    mProgressCoalescer.offer(downloadId);
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
                     String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
                     mAdapter.removeItem(downloadId);
                     downloadUpdatesList(false);
+                } else if (UpdaterController.ACTION_UPDATES_LOADED.equals(intent.getAction())) {
+                    if (mUpdaterService != null) {
+                        refreshUpdatesList(mUpdaterService.getUpdaterController());
+                    }
                 }
             }
         };
@@ -210,6 +235,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
+        intentFilter.addAction(UpdaterController.ACTION_UPDATES_LOADED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
     }
 
@@ -227,12 +253,20 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     @Override
     public void onStop() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mProgressCoalescer.cancel();
         if (mUpdaterService != null) {
             unbindService(mConnection);
         }
         super.onStop();
     }
 
+    // adb shell dumpsys activity com.blissroms.updater/.UpdatesActivity
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mProgressCoalescer.dump(writer, "ProgressCoalescer");
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_toolbar, menu);
@@ -261,8 +295,38 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         return true;
     }
 
+    @Override
+    public void exportUpdateTo(String downloadId) {
+        mPendingExportId = downloadId;
+        startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE),
+                REQUEST_PICK_EXPORT_TREE);
+    }
+
+    private void onExportTreePicked(int resultCode, Intent data) {
+        final String downloadId = mPendingExportId;
+        mPendingExportId = null;
+        if (resultCode != RESULT_OK || data == null || data.getData() == null ||
+                downloadId == null) {
+            return;
+        }
+        final UpdateInfo update = UpdaterController.getInstance(this).getUpdate(downloadId);
+        if (update == null) {
+            return;
+        }
+        // Keep the access so that an interrupted export can be resumed later
+        final Uri treeUri = data.getData();
+        getContentResolver().takePersistableUriPermission(treeUri,
+                Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        ExportUpdateService.exportUpdatesToTree(this, Collections.singletonList(update),
+                treeUri);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
+        if (requestCode == REQUEST_PICK_EXPORT_TREE) {
+            onExportTreePicked(resultCode, data);
+            return;
+        }
         if (!mUpdateImporter.onResult(requestCode, resultCode, data)) {
             super.onActivityResult(requestCode, resultCode, data);
         }
@@ -275,8 +339,23 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             importDialog.dismiss();
         }
 
-        importDialog = ProgressDialog.show(this, getString(R.string.local_update_import),
-                getString(R.string.local_update_import_progress), true, false);
+        importDialog = new ProgressDialog(this);
+        importDialog.setTitle(R.string.local_update_import);
+        importDialog.setMessage(getString(R.string.local_update_import_progress));
+        importDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        importDialog.setIndeterminate(true);
+        importDialog.setCancelable(false);
+        importDialog.setMax(100);
+        importDialog.show();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void onImportProgress(int progress) {
+        if (importDialog != null) {
+            importDialog.setIndeterminate(false);
+            importDialog.setProgress(progress);
+        }
     }
 
     @Override
@@ -333,64 +412,166 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         }
     };
 
-    private void loadUpdatesList(File jsonFile, boolean manualRefresh)
-            throws IOException, JSONException {
-        Log.d(TAG, "Adding remote updates");
-        UpdaterController controller = mUpdaterService.getUpdaterController();
-        boolean newUpdates = false;
+    /**
+     * A parsed catalog along with the list as it will look once the catalog is merged.
+     */
+    private static class UpdatesList {
+        private final List<UpdateInfo> mUpdates;
+        private final List<String> mOnlineIds;
+        private final List<String> mSortedIds;
+
+        private UpdatesList(List<UpdateInfo> updates, List<String> onlineIds,
+                List<String> sortedIds) {
+            mUpdates = updates;
+            mOnlineIds = onlineIds;
+            mSortedIds = sortedIds;
+        }
+    }
 
+    // Runs in the background, the controller is only read
+    private static UpdatesList parseUpdatesList(UpdaterController controller, File jsonFile)
+            throws IOException, JSONException {
         List<UpdateInfo> updates = Utils.parseJson(jsonFile, true);
-        List<String> updatesOnline = new ArrayList<>();
+        Map<String, UpdateInfo> merged = new HashMap<>();
+        List<String> onlineIds = new ArrayList<>(updates.size());
         for (UpdateInfo update : updates) {
-            newUpdates |= controller.addUpdate(update);
-            updatesOnline.add(update.getDownloadId());
+            onlineIds.add(update.getDownloadId());
+            merged.put(update.getDownloadId(), update);
+        }
+        for (UpdateInfo update : controller.getUpdates()) {
+            // Like setUpdatesAvailableOnline(), drop what is neither online nor on disk
+            if (merged.containsKey(update.getDownloadId()) ||
+                    update.getPersistentStatus() != UpdateStatus.Persistent.UNKNOWN) {
+                merged.put(update.getDownloadId(), update);
+            }
         }
-        controller.setUpdatesAvailableOnline(updatesOnline, true);
+        List<UpdateInfo> sortedUpdates = new ArrayList<>(merged.values());
+        sortedUpdates.sort((u1, u2) -> Long.compare(u2.getTimestamp(), u1.getTimestamp()));
+        List<String> sortedIds = new ArrayList<>(sortedUpdates.size());
+        for (UpdateInfo update : sortedUpdates) {
+            sortedIds.add(update.getDownloadId());
+        }
+        return new UpdatesList(updates, onlineIds, sortedIds);
+    }
 
-        if (manualRefresh) {
-            showSnackbar(
-                    newUpdates ? R.string.snack_updates_found : R.string.snack_no_updates_found,
-                    Snackbar.LENGTH_SHORT);
+    /**
+     * Merge a parsed catalog into the controller, on the main thread like the other
+     * changes made to it from the UI. An older catalog never replaces a newer one.
+     *
+     * @return whether new updates were found
+     */
+    private boolean applyUpdatesList(UpdaterController controller, UpdatesList list,
+            int generation) {
+        if (generation < mAppliedListGeneration) {
+            return false;
         }
+        mAppliedListGeneration = generation;
+        Log.d(TAG, "Adding remote updates");
+        boolean newUpdates = false;
+        for (UpdateInfo update : list.mUpdates) {
+            newUpdates |= controller.addUpdate(update);
+        }
+        controller.setUpdatesAvailableOnline(list.mOnlineIds, true);
+        return newUpdates;
+    }
 
-        List<String> updateIds = new ArrayList<>();
+    private static List<String> getSortedUpdateIds(UpdaterController controller) {
         List<UpdateInfo> sortedUpdates = controller.getUpdates();
-        if (sortedUpdates.isEmpty()) {
+        sortedUpdates.sort((u1, u2) -> Long.compare(u2.getTimestamp(), u1.getTimestamp()));
+        List<String> updateIds = new ArrayList<>(sortedUpdates.size());
+        for (UpdateInfo update : sortedUpdates) {
+            updateIds.add(update.getDownloadId());
+        }
+        return updateIds;
+    }
+
+    private void refreshUpdatesList(UpdaterController controller) {
+        showUpdatesList(getSortedUpdateIds(controller), controller.isLoaded());
+    }
+
+    private void showUpdatesList(List<String> updateIds, boolean loaded) {
+        if (updateIds.isEmpty()) {
+            if (!loaded) {
+                // The stored updates are still being loaded, don't claim there are none
+                return;
+            }
             findViewById(R.id.no_new_updates_view).setVisibility(View.VISIBLE);
             findViewById(R.id.recycler_view).setVisibility(View.GONE);
         } else {
             findViewById(R.id.no_new_updates_view).setVisibility(View.GONE);
             findViewById(R.id.recycler_view).setVisibility(View.VISIBLE);
-            sortedUpdates.sort((u1, u2) -> Long.compare(u2.getTimestamp(), u1.getTimestamp()));
-            for (UpdateInfo update : sortedUpdates) {
-                updateIds.add(update.getDownloadId());
-            }
-            mAdapter.setData(updateIds);
-            mAdapter.notifyDataSetChanged();
+            mAdapter.submitList(updateIds);
         }
     }
 
+    /**
+     * Whether the result of a background load can still be shown. Only the most
+     * recent load is, older ones would overwrite a newer list.
+     */
+    private boolean isCurrentListLoad(int generation) {
+        return !isDestroyed() && generation == mListGeneration;
+    }
+
     private void getUpdatesList() {
-        File jsonFile = Utils.getCachedUpdateList(this);
-        if (jsonFile.exists()) {
-            try {
-                loadUpdatesList(jsonFile, false);
-                Log.d(TAG, "Cached list parsed");
-            } catch (IOException | JSONException e) {
-                Log.e(TAG, "Error while parsing json list", e);
-            }
-        } else {
-            downloadUpdatesList(false);
+        final UpdaterController controller = mUpdaterService.getUpdaterController();
+        // Show what we already know right away, the cached list is parsed in the background
+        refreshUpdatesList(controller);
+
+        final File jsonFile = Utils.getCachedUpdateList(this);
+        final int generation = ++mListGeneration;
+        try {
+            TaskExecutors.light().execute(() -> {
+                if (!jsonFile.exists()) {
+                    runOnUiThread(() -> {
+                        if (isCurrentListLoad(generation)) {
+                            downloadUpdatesList(false);
+                        }
+                    });
+                    return;
+                }
+                try {
+                    final UpdatesList list = parseUpdatesList(controller, jsonFile);
+                    Log.d(TAG, "Cached list parsed");
+                    runOnUiThread(() -> {
+                        applyUpdatesList(controller, list, generation);
+                        if (isCurrentListLoad(generation)) {
+                            showUpdatesList(list.mSortedIds, controller.isLoaded());
+                        }
+                    });
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, "Error while parsing json list", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not load the cached list", e);
         }
     }
 
     private void processNewJson(File json, File jsonNew, boolean manualRefresh) {
+        if (mUpdaterService == null) {
+            refreshAnimationStop();
+            return;
+        }
+        final UpdaterController controller = mUpdaterService.getUpdaterController();
+        final int generation = ++mListGeneration;
+        try {
+            TaskExecutors.light().execute(() -> parseNewJson(controller, json, jsonNew,
+                    manualRefresh, generation));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not read json", e);
+            refreshAnimationStop();
+            showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+        }
+    }
+
+    // Runs in the background
+    private void parseNewJson(UpdaterController controller, File json, File jsonNew,
+            boolean manualRefresh, int generation) {
         try {
-            loadUpdatesList(jsonNew, manualRefresh);
+            final UpdatesList list = parseUpdatesList(controller, jsonNew);
             SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
             long millis = System.currentTimeMillis();
             preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
-            updateLastCheckedString();
             if (json.exists() && Utils.isUpdateCheckEnabled(this) &&
                     Utils.checkForNewUpdates(json, jsonNew)) {
                 UpdatesCheckReceiver.updateRepeatingUpdatesCheck(this);
@@ -399,9 +580,29 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             UpdatesCheckReceiver.cancelUpdatesCheck(this);
             //noinspection ResultOfMethodCallIgnored
             jsonNew.renameTo(json);
+            runOnUiThread(() -> {
+                final boolean newUpdates = applyUpdatesList(controller, list, generation);
+                refreshAnimationStop();
+                if (isDestroyed()) {
+                    return;
+                }
+                updateLastCheckedString();
+                if (manualRefresh) {
+                    showSnackbar(newUpdates ? R.string.snack_updates_found :
+                            R.string.snack_no_updates_found, Snackbar.LENGTH_SHORT);
+                }
+                if (isCurrentListLoad(generation)) {
+                    showUpdatesList(list.mSortedIds, controller.isLoaded());
+                }
+            });
         } catch (IOException | JSONException e) {
             Log.e(TAG, "Could not read json", e);
-            showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+            runOnUiThread(() -> {
+                refreshAnimationStop();
+                if (!isDestroyed()) {
+                    showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+                }
+            });
         }
     }
 
@@ -432,7 +633,6 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                 runOnUiThread(() -> {
                     Log.d(TAG, "List downloaded");
                     processNewJson(jsonFile, jsonFileTmp, manualRefresh);
-                    refreshAnimationStop();
                 });
             }
         };
@@ -442,7 +642,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             downloadClient = new DownloadClient.Builder()
                     .setUrl(url)
                     .setDestination(jsonFileTmp)
-                    .setDownloadCallback(callback)
+                    .setDownloadCallback(UpdateCheckStats.get().track(jsonFile, jsonFileTmp,
+                            callback))
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -466,7 +667,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     }
 
     private void handleDownloadStatusChange(String downloadId) {
-        if (Update.LOCAL_ID.equals(downloadId)) {
+        if (Update.isLocalId(downloadId)) {
             return;
         }
 
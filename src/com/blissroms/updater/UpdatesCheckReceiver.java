@@ -34,6 +34,7 @@ import com.blissroms.updater.R;
 
 import com.blissroms.updater.download.DownloadClient;
 import com.blissroms.updater.misc.Constants;
+import com.blissroms.updater.misc.UpdateCheckStats;
 import com.blissroms.updater.misc.Utils;
 
 import java.io.File;
@@ -115,7 +116,8 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
             DownloadClient downloadClient = new DownloadClient.Builder()
                     .setUrl(url)
                     .setDestination(jsonNew)
-                    .setDownloadCallback(callback)
+                    .setDownloadCallback(UpdateCheckStats.get().track(json, jsonNew,
+                            callback))
                     .build();
             downloadClient.start();
         } catch (IOException e) {
@@ -22,6 +22,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 
+import com.blissroms.updater.download.DownloadMetrics;
 import com.blissroms.updater.model.Update;
 
 import java.io.File;
@@ -30,7 +31,7 @@ import java.util.List;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 3;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -41,8 +42,49 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TIMESTAMP = "timestamp";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        // Added in version 2
+        public static final String COLUMN_NAME_NAME = "name";
+        public static final String COLUMN_NAME_DOWNLOAD_URL = "download_url";
+        public static final String COLUMN_NAME_DIGEST = "digest";
+        public static final String COLUMN_NAME_BYTES_DONE = "bytes_done";
+        public static final String COLUMN_NAME_ETAG = "etag";
     }
 
+    // Added in version 3. Not tied to the updates table, the metrics of an update are
+    // kept after it is deleted
+    public static class MetricsEntry implements BaseColumns {
+        public static final String TABLE_NAME = "metrics";
+        public static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
+        public static final String COLUMN_NAME_RESULT = "result";
+        public static final String COLUMN_NAME_STARTED = "started";
+        public static final String COLUMN_NAME_ATTEMPTS = "attempts";
+        public static final String COLUMN_NAME_FIRST_TTFB = "first_ttfb_ms";
+        public static final String COLUMN_NAME_LAST_TTFB = "last_ttfb_ms";
+        public static final String COLUMN_NAME_MIRROR = "mirror";
+        public static final String COLUMN_NAME_BYTES = "bytes";
+        public static final String COLUMN_NAME_WASTED_BYTES = "wasted_bytes";
+        public static final String COLUMN_NAME_STALLS = "stalls";
+        public static final String COLUMN_NAME_STALL_TIME = "stall_ms";
+        public static final String COLUMN_NAME_ACTIVE_TIME = "active_ms";
+        public static final String COLUMN_NAME_SPEED_P10 = "kib_per_s_p10";
+        public static final String COLUMN_NAME_SPEED_P50 = "kib_per_s_p50";
+        public static final String COLUMN_NAME_SPEED_P90 = "kib_per_s_p90";
+        public static final String COLUMN_NAME_VERIFY_TIME = "verify_ms";
+        public static final String COLUMN_NAME_INSTALL_TIME = "install_ms";
+
+        public static final String RESULT_PAUSED = "paused";
+        public static final String RESULT_FAILED = "failed";
+        public static final String RESULT_DOWNLOADED = "downloaded";
+        public static final String RESULT_VERIFIED = "verified";
+        public static final String RESULT_VERIFICATION_FAILED = "verification_failed";
+        public static final String RESULT_INSTALLED = "installed";
+        public static final String RESULT_INSTALLATION_FAILED = "installation_failed";
+
+        // Older rows are dropped
+        static final int MAX_ROWS = 50;
+    }
+
+    // download_id is UNIQUE, so SQLite already maintains an index on it
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + UpdateEntry.TABLE_NAME + " (" +
                     UpdateEntry._ID + " INTEGER PRIMARY KEY," +
@@ -51,26 +93,87 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_NAME + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_URL + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_DIGEST + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_BYTES_DONE + " INTEGER NOT NULL DEFAULT 0," +
+                    UpdateEntry.COLUMN_NAME_ETAG + " TEXT)";
+
+    private static final String SQL_CREATE_TIMESTAMP_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + UpdateEntry.TABLE_NAME + "_timestamp_idx ON " +
+                    UpdateEntry.TABLE_NAME + " (" + UpdateEntry.COLUMN_NAME_TIMESTAMP + ")";
+
+    private static final String SQL_CREATE_METRICS =
+            "CREATE TABLE " + MetricsEntry.TABLE_NAME + " (" +
+                    MetricsEntry._ID + " INTEGER PRIMARY KEY," +
+                    MetricsEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
+                    MetricsEntry.COLUMN_NAME_RESULT + " TEXT," +
+                    MetricsEntry.COLUMN_NAME_STARTED + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_ATTEMPTS + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_FIRST_TTFB + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_LAST_TTFB + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_MIRROR + " TEXT," +
+                    MetricsEntry.COLUMN_NAME_BYTES + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_WASTED_BYTES + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_STALLS + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_STALL_TIME + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_ACTIVE_TIME + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_SPEED_P10 + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_SPEED_P50 + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_SPEED_P90 + " INTEGER," +
+                    MetricsEntry.COLUMN_NAME_VERIFY_TIME + " INTEGER NOT NULL DEFAULT -1," +
+                    MetricsEntry.COLUMN_NAME_INSTALL_TIME + " INTEGER NOT NULL DEFAULT -1)";
+
+    static final String SQL_TRIM_METRICS =
+            "DELETE FROM " + MetricsEntry.TABLE_NAME + " WHERE " + MetricsEntry._ID +
+                    " NOT IN (SELECT " + MetricsEntry._ID + " FROM " +
+                    MetricsEntry.TABLE_NAME + " ORDER BY " + MetricsEntry.COLUMN_NAME_STARTED +
+                    " DESC LIMIT " + MetricsEntry.MAX_ROWS + ")";
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
 
+    private static final String SQL_DELETE_METRICS =
+            "DROP TABLE IF EXISTS " + MetricsEntry.TABLE_NAME;
+
     public UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Let UpdatesDbWriter commit without blocking readers
+        setWriteAheadLoggingEnabled(true);
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_TIMESTAMP_INDEX);
+        db.execSQL(SQL_CREATE_METRICS);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Each step upgrades the schema by one version, fall through to the next one
+        switch (oldVersion) {
+            case 1:
+                addColumn(db, UpdateEntry.COLUMN_NAME_NAME, "TEXT");
+                addColumn(db, UpdateEntry.COLUMN_NAME_DOWNLOAD_URL, "TEXT");
+                addColumn(db, UpdateEntry.COLUMN_NAME_DIGEST, "TEXT");
+                addColumn(db, UpdateEntry.COLUMN_NAME_BYTES_DONE, "INTEGER NOT NULL DEFAULT 0");
+                addColumn(db, UpdateEntry.COLUMN_NAME_ETAG, "TEXT");
+                db.execSQL(SQL_CREATE_TIMESTAMP_INDEX);
+            case 2:
+                db.execSQL(SQL_CREATE_METRICS);
+        }
+    }
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // We don't know what a newer schema looks like, start over
         db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_METRICS);
         onCreate(db);
     }
 
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+    private static void addColumn(SQLiteDatabase db, String column, String type) {
+        db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " + column + " " +
+                type);
     }
 
     public void addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
@@ -80,13 +183,43 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         db.insertWithOnConflict(UpdateEntry.TABLE_NAME, null, values, conflictAlgorithm);
     }
 
-    private static void fillContentValues(Update update, ContentValues values) {
+    static void fillContentValues(Update update, ContentValues values) {
         values.put(UpdateEntry.COLUMN_NAME_STATUS, update.getPersistentStatus());
         values.put(UpdateEntry.COLUMN_NAME_PATH, update.getFile().getAbsolutePath());
         values.put(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID, update.getDownloadId());
         values.put(UpdateEntry.COLUMN_NAME_TIMESTAMP, update.getTimestamp());
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+        values.put(UpdateEntry.COLUMN_NAME_NAME, update.getName());
+        values.put(UpdateEntry.COLUMN_NAME_DOWNLOAD_URL, update.getDownloadUrl());
+        values.put(UpdateEntry.COLUMN_NAME_DIGEST, update.getDigest());
+        fillProgressContentValues(update, values);
+    }
+
+    static void fillProgressContentValues(Update update, ContentValues values) {
+        values.put(UpdateEntry.COLUMN_NAME_BYTES_DONE, update.getDownloadedBytes());
+        values.put(UpdateEntry.COLUMN_NAME_ETAG, update.getETag());
+    }
+
+    static void fillMetricsContentValues(DownloadMetrics.Summary summary,
+            ContentValues values) {
+        values.put(MetricsEntry.COLUMN_NAME_DOWNLOAD_ID, summary.getDownloadId());
+        values.put(MetricsEntry.COLUMN_NAME_RESULT, summary.getResult());
+        values.put(MetricsEntry.COLUMN_NAME_STARTED, summary.getStartTime());
+        values.put(MetricsEntry.COLUMN_NAME_ATTEMPTS, summary.getAttempts());
+        values.put(MetricsEntry.COLUMN_NAME_FIRST_TTFB, summary.getFirstTtfbMillis());
+        values.put(MetricsEntry.COLUMN_NAME_LAST_TTFB, summary.getLastTtfbMillis());
+        values.put(MetricsEntry.COLUMN_NAME_MIRROR, summary.getMirror());
+        values.put(MetricsEntry.COLUMN_NAME_BYTES, summary.getBytes());
+        values.put(MetricsEntry.COLUMN_NAME_WASTED_BYTES, summary.getWastedBytes());
+        values.put(MetricsEntry.COLUMN_NAME_STALLS, summary.getStalls());
+        values.put(MetricsEntry.COLUMN_NAME_STALL_TIME, summary.getStallMillis());
+        values.put(MetricsEntry.COLUMN_NAME_ACTIVE_TIME, summary.getActiveMillis());
+        values.put(MetricsEntry.COLUMN_NAME_SPEED_P10, summary.getP10KibPerSecond());
+        values.put(MetricsEntry.COLUMN_NAME_SPEED_P50, summary.getMedianKibPerSecond());
+        values.put(MetricsEntry.COLUMN_NAME_SPEED_P90, summary.getP90KibPerSecond());
+        values.put(MetricsEntry.COLUMN_NAME_VERIFY_TIME, summary.getVerifyMillis());
+        values.put(MetricsEntry.COLUMN_NAME_INSTALL_TIME, summary.getInstallMillis());
     }
 
     public void removeUpdate(String downloadId) {
@@ -123,6 +256,11 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 UpdateEntry.COLUMN_NAME_VERSION,
                 UpdateEntry.COLUMN_NAME_STATUS,
                 UpdateEntry.COLUMN_NAME_SIZE,
+                UpdateEntry.COLUMN_NAME_NAME,
+                UpdateEntry.COLUMN_NAME_DOWNLOAD_URL,
+                UpdateEntry.COLUMN_NAME_DIGEST,
+                UpdateEntry.COLUMN_NAME_BYTES_DONE,
+                UpdateEntry.COLUMN_NAME_ETAG,
         };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
         Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
@@ -133,7 +271,13 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 Update update = new Update();
                 int index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PATH);
                 update.setFile(new File(cursor.getString(index)));
-                update.setName(update.getFile().getName());
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_NAME);
+                if (cursor.isNull(index)) {
+                    // Entries added before version 2 only know the file name
+                    update.setName(update.getFile().getName());
+                } else {
+                    update.setName(cursor.getString(index));
+                }
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_DOWNLOAD_ID);
                 update.setDownloadId(cursor.getString(index));
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_TIMESTAMP);
@@ -144,10 +288,78 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 update.setPersistentStatus(cursor.getInt(index));
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
                 update.setFileSize(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_DOWNLOAD_URL);
+                update.setDownloadUrl(cursor.getString(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_DIGEST);
+                update.setDigest(cursor.getString(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_BYTES_DONE);
+                update.setDownloadedBytes(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_ETAG);
+                update.setETag(cursor.getString(index));
                 updates.add(update);
             }
             cursor.close();
         }
         return updates;
     }
+
+    public DownloadMetrics.Summary getMetrics(String downloadId) {
+        String selection = MetricsEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {downloadId};
+        List<DownloadMetrics.Summary> metrics = getMetrics(selection, selectionArgs);
+        return metrics.isEmpty() ? null : metrics.get(0);
+    }
+
+    /**
+     * @return the metrics of the most recent downloads first
+     */
+    public List<DownloadMetrics.Summary> getMetrics(String selection, String[] selectionArgs) {
+        SQLiteDatabase db = getReadableDatabase();
+        String sort = MetricsEntry.COLUMN_NAME_STARTED + " DESC";
+        Cursor cursor = db.query(MetricsEntry.TABLE_NAME, null, selection, selectionArgs,
+                null, null, sort);
+        List<DownloadMetrics.Summary> metrics = new ArrayList<>();
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                DownloadMetrics.Summary summary = new DownloadMetrics.Summary();
+                summary.setDownloadId(cursor.getString(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_DOWNLOAD_ID)));
+                summary.setResult(cursor.getString(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_RESULT)));
+                summary.setStartTime(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_STARTED)));
+                summary.setAttempts(cursor.getInt(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_ATTEMPTS)));
+                summary.setFirstTtfbMillis(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_FIRST_TTFB)));
+                summary.setLastTtfbMillis(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_LAST_TTFB)));
+                summary.setMirror(cursor.getString(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_MIRROR)));
+                summary.setBytes(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_BYTES)));
+                summary.setWastedBytes(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_WASTED_BYTES)));
+                summary.setStalls(cursor.getInt(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_STALLS)));
+                summary.setStallMillis(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_STALL_TIME)));
+                summary.setActiveMillis(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_ACTIVE_TIME)));
+                summary.setP10KibPerSecond(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_SPEED_P10)));
+                summary.setMedianKibPerSecond(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_SPEED_P50)));
+                summary.setP90KibPerSecond(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_SPEED_P90)));
+                summary.setVerifyMillis(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_VERIFY_TIME)));
+                summary.setInstallMillis(cursor.getLong(
+                        cursor.getColumnIndex(MetricsEntry.COLUMN_NAME_INSTALL_TIME)));
+                metrics.add(summary);
+            }
+            cursor.close();
+        }
+        return metrics;
+    }
 }
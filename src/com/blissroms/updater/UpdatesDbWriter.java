@@ -0,0 +1,255 @@
+package com.blissroms.updater;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.blissroms.updater.UpdatesDbHelper.MetricsEntry;
+import com.blissroms.updater.UpdatesDbHelper.UpdateEntry;
+import com.blissroms.updater.download.DownloadMetrics;
+import com.blissroms.updater.model.Update;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue in front of UpdatesDbHelper.
+ *
+ * Writes are snapshotted when queued, merged per download_id and committed in a
+ * single transaction on a dedicated writer thread. flush() is a barrier that
+ * returns once everything queued before it has been committed, flush(Runnable)
+ * commits them without making the caller wait.
+ */
+public class UpdatesDbWriter {
+
+    private static final String TAG = "UpdatesDbWriter";
+
+    private static final long FLUSH_DELAY_MS = 250;
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    private static UpdatesDbWriter sInstance;
+
+    private final UpdatesDbHelper mDbHelper;
+    private final HandlerThread mWriterThread;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private final Map<String, PendingWrite> mPending = new LinkedHashMap<>();
+    private final Map<String, PendingWrite> mPendingMetrics = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    private static final int WRITE_INSERT = 0;
+    private static final int WRITE_UPDATE = 1;
+    private static final int WRITE_DELETE = 2;
+
+    private static class PendingWrite {
+        int mType;
+        ContentValues mValues;
+
+        private PendingWrite(int type, ContentValues values) {
+            mType = type;
+            mValues = values;
+        }
+    }
+
+    public static synchronized UpdatesDbWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdatesDbWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UpdatesDbWriter(Context context) {
+        mDbHelper = new UpdatesDbHelper(context);
+        mWriterThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mWriterThread.start();
+        mHandler = new Handler(mWriterThread.getLooper());
+    }
+
+    /**
+     * The helper shared by all the components of the app. Use it for reads only,
+     * writes should go through this class.
+     */
+    public UpdatesDbHelper getDbHelper() {
+        return mDbHelper;
+    }
+
+    public void addUpdate(Update update) {
+        ContentValues values = new ContentValues();
+        UpdatesDbHelper.fillContentValues(update, values);
+        enqueue(update.getDownloadId(), WRITE_INSERT, values);
+    }
+
+    public void changeUpdateStatus(Update update) {
+        ContentValues values = new ContentValues();
+        values.put(UpdateEntry.COLUMN_NAME_STATUS, update.getPersistentStatus());
+        enqueue(update.getDownloadId(), WRITE_UPDATE, values);
+    }
+
+    public void changeDownloadProgress(Update update) {
+        ContentValues values = new ContentValues();
+        UpdatesDbHelper.fillProgressContentValues(update, values);
+        enqueue(update.getDownloadId(), WRITE_UPDATE, values);
+    }
+
+    public void removeUpdate(String downloadId) {
+        enqueue(downloadId, WRITE_DELETE, null);
+    }
+
+    /**
+     * Replace the metrics stored for the download of summary.
+     */
+    public void addMetrics(DownloadMetrics.Summary summary) {
+        ContentValues values = new ContentValues();
+        UpdatesDbHelper.fillMetricsContentValues(summary, values);
+        enqueue(mPendingMetrics, summary.getDownloadId(), WRITE_INSERT, values);
+    }
+
+    /**
+     * Record how the installation went, if the download has metrics stored.
+     */
+    public void changeInstallMetrics(String downloadId, String result, long installMillis) {
+        ContentValues values = new ContentValues();
+        values.put(MetricsEntry.COLUMN_NAME_RESULT, result);
+        values.put(MetricsEntry.COLUMN_NAME_INSTALL_TIME, installMillis);
+        enqueue(mPendingMetrics, downloadId, WRITE_UPDATE, values);
+    }
+
+    private void enqueue(String downloadId, int type, ContentValues values) {
+        enqueue(mPending, downloadId, type, values);
+    }
+
+    private void enqueue(Map<String, PendingWrite> queue, String downloadId, int type,
+            ContentValues values) {
+        synchronized (mLock) {
+            PendingWrite pending = queue.get(downloadId);
+            if (pending == null || type != WRITE_UPDATE) {
+                // Inserts replace the whole row and deletes drop it, so whatever
+                // was queued before for this row is no longer relevant
+                queue.put(downloadId, new PendingWrite(type, values));
+            } else if (pending.mType != WRITE_DELETE) {
+                // Fold the changed columns in the pending insert or update
+                pending.mValues.putAll(values);
+            }
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(this::writePending, FLUSH_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Commit all the writes queued so far now, then run onFlushed on the writer thread.
+     *
+     * @param onFlushed may be null
+     */
+    public void flush(Runnable onFlushed) {
+        if (Looper.myLooper() == mWriterThread.getLooper()) {
+            writePending();
+            if (onFlushed != null) {
+                onFlushed.run();
+            }
+            return;
+        }
+        mHandler.postAtFrontOfQueue(() -> {
+            writePending();
+            if (onFlushed != null) {
+                onFlushed.run();
+            }
+        });
+    }
+
+    /**
+     * Wait until all the writes queued so far have been committed. Blocks for up to
+     * two seconds, keep it off the main thread unless nothing may run before the
+     * writes are done, like before a reboot.
+     */
+    public void flush() {
+        if (Looper.myLooper() == mWriterThread.getLooper()) {
+            writePending();
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.postAtFrontOfQueue(() -> {
+            writePending();
+            latch.countDown();
+        });
+        try {
+            if (!latch.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Timed out while flushing pending writes");
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while flushing pending writes");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writePending() {
+        List<Map.Entry<String, PendingWrite>> writes;
+        List<Map.Entry<String, PendingWrite>> metricsWrites;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty() && mPendingMetrics.isEmpty()) {
+                return;
+            }
+            writes = new ArrayList<>(mPending.entrySet());
+            mPending.clear();
+            metricsWrites = new ArrayList<>(mPendingMetrics.entrySet());
+            mPendingMetrics.clear();
+        }
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            write(db, UpdateEntry.TABLE_NAME, UpdateEntry.COLUMN_NAME_DOWNLOAD_ID, writes);
+            if (write(db, MetricsEntry.TABLE_NAME, MetricsEntry.COLUMN_NAME_DOWNLOAD_ID,
+                    metricsWrites)) {
+                db.execSQL(UpdatesDbHelper.SQL_TRIM_METRICS);
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not write " + writes.size() + " updates and " +
+                    metricsWrites.size() + " metrics", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return whether rows were inserted
+     */
+    private static boolean write(SQLiteDatabase db, String table, String keyColumn,
+            List<Map.Entry<String, PendingWrite>> writes) {
+        String selection = keyColumn + " = ?";
+        boolean inserted = false;
+        for (Map.Entry<String, PendingWrite> write : writes) {
+            String[] selectionArgs = {write.getKey()};
+            PendingWrite pending = write.getValue();
+            switch (pending.mType) {
+                case WRITE_INSERT:
+                    db.insertWithOnConflict(table, null, pending.mValues,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                    inserted = true;
+                    break;
+                case WRITE_UPDATE:
+                    db.update(table, pending.mValues, selection, selectionArgs);
+                    break;
+                case WRITE_DELETE:
+                    db.delete(table, selection, selectionArgs);
+                    break;
+            }
+        }
+        return inserted;
+    }
+}
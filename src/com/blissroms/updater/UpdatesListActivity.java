@@ -19,4 +19,6 @@ import androidx.appcompat.app.AppCompatActivity;
 
 public abstract class UpdatesListActivity extends AppCompatActivity {
     public abstract void showSnackbar(int stringId, int duration);
+
+    public abstract void exportUpdateTo(String downloadId);
 }
@@ -21,6 +21,8 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.os.AsyncTask;
 import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.preference.PreferenceManager;
 import android.text.SpannableString;
@@ -45,6 +47,7 @@ import androidx.appcompat.view.ContextThemeWrapper;
 import androidx.appcompat.view.menu.MenuBuilder;
 import androidx.appcompat.view.menu.MenuPopupHelper;
 import androidx.appcompat.widget.PopupMenu;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.snackbar.Snackbar;
@@ -54,6 +57,7 @@ import com.blissroms.updater.misc.BuildInfoUtils;
 import com.blissroms.updater.misc.Constants;
 import com.blissroms.updater.misc.PermissionsUtils;
 import com.blissroms.updater.misc.StringGenerator;
+import com.blissroms.updater.misc.TaskExecutors;
 import com.blissroms.updater.misc.Utils;
 import com.blissroms.updater.model.UpdateInfo;
 import com.blissroms.updater.model.UpdateStatus;
@@ -61,14 +65,18 @@ import com.blissroms.updater.model.UpdateStatus;
 import com.blissroms.updater.R;
 
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.net.URL;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
 
 public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.ViewHolder> {
 
@@ -78,9 +86,26 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             | BatteryManager.BATTERY_PLUGGED_USB
             | BatteryManager.BATTERY_PLUGGED_WIRELESS;
 
+    // Only the progress of the row changed, see onBindViewHolder(ViewHolder, int, List)
+    private static final Object PAYLOAD_PROGRESS = new Object();
+
+    private static final int BOUND_OTHER = 0;
+    private static final int BOUND_DOWNLOADING = 1;
+    private static final int BOUND_INSTALLING = 2;
+
     private final float mAlphaDisabledValue;
 
+    private final NumberFormat mPercentFormat = NumberFormat.getPercentInstance();
+    private final String[] mPercentStrings = new String[101];
+    private final Map<Long, String> mBuildDateStrings = new HashMap<>();
+
     private List<String> mDownloadIds;
+    // Position of each download ID in mDownloadIds
+    private final Map<String, Integer> mPositions = new HashMap<>();
+    // Signature of the state each row was last bound with
+    private final Map<String, Integer> mBoundSignatures = new HashMap<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private int mListGeneration;
     private String mSelectedDownload;
     private UpdaterController mUpdaterController;
     private final UpdatesListActivity mActivity;
@@ -111,6 +136,12 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         private final ProgressBar mProgressBar;
         private final TextView mProgressText;
 
+        // What the progress views were last bound for
+        private int mBoundMode = BOUND_OTHER;
+        private boolean mBoundNotAB;
+        private long mBoundFileSize = -1;
+        private String mBoundTotalSize;
+
         public ViewHolder(final View view) {
             super(view);
             mAction = view.findViewById(R.id.update_action);
@@ -162,48 +193,31 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         final String downloadId = update.getDownloadId();
         if (mUpdaterController.isDownloading(downloadId)) {
             canDelete = true;
-            String downloaded = StringGenerator.bytesToMegabytes(mActivity,
-                    update.getFile().length());
-            String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
-            String percentage = NumberFormat.getPercentInstance().format(
-                    update.getProgress() / 100.f);
-            String speed = Formatter.formatFileSize(mActivity, update.getSpeed());
-            long eta = update.getEta();
-            if (eta > 0) {
-                CharSequence etaString = StringGenerator.formatETA(mActivity, eta * 1000);
-                viewHolder.mProgressText.setText(mActivity.getString(
-                        R.string.list_download_progress_eta_new, downloaded, total, etaString,
-                        percentage)+ " • " + speed + "/s");
-            } else {
-                viewHolder.mProgressText.setText(mActivity.getString(
-                        R.string.list_download_progress_new, downloaded, total, percentage)+ " • " + speed + "/s");
-            }
+            viewHolder.mBoundMode = BOUND_DOWNLOADING;
+            bindDownloadProgress(viewHolder, update);
             setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
             viewHolder.mProgressBar.setIndeterminate(update.getStatus() == UpdateStatus.STARTING);
-            viewHolder.mProgressBar.setProgress(update.getProgress());
         } else if (mUpdaterController.isInstallingUpdate(downloadId)) {
             setButtonAction(viewHolder.mAction, Action.CANCEL_INSTALLATION, downloadId, true);
-            boolean notAB = !mUpdaterController.isInstallingABUpdate();
-            viewHolder.mProgressText.setText(notAB ? R.string.dialog_prepare_zip_message :
-                    update.getFinalizing() ?
-                            R.string.finalizing_package :
-                            R.string.preparing_ota_first_boot);
+            viewHolder.mBoundMode = BOUND_INSTALLING;
+            viewHolder.mBoundNotAB = !mUpdaterController.isInstallingABUpdate();
+            bindInstallProgress(viewHolder, update);
             viewHolder.mProgressBar.setIndeterminate(false);
-            viewHolder.mProgressBar.setProgress(update.getInstallProgress());
         } else if (mUpdaterController.isVerifyingUpdate(downloadId)) {
+            viewHolder.mBoundMode = BOUND_OTHER;
             setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, false);
             viewHolder.mProgressText.setText(R.string.list_verifying_update);
             viewHolder.mProgressBar.setIndeterminate(true);
         } else {
             canDelete = true;
+            viewHolder.mBoundMode = BOUND_OTHER;
             setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
             String downloaded = StringGenerator.bytesToMegabytes(mActivity,
-                    update.getFile().length());
-            String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
-            String percentage = NumberFormat.getPercentInstance().format(
-                    update.getProgress() / 100.f);
+                    update.getDownloadedBytes());
             viewHolder.mProgressText.setText(mActivity.getString(
-                    R.string.list_download_progress_new, downloaded, total, percentage));
+                    R.string.list_download_progress_new, downloaded,
+                    getTotalSizeString(viewHolder, update.getFileSize()),
+                    getPercentString(update.getProgress())));
             viewHolder.mProgressBar.setIndeterminate(false);
             viewHolder.mProgressBar.setProgress(update.getProgress());
         }
@@ -215,8 +229,65 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
 		setButtonAction(viewHolder.mChangelog, Action.CHANGELOG, downloadId, true);
     }
 
+    private void bindDownloadProgress(ViewHolder viewHolder, UpdateInfo update) {
+        String downloaded = StringGenerator.bytesToMegabytes(mActivity,
+                update.getDownloadedBytes());
+        String total = getTotalSizeString(viewHolder, update.getFileSize());
+        String percentage = getPercentString(update.getProgress());
+        String speed = Formatter.formatFileSize(mActivity, update.getSpeed());
+        long eta = update.getEta();
+        if (eta > 0) {
+            CharSequence etaString = StringGenerator.formatETA(mActivity, eta * 1000);
+            viewHolder.mProgressText.setText(mActivity.getString(
+                    R.string.list_download_progress_eta_new, downloaded, total, etaString,
+                    percentage)+ " • " + speed + "/s");
+        } else {
+            viewHolder.mProgressText.setText(mActivity.getString(
+                    R.string.list_download_progress_new, downloaded, total, percentage)+ " • " + speed + "/s");
+        }
+        viewHolder.mProgressBar.setProgress(update.getProgress());
+    }
+
+    private void bindInstallProgress(ViewHolder viewHolder, UpdateInfo update) {
+        viewHolder.mProgressText.setText(viewHolder.mBoundNotAB ?
+                R.string.dialog_prepare_zip_message :
+                update.getFinalizing() ?
+                        R.string.finalizing_package :
+                        R.string.preparing_ota_first_boot);
+        viewHolder.mProgressBar.setProgress(update.getInstallProgress());
+    }
+
+    private String getPercentString(int progress) {
+        progress = Math.max(0, Math.min(100, progress));
+        String percentage = mPercentStrings[progress];
+        if (percentage == null) {
+            percentage = mPercentFormat.format(progress / 100.f);
+            mPercentStrings[progress] = percentage;
+        }
+        return percentage;
+    }
+
+    private String getTotalSizeString(ViewHolder viewHolder, long fileSize) {
+        if (viewHolder.mBoundFileSize != fileSize) {
+            viewHolder.mBoundFileSize = fileSize;
+            viewHolder.mBoundTotalSize = Formatter.formatShortFileSize(mActivity, fileSize);
+        }
+        return viewHolder.mBoundTotalSize;
+    }
+
+    private String getBuildDateString(long timestamp) {
+        String buildDate = mBuildDateStrings.get(timestamp);
+        if (buildDate == null) {
+            buildDate = StringGenerator.getDateLocalizedUTC(mActivity, DateFormat.LONG,
+                    timestamp);
+            mBuildDateStrings.put(timestamp, buildDate);
+        }
+        return buildDate;
+    }
+
     private void handleNotActiveStatus(ViewHolder viewHolder, UpdateInfo update) {
         final String downloadId = update.getDownloadId();
+        viewHolder.mBoundMode = BOUND_OTHER;
         if (mUpdaterController.isWaitingForReboot(downloadId)) {
             viewHolder.mMenu.setOnClickListener(getClickListener(update, false, viewHolder.mMenu));
             setButtonAction(viewHolder.mAction, Action.REBOOT, downloadId, true);
@@ -232,8 +303,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             viewHolder.mMenu.setOnClickListener(getClickListener(update, false, viewHolder.mMenu));
             setButtonAction(viewHolder.mAction, Action.DOWNLOAD, downloadId, !isBusy());
         }
-        String fileSize = Formatter.formatShortFileSize(mActivity, update.getFileSize());
-        viewHolder.mBuildSize.setText(fileSize);
+        viewHolder.mBuildSize.setText(getTotalSizeString(viewHolder, update.getFileSize()));
 
         viewHolder.mProgressBar.setVisibility(View.INVISIBLE);
         viewHolder.mProgressText.setVisibility(View.INVISIBLE);
@@ -258,6 +328,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         }
 
         viewHolder.itemView.setSelected(downloadId.equals(mSelectedDownload));
+        mBoundSignatures.put(downloadId, getSignature(update));
 
         boolean activeLayout;
         switch (update.getPersistentStatus()) {
@@ -274,8 +345,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 throw new RuntimeException("Unknown update status");
         }
 
-        String buildDate = StringGenerator.getDateLocalizedUTC(mActivity,
-                DateFormat.LONG, update.getTimestamp());
+        String buildDate = getBuildDateString(update.getTimestamp());
         String buildVersion = mActivity.getString(R.string.list_build_version,
                 update.getVersion());
         viewHolder.mBuildDate.setText(buildDate);
@@ -289,13 +359,143 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         }
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull final ViewHolder viewHolder, int i,
+            @NonNull List<Object> payloads) {
+        if (payloads.isEmpty() || !bindProgressOnly(viewHolder, i, payloads)) {
+            onBindViewHolder(viewHolder, i);
+        }
+    }
+
+    /**
+     * Update only the progress views of a row from the in-memory state. Returns false
+     * if the row isn't laid out for the current state and needs a full bind.
+     */
+    private boolean bindProgressOnly(ViewHolder viewHolder, int i, List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_PROGRESS) {
+                return false;
+            }
+        }
+        if (mDownloadIds == null || mUpdaterController == null) {
+            return false;
+        }
+        UpdateInfo update = mUpdaterController.getUpdate(mDownloadIds.get(i));
+        if (update == null) {
+            return false;
+        }
+        if (viewHolder.mBoundMode == BOUND_DOWNLOADING &&
+                update.getStatus() == UpdateStatus.DOWNLOADING) {
+            viewHolder.mProgressBar.setIndeterminate(false);
+            bindDownloadProgress(viewHolder, update);
+            return true;
+        } else if (viewHolder.mBoundMode == BOUND_INSTALLING &&
+                update.getStatus() == UpdateStatus.INSTALLING) {
+            bindInstallProgress(viewHolder, update);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public int getItemCount() {
         return mDownloadIds == null ? 0 : mDownloadIds.size();
     }
 
-    public void setData(List<String> downloadIds) {
+    private void setData(List<String> downloadIds) {
         mDownloadIds = downloadIds;
+        rebuildPositions();
+    }
+
+    private void rebuildPositions() {
+        mPositions.clear();
+        if (mDownloadIds == null) {
+            return;
+        }
+        for (int i = 0; i < mDownloadIds.size(); i++) {
+            mPositions.put(mDownloadIds.get(i), i);
+        }
+    }
+
+    private int getPosition(String downloadId) {
+        Integer position = mPositions.get(downloadId);
+        return position != null ? position : RecyclerView.NO_POSITION;
+    }
+
+    private int getSignature(UpdateInfo update) {
+        if (update == null) {
+            return 0;
+        }
+        return Objects.hash(update.getStatus(), update.getPersistentStatus(),
+                update.getProgress(), update.getInstallProgress(), update.getFileSize(),
+                update.getTimestamp(), update.getVersion(), update.getAvailableOnline());
+    }
+
+    /**
+     * Replace the list with the given one. The difference between the two is computed
+     * in the background so that only the rows that changed are animated and rebound.
+     */
+    public void submitList(List<String> downloadIds) {
+        final List<String> newIds = new ArrayList<>(downloadIds);
+        final int generation = ++mListGeneration;
+        if (mDownloadIds == null || mDownloadIds.isEmpty() || newIds.isEmpty() ||
+                mUpdaterController == null) {
+            setData(newIds);
+            notifyDataSetChanged();
+            return;
+        }
+
+        final List<String> oldIds = new ArrayList<>(mDownloadIds);
+        final Map<String, Integer> oldSignatures = new HashMap<>(mBoundSignatures);
+        final int[] newSignatures = new int[newIds.size()];
+        for (int i = 0; i < newIds.size(); i++) {
+            newSignatures[i] = getSignature(mUpdaterController.getUpdate(newIds.get(i)));
+        }
+
+        try {
+            TaskExecutors.light().execute(() -> {
+                DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                    @Override
+                    public int getOldListSize() {
+                        return oldIds.size();
+                    }
+
+                    @Override
+                    public int getNewListSize() {
+                        return newIds.size();
+                    }
+
+                    @Override
+                    public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                        return oldIds.get(oldPosition).equals(newIds.get(newPosition));
+                    }
+
+                    @Override
+                    public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                        Integer oldSignature = oldSignatures.get(oldIds.get(oldPosition));
+                        return oldSignature != null && oldSignature == newSignatures[newPosition];
+                    }
+                });
+                mMainHandler.post(() -> {
+                    if (generation != mListGeneration) {
+                        // A newer list has been submitted
+                        return;
+                    }
+                    boolean unchanged = oldIds.equals(mDownloadIds);
+                    setData(newIds);
+                    if (unchanged) {
+                        result.dispatchUpdatesTo(this);
+                    } else {
+                        // Items were added or removed while diffing, the result is stale
+                        notifyDataSetChanged();
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // Not worth animating
+            setData(newIds);
+            notifyDataSetChanged();
+        }
     }
 
     public void addItem(String downloadId) {
@@ -303,22 +503,32 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             mDownloadIds = new ArrayList<>();
         }
         mDownloadIds.add(0, downloadId);
+        rebuildPositions();
         notifyItemInserted(0);
     }
 
     public void notifyItemChanged(String downloadId) {
-        if (mDownloadIds == null) {
-            return;
+        int position = getPosition(downloadId);
+        if (position != RecyclerView.NO_POSITION) {
+            notifyItemChanged(position);
+        }
+    }
+
+    public void notifyItemProgressChanged(String downloadId) {
+        int position = getPosition(downloadId);
+        if (position != RecyclerView.NO_POSITION) {
+            notifyItemChanged(position, PAYLOAD_PROGRESS);
         }
-        notifyItemChanged(mDownloadIds.indexOf(downloadId));
     }
 
     public void removeItem(String downloadId) {
-        if (mDownloadIds == null) {
+        int position = getPosition(downloadId);
+        if (position == RecyclerView.NO_POSITION) {
             return;
         }
-        int position = mDownloadIds.indexOf(downloadId);
-        mDownloadIds.remove(downloadId);
+        mDownloadIds.remove(position);
+        mBoundSignatures.remove(downloadId);
+        rebuildPositions();
         notifyItemRemoved(position);
         notifyItemRangeChanged(position, getItemCount());
     }
@@ -373,7 +583,8 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 button.setEnabled(enabled);
                 UpdateInfo update = mUpdaterController.getUpdate(downloadId);
                 final boolean canInstall = Utils.canInstall(update) ||
-                        update.getFile().length() == update.getFileSize();
+                        (update.getFile() != null &&
+                                update.getFile().length() == update.getFileSize());
                 clickListener = enabled ? view -> {
                     if (canInstall) {
                         mUpdaterController.resumeDownload(downloadId);
@@ -424,8 +635,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 button.setText(R.string.reboot);
                 button.setEnabled(enabled);
                 clickListener = enabled ? view -> {
+                    view.setEnabled(false);
                     PowerManager pm = mActivity.getSystemService(PowerManager.class);
-                    pm.reboot(null);
+                    mUpdaterController.flushDatabase(() -> pm.reboot(null));
                 } : null;
             }
             break;
@@ -482,7 +694,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         int resId;
         try {
-            if (Utils.isABUpdate(update.getFile())) {
+            if (mUpdaterController.isABUpdate(downloadId)) {
                 resId = R.string.apply_update_dialog_message_ab;
             } else {
                 resId = R.string.apply_update_dialog_message;
@@ -530,8 +742,11 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         MenuBuilder menu = (MenuBuilder) popupMenu.getMenu();
         menu.findItem(R.id.menu_delete_action).setVisible(canDelete);
         menu.findItem(R.id.menu_copy_url).setVisible(update.getAvailableOnline());
-        menu.findItem(R.id.menu_export_update).setVisible(
-                update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED);
+        // Packages we only hold a descriptor of aren't ours to export
+        final boolean canExport = update.getPersistentStatus() ==
+                UpdateStatus.Persistent.VERIFIED && !update.isDescriptorBacked();
+        menu.findItem(R.id.menu_export_update).setVisible(canExport);
+        menu.findItem(R.id.menu_export_update_to).setVisible(canExport);
 
         popupMenu.setOnMenuItemClickListener(item -> {
             int itemId = item.getItemId();
@@ -552,6 +767,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                     exportUpdate(update);
                 }
                 return true;
+            } else if (itemId == R.id.menu_export_update_to) {
+                mActivity.exportUpdateTo(update.getDownloadId());
+                return true;
             }
             return false;
         });
@@ -561,15 +779,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
     }
 
     private void exportUpdate(UpdateInfo update) {
-        File dest = new File(Utils.getExportPath(mActivity), update.getName());
-        if (dest.exists()) {
-            dest = Utils.appendSequentialNumber(dest);
-        }
-        Intent intent = new Intent(mActivity, ExportUpdateService.class);
-        intent.setAction(ExportUpdateService.ACTION_START_EXPORTING);
-        intent.putExtra(ExportUpdateService.EXTRA_SOURCE_FILE, update.getFile());
-        intent.putExtra(ExportUpdateService.EXTRA_DEST_FILE, dest);
-        mActivity.startService(intent);
+        ExportUpdateService.exportUpdates(mActivity, Collections.singletonList(update));
     }
 
     private void showInfoDialog() {
@@ -17,27 +17,24 @@ package com.blissroms.updater.controller;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.os.UpdateEngine;
-import android.os.UpdateEngineCallback;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
 import com.blissroms.updater.misc.Constants;
-import com.blissroms.updater.misc.Utils;
+import com.blissroms.updater.misc.ZipReader;
 import com.blissroms.updater.model.Update;
 import com.blissroms.updater.model.UpdateStatus;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.io.PrintWriter;
 
 class ABUpdateInstaller {
 
@@ -52,13 +49,15 @@ class ABUpdateInstaller {
     private final Context mContext;
     private String mDownloadId;
 
-    private final UpdateEngine mUpdateEngine;
+    private final InstallEngine mUpdateEngine;
     private boolean mBound;
 
     private boolean mFinalizing;
     private int mProgress;
+    // When the payload was handed to update_engine, 0 if not by this process
+    private long mInstallStartMillis;
 
-    private final UpdateEngineCallback mUpdateEngineCallback = new UpdateEngineCallback() {
+    private final InstallEngine.Callback mUpdateEngineCallback = new InstallEngine.Callback() {
 
         @Override
         public void onStatusUpdate(int status, float percent) {
@@ -86,6 +85,7 @@ class ABUpdateInstaller {
 
                 case UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT: {
                     installationDone(true);
+                    recordInstallTime(true);
                     update.setInstallProgress(0);
                     update.setStatus(UpdateStatus.INSTALLED);
                     mUpdaterController.notifyUpdateChange(mDownloadId);
@@ -105,6 +105,7 @@ class ABUpdateInstaller {
         public void onPayloadApplicationComplete(int errorCode) {
             if (errorCode != UpdateEngine.ErrorCodeConstants.SUCCESS) {
                 installationDone(false);
+                recordInstallTime(false);
                 Update update = mUpdaterController.getActualUpdate(mDownloadId);
                 update.setInstallProgress(0);
                 update.setStatus(UpdateStatus.INSTALLATION_FAILED);
@@ -139,7 +140,7 @@ class ABUpdateInstaller {
     private ABUpdateInstaller(Context context, UpdaterController updaterController) {
         mUpdaterController = updaterController;
         mContext = context.getApplicationContext();
-        mUpdateEngine = new UpdateEngine();
+        mUpdateEngine = InstallEngine.create(mContext);
     }
 
     static synchronized ABUpdateInstaller getInstance(Context context,
@@ -163,7 +164,8 @@ class ABUpdateInstaller {
     }
 
     public void install(File file, String downloadId) {
-        if (!file.exists()) {
+        ParcelFileDescriptor pfd = mUpdaterController.getImportedDescriptor(downloadId);
+        if (pfd == null && (file == null || !file.exists())) {
             Log.e(TAG, "The given update doesn't exist");
             mUpdaterController.getActualUpdate(downloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
@@ -172,22 +174,24 @@ class ABUpdateInstaller {
         }
 
         long offset;
+        long size;
         String[] headerKeyValuePairs;
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
+            // Imported packages are read through a copy, closing the stream closes
+            // the descriptor
+            try (FileInputStream is = pfd != null ?
+                    new ParcelFileDescriptor.AutoCloseInputStream(pfd.dup()) :
+                    new FileInputStream(file)) {
+                ZipReader zipReader = new ZipReader(is.getChannel());
+                ZipReader.Entry payloadEntry = zipReader.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+                if (payloadEntry == null || payloadEntry.getMethod() != ZipReader.METHOD_STORED) {
+                    throw new IllegalArgumentException("No usable payload");
                 }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
+                offset = zipReader.getDataOffset(payloadEntry);
+                size = payloadEntry.getSize();
+                headerKeyValuePairs = zipReader.readEntryAsString(
+                        Constants.AB_PAYLOAD_PROPERTIES_PATH).split("\n");
             }
-            zipFile.close();
         } catch (IOException | IllegalArgumentException e) {
             Log.e(TAG, "Could not prepare " + file, e);
             mUpdaterController.getActualUpdate(mDownloadId)
@@ -211,9 +215,18 @@ class ABUpdateInstaller {
                 .getBoolean(Constants.PREF_AB_PERF_MODE, false);
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        if (pfd != null) {
+            // update_engine reads the payload straight from the imported package
+            mUpdateEngine.applyPayload(new AssetFileDescriptor(pfd, offset, size),
+                    headerKeyValuePairs);
+        } else {
+            String zipFileUri = "file://" + file.getAbsolutePath();
+            mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        }
 
+        mInstallStartMillis = SystemClock.elapsedRealtime();
+        mUpdaterController.recordEvent(UpdaterController.EVENT_INSTALL_START, mDownloadId,
+                pfd != null ? 1 : 0, 0);
         mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(mDownloadId);
 
@@ -253,6 +266,33 @@ class ABUpdateInstaller {
                 .apply();
     }
 
+    private void recordInstallTime(boolean success) {
+        // The status is reported again each time we bind, record the first one only
+        if (mInstallStartMillis != 0) {
+            mUpdaterController.onInstallFinished(mDownloadId, success,
+                    SystemClock.elapsedRealtime() - mInstallStartMillis);
+            mInstallStartMillis = 0;
+        }
+    }
+
+    static synchronized void dumpInstance(PrintWriter pw) {
+        if (sInstance != null) {
+            sInstance.dump(pw);
+        }
+    }
+
+    private void dump(PrintWriter pw) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        pw.println("  ABUpdateInstaller: downloadId=" + mDownloadId + " bound=" + mBound +
+                " progress=" + mProgress + " finalizing=" + mFinalizing +
+                " installing=" + prefs.getString(PREF_INSTALLING_AB_ID, null) +
+                " suspended=" + prefs.getString(PREF_INSTALLING_SUSPENDED_AB_ID, null) +
+                " needsReboot=" + prefs.getString(Constants.PREF_NEEDS_REBOOT_ID, null));
+        if (mUpdateEngine instanceof FakeInstallEngine) {
+            ((FakeInstallEngine) mUpdateEngine).dump(pw);
+        }
+    }
+
     public void cancel() {
         if (!isInstallingUpdate(mContext)) {
             Log.e(TAG, "cancel: Not installing any update");
@@ -266,6 +306,7 @@ class ABUpdateInstaller {
 
         mUpdateEngine.cancel();
         installationDone(false);
+        mInstallStartMillis = 0;
 
         mUpdaterController.getActualUpdate(mDownloadId)
                 .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
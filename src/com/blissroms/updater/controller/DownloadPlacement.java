@@ -0,0 +1,86 @@
+package com.blissroms.updater.controller;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.blissroms.updater.R;
+import com.blissroms.updater.misc.Utils;
+
+import java.io.File;
+
+/**
+ * Decides where a new download goes.
+ *
+ * Updates are normally downloaded into the download path. When the device needs uncrypt,
+ * i.e. it isn't A/B and the download path is encrypted, installing them means copying
+ * the whole package first, since uncrypt rewrites it in place. If the build provides
+ * a directory uncrypt can read as is and it has room for the package, the update is
+ * downloaded there instead and the copy is skipped at install time.
+ */
+class DownloadPlacement {
+
+    private static final String TAG = "DownloadPlacement";
+
+    // Leave some room for everything else on the partition
+    private static final long FREE_SPACE_MARGIN = 64 * 1024 * 1024;
+
+    private final Context mContext;
+    private final File mDownloadRoot;
+
+    DownloadPlacement(Context context, File downloadRoot) {
+        mContext = context.getApplicationContext();
+        mDownloadRoot = downloadRoot;
+    }
+
+    /**
+     * Get the file a new download should be written to, never an existing one.
+     *
+     * @param size the expected size of the update, 0 if not known
+     */
+    File getDestination(String name, long size) {
+        File directory = mDownloadRoot;
+        File uncryptRoot = getUncryptReadyRoot(size);
+        if (uncryptRoot != null) {
+            Log.d(TAG, "Downloading " + name + " to " + uncryptRoot + ", no copy needed");
+            directory = uncryptRoot;
+        }
+        File destination = new File(directory, name);
+        if (destination.exists()) {
+            destination = Utils.appendSequentialNumber(destination);
+            Log.d(TAG, "Changing name with " + destination.getName());
+        }
+        return destination;
+    }
+
+    /**
+     * Whether installing a download from the download path needs a copy first.
+     */
+    boolean needsUncryptCopy() {
+        return !Utils.isABDevice() && Utils.isEncrypted(mContext, mDownloadRoot);
+    }
+
+    private File getUncryptReadyRoot(long size) {
+        if (!needsUncryptCopy()) {
+            return null;
+        }
+        String path = mContext.getString(R.string.uncrypt_download_path);
+        if (TextUtils.isEmpty(path)) {
+            return null;
+        }
+        File root = new File(path);
+        if (!root.isDirectory() && !root.mkdirs()) {
+            Log.w(TAG, "Could not create " + root + ", falling back to the copy");
+            return null;
+        }
+        if (Utils.isEncrypted(mContext, root)) {
+            Log.w(TAG, root + " is encrypted, falling back to the copy");
+            return null;
+        }
+        if (size <= 0 || root.getUsableSpace() < size + FREE_SPACE_MARGIN) {
+            Log.d(TAG, "Not enough space in " + root + ", falling back to the copy");
+            return null;
+        }
+        return root;
+    }
+}
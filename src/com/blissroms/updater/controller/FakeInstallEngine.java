@@ -0,0 +1,331 @@
+package com.blissroms.updater.controller;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.AssetFileDescriptor;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.UpdateEngine;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import com.blissroms.updater.misc.Constants;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Stand-in for update_engine that goes through an install following a script, to load
+ * test how progress callbacks are handled without flashing anything.
+ *
+ * Enable it on a debuggable build with "setprop bliss.updater.fake_engine true" and
+ * restart the app. The script is read from these properties:
+ *   bliss.updater.fake_engine.rate        progress callbacks per second (20)
+ *   bliss.updater.fake_engine.duration    ms spent applying the payload (20000)
+ *   bliss.updater.fake_engine.finalizing  ms spent finalizing (5000)
+ *   bliss.updater.fake_engine.fail_at     percent at which to fail, -1 never (-1)
+ *   bliss.updater.fake_engine.bind_delay  ms before the first status after bind (0)
+ *
+ * Each run measures the time spent in the callback, what it allocates and how long it
+ * takes for the progress broadcast to reach the main thread, where the UI handles it.
+ * Every progress status leads to one broadcast, sent in order, so each broadcast is
+ * measured against the emit it comes from. The results are logged once the run ends.
+ */
+class FakeInstallEngine implements InstallEngine {
+
+    private static final String TAG = "FakeInstallEngine";
+
+    private static final int MAX_LATENCY_SAMPLES = 4096;
+
+    static final class Script {
+        int mRate = 20;
+        long mDurationMillis = 20000;
+        long mFinalizingMillis = 5000;
+        int mFailAtPercent = -1;
+        long mBindDelayMillis;
+
+        static Script fromProperties() {
+            Script script = new Script();
+            script.mRate = Math.max(1, SystemProperties.getInt(
+                    Constants.PROP_FAKE_ENGINE_RATE, script.mRate));
+            script.mDurationMillis = SystemProperties.getLong(
+                    Constants.PROP_FAKE_ENGINE_DURATION, script.mDurationMillis);
+            script.mFinalizingMillis = SystemProperties.getLong(
+                    Constants.PROP_FAKE_ENGINE_FINALIZING, script.mFinalizingMillis);
+            script.mFailAtPercent = SystemProperties.getInt(
+                    Constants.PROP_FAKE_ENGINE_FAIL_AT, script.mFailAtPercent);
+            script.mBindDelayMillis = SystemProperties.getLong(
+                    Constants.PROP_FAKE_ENGINE_BIND_DELAY, script.mBindDelayMillis);
+            return script;
+        }
+
+        @Override
+        public String toString() {
+            return "rate=" + mRate + "/s duration=" + mDurationMillis + "ms finalizing=" +
+                    mFinalizingMillis + "ms failAt=" + mFailAtPercent + "% bindDelay=" +
+                    mBindDelayMillis + "ms";
+        }
+    }
+
+    private final Script mScript;
+    private final Handler mHandler;
+    private final Runnable mTickRunnable = this::tick;
+
+    // Only accessed on the handler thread
+    private Callback mCallback;
+    private int mStatus = UpdateEngine.UpdateStatusConstants.IDLE;
+    private float mPercent;
+    private boolean mSuspended;
+    private long mPhaseElapsedMillis;
+    private long mLastTickMillis;
+    private long mPendingSinceNanos;
+
+    // Measurements of the current run
+    private final long[] mLatencies = new long[MAX_LATENCY_SAMPLES];
+    private int mLatencyCount;
+    private long mCallbackCount;
+    private long mCallbackNanos;
+    private long mCallbackAllocations;
+    private long mFirstStatusNanos = -1;
+    // When the progress statuses whose broadcast wasn't received yet were emitted
+    private final ArrayDeque<Long> mPendingEmits = new ArrayDeque<>();
+
+    FakeInstallEngine(Context context, Script script) {
+        mScript = script;
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        // Progress broadcasts are delivered on the main thread, like the UI gets them
+        LocalBroadcastManager.getInstance(context).registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final long now = SystemClock.elapsedRealtimeNanos();
+                final Long emitted;
+                synchronized (mPendingEmits) {
+                    emitted = mPendingEmits.poll();
+                }
+                if (emitted != null) {
+                    recordLatency(now - emitted);
+                }
+            }
+        }, new IntentFilter(UpdaterController.ACTION_INSTALL_PROGRESS));
+        Log.d(TAG, "Script: " + script);
+    }
+
+    @Override
+    public boolean bind(Callback callback) {
+        // The real engine reports its status as soon as we are bound
+        final long bindNanos = SystemClock.elapsedRealtimeNanos();
+        mHandler.postDelayed(() -> {
+            mCallback = callback;
+            mPendingSinceNanos = bindNanos;
+            emitStatus();
+        }, mScript.mBindDelayMillis);
+        return true;
+    }
+
+    @Override
+    public void applyPayload(String url, long offset, long size,
+            String[] headerKeyValuePairs) {
+        mHandler.post(this::start);
+    }
+
+    @Override
+    public void applyPayload(AssetFileDescriptor assetFd, String[] headerKeyValuePairs) {
+        mHandler.post(this::start);
+    }
+
+    @Override
+    public void cancel() {
+        mHandler.post(() -> {
+            if (isRunning()) {
+                stop(UpdateEngine.UpdateStatusConstants.IDLE);
+                emitStatus();
+            }
+        });
+    }
+
+    @Override
+    public void suspend() {
+        mHandler.post(() -> mSuspended = true);
+    }
+
+    @Override
+    public void resume() {
+        final long resumeNanos = SystemClock.elapsedRealtimeNanos();
+        mHandler.post(() -> {
+            mSuspended = false;
+            mLastTickMillis = SystemClock.elapsedRealtime();
+            mPendingSinceNanos = resumeNanos;
+        });
+    }
+
+    @Override
+    public void setPerformanceMode(boolean enable) {
+        Log.d(TAG, "Performance mode " + (enable ? "enabled" : "disabled"));
+    }
+
+    private boolean isRunning() {
+        return mStatus == UpdateEngine.UpdateStatusConstants.DOWNLOADING ||
+                mStatus == UpdateEngine.UpdateStatusConstants.FINALIZING;
+    }
+
+    private void start() {
+        if (isRunning()) {
+            Log.e(TAG, "Already applying a payload");
+            return;
+        }
+        synchronized (mLatencies) {
+            mLatencyCount = 0;
+        }
+        synchronized (mPendingEmits) {
+            mPendingEmits.clear();
+        }
+        mCallbackCount = 0;
+        mCallbackNanos = 0;
+        mCallbackAllocations = 0;
+        mSuspended = false;
+        mStatus = UpdateEngine.UpdateStatusConstants.DOWNLOADING;
+        mPercent = 0;
+        mPhaseElapsedMillis = 0;
+        mLastTickMillis = SystemClock.elapsedRealtime();
+        //noinspection deprecation
+        Debug.startAllocCounting();
+        mHandler.postDelayed(mTickRunnable, 1000 / mScript.mRate);
+    }
+
+    private void stop(int status) {
+        mHandler.removeCallbacks(mTickRunnable);
+        mStatus = status;
+        mPercent = 0;
+        //noinspection deprecation
+        Debug.stopAllocCounting();
+        Log.i(TAG, getReport());
+    }
+
+    private void tick() {
+        final long now = SystemClock.elapsedRealtime();
+        if (!mSuspended) {
+            mPhaseElapsedMillis += now - mLastTickMillis;
+        }
+        mLastTickMillis = now;
+        mHandler.postDelayed(mTickRunnable, 1000 / mScript.mRate);
+        if (mSuspended) {
+            return;
+        }
+
+        if (mStatus == UpdateEngine.UpdateStatusConstants.DOWNLOADING) {
+            mPercent = phaseProgress(mScript.mDurationMillis);
+            if (mScript.mFailAtPercent >= 0 && mPercent * 100 >= mScript.mFailAtPercent) {
+                stop(UpdateEngine.UpdateStatusConstants.IDLE);
+                emitComplete(UpdateEngine.ErrorCodeConstants.ERROR);
+                return;
+            }
+            if (mPercent >= 1) {
+                mStatus = UpdateEngine.UpdateStatusConstants.FINALIZING;
+                mPercent = 0;
+                mPhaseElapsedMillis = 0;
+            }
+            emitStatus();
+        } else if (mStatus == UpdateEngine.UpdateStatusConstants.FINALIZING) {
+            mPercent = phaseProgress(mScript.mFinalizingMillis);
+            if (mPercent >= 1) {
+                stop(UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT);
+                emitStatus();
+                emitComplete(UpdateEngine.ErrorCodeConstants.SUCCESS);
+                return;
+            }
+            emitStatus();
+        }
+    }
+
+    private float phaseProgress(long durationMillis) {
+        return durationMillis > 0 ? Math.min(1, mPhaseElapsedMillis / (float) durationMillis) : 1;
+    }
+
+    private void emitStatus() {
+        if (mCallback == null) {
+            return;
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        if (mPendingSinceNanos != 0) {
+            // First status after a bind or a resume
+            mFirstStatusNanos = start - mPendingSinceNanos;
+            mPendingSinceNanos = 0;
+        }
+        if (isRunning()) {
+            synchronized (mPendingEmits) {
+                // Broadcasts that never come must not make it grow forever
+                if (mPendingEmits.size() >= MAX_LATENCY_SAMPLES) {
+                    mPendingEmits.poll();
+                }
+                mPendingEmits.add(start);
+            }
+        }
+        //noinspection deprecation
+        final int allocations = Debug.getThreadAllocCount();
+        mCallback.onStatusUpdate(mStatus, mPercent);
+        //noinspection deprecation
+        mCallbackAllocations += Debug.getThreadAllocCount() - allocations;
+        mCallbackNanos += SystemClock.elapsedRealtimeNanos() - start;
+        mCallbackCount++;
+    }
+
+    private void emitComplete(int errorCode) {
+        if (mCallback != null) {
+            mCallback.onPayloadApplicationComplete(errorCode);
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        synchronized (mLatencies) {
+            mLatencies[mLatencyCount % MAX_LATENCY_SAMPLES] = nanos;
+            mLatencyCount++;
+        }
+    }
+
+    private String getReport() {
+        long[] latencies;
+        synchronized (mLatencies) {
+            latencies = Arrays.copyOf(mLatencies, Math.min(mLatencyCount, MAX_LATENCY_SAMPLES));
+        }
+        Arrays.sort(latencies);
+        StringBuilder report = new StringBuilder("Run ended: callbacks=").append(mCallbackCount);
+        if (mCallbackCount > 0) {
+            report.append(" avgCallback=").append(mCallbackNanos / mCallbackCount / 1000)
+                    .append("us allocsPerCallback=")
+                    .append(mCallbackAllocations / (float) mCallbackCount);
+        }
+        report.append(" uiDeliveries=").append(latencies.length);
+        if (latencies.length > 0) {
+            report.append(" uiLatency p50=").append(percentile(latencies, 50))
+                    .append("us p90=").append(percentile(latencies, 90))
+                    .append("us p99=").append(percentile(latencies, 99))
+                    .append("us max=").append(latencies[latencies.length - 1] / 1000)
+                    .append("us");
+        }
+        if (mFirstStatusNanos >= 0) {
+            report.append(" lastBindOrResumeToStatus=").append(mFirstStatusNanos / 1000000)
+                    .append("ms");
+        }
+        return report.toString();
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  FakeInstallEngine: " + mScript);
+        pw.println("    " + getReport());
+    }
+}
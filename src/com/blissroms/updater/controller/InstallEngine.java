@@ -0,0 +1,48 @@
+package com.blissroms.updater.controller;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.blissroms.updater.misc.Constants;
+
+/**
+ * What ABUpdateInstaller needs from update_engine. The status and error codes are the
+ * ones of UpdateEngine.
+ */
+interface InstallEngine {
+
+    interface Callback {
+        void onStatusUpdate(int status, float percent);
+
+        void onPayloadApplicationComplete(int errorCode);
+    }
+
+    boolean bind(Callback callback);
+
+    void applyPayload(String url, long offset, long size, String[] headerKeyValuePairs);
+
+    void applyPayload(AssetFileDescriptor assetFd, String[] headerKeyValuePairs);
+
+    void cancel();
+
+    void suspend();
+
+    void resume();
+
+    void setPerformanceMode(boolean enable);
+
+    /**
+     * Get the engine to use, update_engine unless the fake one was asked for on a
+     * debuggable build.
+     */
+    static InstallEngine create(Context context) {
+        if (SystemProperties.getBoolean(Constants.PROP_DEBUGGABLE, false) &&
+                SystemProperties.getBoolean(Constants.PROP_FAKE_ENGINE, false)) {
+            Log.w("InstallEngine", "Using the fake update engine");
+            return new FakeInstallEngine(context, FakeInstallEngine.Script.fromProperties());
+        }
+        return new SystemInstallEngine();
+    }
+}
@@ -0,0 +1,80 @@
+package com.blissroms.updater.controller;
+
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.blissroms.updater.misc.ProgressTable;
+import com.blissroms.updater.model.UpdateInfo;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ProgressTable in shared memory. We keep the only writable mapping, the memory is
+ * sealed read only before being handed out.
+ */
+public class ProgressMemory {
+
+    private static final String TAG = "ProgressMemory";
+
+    private static final int CAPACITY = 32;
+
+    private final SharedMemory mMemory;
+    private final ProgressTable mTable;
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private volatile boolean mFull;
+
+    private ProgressMemory(SharedMemory memory, ProgressTable table) {
+        mMemory = memory;
+        mTable = table;
+    }
+
+    static ProgressMemory create() throws ErrnoException {
+        SharedMemory memory = SharedMemory.create(TAG, ProgressTable.sizeFor(CAPACITY));
+        try {
+            ByteBuffer buffer = memory.mapReadWrite();
+            ProgressTable table = ProgressTable.create(buffer, CAPACITY);
+            memory.setProtect(OsConstants.PROT_READ);
+            return new ProgressMemory(memory, table);
+        } catch (ErrnoException | RuntimeException e) {
+            memory.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Map it with mapReadOnly() and read it with ProgressTable.open().
+     */
+    public SharedMemory getMemory() {
+        return mMemory;
+    }
+
+    void publish(String downloadId, long downloadedBytes, long totalBytes, long speed,
+            long eta, int installProgress) {
+        if (mTable.publish(downloadId, downloadedBytes, totalBytes, speed, eta,
+                installProgress)) {
+            mPublishedCount.incrementAndGet();
+        } else if (!mFull) {
+            mFull = true;
+            Log.w(TAG, "No room for " + downloadId);
+        }
+    }
+
+    void publish(UpdateInfo update) {
+        publish(update.getDownloadId(), update.getDownloadedBytes(), update.getFileSize(),
+                update.getSpeed(), update.getEta(), update.getInstallProgress());
+    }
+
+    void remove(String downloadId) {
+        mTable.remove(downloadId);
+        mFull = false;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  Progress memory: " + mMemory.getSize() + " bytes, published=" +
+                mPublishedCount.get());
+    }
+}
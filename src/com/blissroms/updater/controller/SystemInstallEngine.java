@@ -0,0 +1,56 @@
+package com.blissroms.updater.controller;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.UpdateEngine;
+import android.os.UpdateEngineCallback;
+
+class SystemInstallEngine implements InstallEngine {
+
+    private final UpdateEngine mUpdateEngine = new UpdateEngine();
+
+    @Override
+    public boolean bind(Callback callback) {
+        return mUpdateEngine.bind(new UpdateEngineCallback() {
+            @Override
+            public void onStatusUpdate(int status, float percent) {
+                callback.onStatusUpdate(status, percent);
+            }
+
+            @Override
+            public void onPayloadApplicationComplete(int errorCode) {
+                callback.onPayloadApplicationComplete(errorCode);
+            }
+        });
+    }
+
+    @Override
+    public void applyPayload(String url, long offset, long size,
+            String[] headerKeyValuePairs) {
+        mUpdateEngine.applyPayload(url, offset, size, headerKeyValuePairs);
+    }
+
+    @Override
+    public void applyPayload(AssetFileDescriptor assetFd, String[] headerKeyValuePairs) {
+        mUpdateEngine.applyPayload(assetFd, headerKeyValuePairs);
+    }
+
+    @Override
+    public void cancel() {
+        mUpdateEngine.cancel();
+    }
+
+    @Override
+    public void suspend() {
+        mUpdateEngine.suspend();
+    }
+
+    @Override
+    public void resume() {
+        mUpdateEngine.resume();
+    }
+
+    @Override
+    public void setPerformanceMode(boolean enable) {
+        mUpdateEngine.setPerformanceMode(enable);
+    }
+}
@@ -24,13 +24,19 @@ import android.util.Log;
 import androidx.preference.PreferenceManager;
 
 import com.blissroms.updater.misc.Constants;
-import com.blissroms.updater.misc.FileUtils;
+import com.blissroms.updater.misc.ResumableCopier;
+import com.blissroms.updater.misc.TaskExecutors;
 import com.blissroms.updater.misc.Utils;
+import com.blissroms.updater.model.Update;
 import com.blissroms.updater.model.UpdateInfo;
 import com.blissroms.updater.model.UpdateStatus;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 class UpdateInstaller {
 
@@ -39,8 +45,12 @@ class UpdateInstaller {
     private static UpdateInstaller sInstance = null;
     private static String sInstallingUpdate = null;
 
-    private Thread mPrepareUpdateThread;
+    private Future<?> mPrepareUpdateTask;
     private volatile boolean mCanCancel;
+    // Guarded by this, the copy runs only if still the current one when it starts
+    private int mCopyGeneration;
+    private boolean mCopyStarted;
+    private volatile long mInstallStartMillis;
 
     private final Context mContext;
     private final UpdaterController mUpdaterController;
@@ -72,6 +82,8 @@ class UpdateInstaller {
             return;
         }
 
+        mInstallStartMillis = SystemClock.elapsedRealtime();
+        mUpdaterController.recordEvent(UpdaterController.EVENT_INSTALL_START, downloadId, 0, 0);
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
         long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
@@ -91,15 +103,33 @@ class UpdateInstaller {
             // the filesystem, so create a copy of it.
             prepareForUncryptAndInstall(update);
         } else {
-            installPackage(update.getFile(), downloadId);
+            // installPackage() waits for the database and for recovery, off the main thread
+            try {
+                TaskExecutors.install().execute(() ->
+                        installPackage(update.getFile(), downloadId));
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Could not start installing the update", e);
+                mUpdaterController.onInstallFinished(downloadId, false,
+                        SystemClock.elapsedRealtime() - mInstallStartMillis);
+                mUpdaterController.getActualUpdate(downloadId)
+                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.notifyUpdateChange(downloadId);
+            }
         }
     }
 
+    // Called on the install executor
     private void installPackage(File update, String downloadId) {
+        // The device reboots into recovery from here, save what we measured first
+        mUpdaterController.onInstallFinished(downloadId, true,
+                SystemClock.elapsedRealtime() - mInstallStartMillis);
+        mUpdaterController.flushDatabase();
         try {
             android.os.RecoverySystem.installPackage(mContext, update);
         } catch (IOException e) {
             Log.e(TAG, "Could not install update", e);
+            mUpdaterController.onInstallFinished(downloadId, false,
+                    SystemClock.elapsedRealtime() - mInstallStartMillis);
             mUpdaterController.getActualUpdate(downloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
             mUpdaterController.notifyUpdateChange(downloadId);
@@ -109,64 +139,92 @@ class UpdateInstaller {
     private synchronized void prepareForUncryptAndInstall(UpdateInfo update) {
         String uncryptFilePath = update.getFile().getAbsolutePath() + Constants.UNCRYPT_FILE_EXT;
         File uncryptFile = new File(uncryptFilePath);
+        final int generation = ++mCopyGeneration;
+        mCopyStarted = false;
 
         Runnable copyUpdateRunnable = new Runnable() {
-            private long mLastUpdate = -1;
-
-            final FileUtils.ProgressCallBack mProgressCallBack = new FileUtils.ProgressCallBack() {
-                @Override
-                public void update(int progress) {
-                    long now = SystemClock.elapsedRealtime();
-                    if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(progress);
-                        mUpdaterController.notifyInstallProgress(update.getDownloadId());
-                        mLastUpdate = now;
-                    }
-                }
+            // Called once per percent or once per second at most, the consumers of the
+            // broadcast rate limit what they draw
+            final ResumableCopier.Listener mListener = (copied, total, speed, eta) -> {
+                Update actual = mUpdaterController.getActualUpdate(update.getDownloadId());
+                actual.setInstallProgress((int) (copied * 100 / total));
+                actual.setSpeed(Math.max(speed, 0));
+                actual.setEta(Math.max(eta, 0));
+                mUpdaterController.notifyInstallProgress(update.getDownloadId());
             };
 
             @Override
             public void run() {
+                synchronized (UpdateInstaller.this) {
+                    if (generation != mCopyGeneration) {
+                        // Cancelled while queued, cancel() already rolled back
+                        return;
+                    }
+                    mCopyStarted = true;
+                }
+                // A previous copy interrupted by a cancel or a reboot is picked up where
+                // it was left, as long as the update didn't change in the meantime
+                ResumableCopier copier = new ResumableCopier(update.getFile(), uncryptFile);
                 try {
-                    mCanCancel = true;
-                    FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
+                    copier.copy(mListener);
                     mCanCancel = false;
-                    if (mPrepareUpdateThread.isInterrupted()) {
+                    copier.finish();
+                    installPackage(uncryptFile, update.getDownloadId());
+                } catch (IOException e) {
+                    // cancel() interrupts us, usually in the middle of transferTo() which
+                    // then closes the channels instead of throwing InterruptedIOException
+                    if (e instanceof InterruptedIOException ||
+                            e instanceof ClosedByInterruptException ||
+                            Thread.currentThread().isInterrupted()) {
+                        // Keep the partial copy and its journal, the next attempt resumes
+                        // from the last checkpoint
+                        Log.d(TAG, "Copy cancelled: " + e.getMessage());
                         mUpdaterController.getActualUpdate(update.getDownloadId())
                                 .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
                         mUpdaterController.getActualUpdate(update.getDownloadId())
                                 .setInstallProgress(0);
-                        //noinspection ResultOfMethodCallIgnored
-                        uncryptFile.delete();
-                    } else {
-                        installPackage(uncryptFile, update.getDownloadId());
+                        return;
                     }
-                } catch (IOException e) {
                     Log.e(TAG, "Could not copy update", e);
-                    //noinspection ResultOfMethodCallIgnored
-                    uncryptFile.delete();
+                    ResumableCopier.discard(uncryptFile);
                     mUpdaterController.getActualUpdate(update.getDownloadId())
                             .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                    mUpdaterController.onInstallFinished(update.getDownloadId(), false,
+                            SystemClock.elapsedRealtime() - mInstallStartMillis);
                 } finally {
                     synchronized (UpdateInstaller.this) {
                         mCanCancel = false;
-                        mPrepareUpdateThread = null;
+                        mPrepareUpdateTask = null;
                         sInstallingUpdate = null;
                     }
+                    mUpdaterController.getActualUpdate(update.getDownloadId()).setSpeed(0);
+                    mUpdaterController.getActualUpdate(update.getDownloadId()).setEta(0);
                     mUpdaterController.notifyUpdateChange(update.getDownloadId());
                 }
             }
         };
 
-        mPrepareUpdateThread = new Thread(copyUpdateRunnable);
-        mPrepareUpdateThread.start();
+        // Set before the copy can run, so that a copy ending right away isn't
+        // overwritten with INSTALLING
         sInstallingUpdate = update.getDownloadId();
-        mCanCancel = false;
-
+        // The copy can be cancelled from the moment it is queued
+        mCanCancel = true;
         mUpdaterController.getActualUpdate(update.getDownloadId())
                 .setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(update.getDownloadId());
+
+        try {
+            mPrepareUpdateTask = TaskExecutors.install().submit(copyUpdateRunnable);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Could not start copying the update", e);
+            mCanCancel = false;
+            sInstallingUpdate = null;
+            mUpdaterController.onInstallFinished(update.getDownloadId(), false,
+                    SystemClock.elapsedRealtime() - mInstallStartMillis);
+            mUpdaterController.getActualUpdate(update.getDownloadId())
+                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.notifyUpdateChange(update.getDownloadId());
+        }
     }
 
     public synchronized void cancel() {
@@ -174,6 +232,19 @@ class UpdateInstaller {
             Log.d(TAG, "Nothing to cancel");
             return;
         }
-        mPrepareUpdateThread.interrupt();
+        mPrepareUpdateTask.cancel(true);
+        if (mCopyStarted) {
+            // The copy rolls back once interrupted
+            return;
+        }
+        String downloadId = sInstallingUpdate;
+        mCopyGeneration++;
+        mCanCancel = false;
+        mPrepareUpdateTask = null;
+        sInstallingUpdate = null;
+        Update update = mUpdaterController.getActualUpdate(downloadId);
+        update.setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+        update.setInstallProgress(0);
+        mUpdaterController.notifyUpdateChange(downloadId);
     }
 }
@@ -18,28 +18,46 @@ package com.blissroms.updater.controller;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
-import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
 import android.os.SystemClock;
+import android.os.Trace;
+import android.system.ErrnoException;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import com.blissroms.updater.UpdatesDbHelper;
+import com.blissroms.updater.UpdatesDbHelper.MetricsEntry;
+import com.blissroms.updater.UpdatesDbWriter;
 import com.blissroms.updater.download.DownloadClient;
+import com.blissroms.updater.download.DownloadMetrics;
+import com.blissroms.updater.misc.Constants;
+import com.blissroms.updater.misc.EventRing;
+import com.blissroms.updater.misc.ResumableCopier;
+import com.blissroms.updater.misc.TaskExecutors;
 import com.blissroms.updater.misc.Utils;
 import com.blissroms.updater.model.Update;
 import com.blissroms.updater.model.UpdateInfo;
 import com.blissroms.updater.model.UpdateStatus;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class UpdaterController {
 
@@ -47,6 +65,7 @@ public class UpdaterController {
     public static final String ACTION_INSTALL_PROGRESS = "action_install_progress";
     public static final String ACTION_UPDATE_REMOVED = "action_update_removed";
     public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
+    public static final String ACTION_UPDATES_LOADED = "action_updates_loaded";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
 
     private final String TAG = "UpdaterController";
@@ -54,17 +73,51 @@ public class UpdaterController {
     private static UpdaterController sUpdaterController;
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
+    private static final int UPDATE_STATUS_DELAY_MS = 500;
+    private static final long LOAD_TIMEOUT_MS = 5000;
+
+    // Events kept for dumpsys, see recordEvent()
+    static final int EVENT_STATUS = 0;
+    static final int EVENT_DOWNLOAD_START = 1;
+    static final int EVENT_DOWNLOAD_RESUME = 2;
+    static final int EVENT_DOWNLOAD_PAUSE = 3;
+    static final int EVENT_DOWNLOAD_RESPONSE = 4;
+    static final int EVENT_DOWNLOAD_SUCCESS = 5;
+    static final int EVENT_DOWNLOAD_FAILURE = 6;
+    static final int EVENT_VERIFY_START = 7;
+    static final int EVENT_VERIFY_END = 8;
+    static final int EVENT_INSTALL_START = 9;
+    static final int EVENT_INSTALL_END = 10;
+    static final int EVENT_DELETE = 11;
+    private static final String[] EVENT_NAMES = {
+            "status", "download_start", "download_resume", "download_pause",
+            "download_response", "download_success", "download_failure", "verify_start",
+            "verify_end", "install_start", "install_end", "delete"
+    };
+    private static final int MAX_EVENTS = 256;
+    private static final int MAX_DUMPED_SAMPLES = 10;
+    private static final int MAX_TOMBSTONES = 256;
 
     private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private final LocalBroadcastManager mBroadcastManager;
-    private final UpdatesDbHelper mUpdatesDbHelper;
+    private final UpdatesDbWriter mUpdatesDbWriter;
 
     private final PowerManager.WakeLock mWakeLock;
 
-    private final File mDownloadRoot;
+    private final DownloadPlacement mDownloadPlacement;
 
     private int mActiveDownloads = 0;
-    private final Set<String> mVerifyingUpdates = new HashSet<>();
+    // Also read by dump(), from a binder thread
+    private final Set<String> mVerifyingUpdates = ConcurrentHashMap.newKeySet();
+    private final EventRing mEvents = new EventRing(MAX_EVENTS, EVENT_NAMES);
+    // Created when a client asks for it, null until then
+    private volatile ProgressMemory mProgressMemory;
+
+    private final CountDownLatch mLoadedLatch = new CountDownLatch(1);
+    private volatile boolean mLoaded;
+    // Guarded by mPendingUntilLoaded
+    private final List<Runnable> mPendingUntilLoaded = new ArrayList<>();
 
     public static synchronized UpdaterController getInstance(Context context) {
         if (sUpdaterController == null) {
@@ -75,45 +128,422 @@ public class UpdaterController {
 
     private UpdaterController(Context context) {
         mBroadcastManager = LocalBroadcastManager.getInstance(context);
-        mUpdatesDbHelper = new UpdatesDbHelper(context);
-        mDownloadRoot = Utils.getDownloadPath(context);
+        mUpdatesDbWriter = UpdatesDbWriter.getInstance(context);
+        mDownloadPlacement = new DownloadPlacement(context, Utils.getDownloadPath(context));
         PowerManager powerManager = context.getSystemService(PowerManager.class);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater:wakelock");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
 
-        Utils.cleanupDownloadsDir(context);
+        // The controller is usually created on the main thread, don't touch the disk here
+        TaskExecutors.io().execute(this::loadUpdates);
+    }
+
+    private void loadUpdates() {
+        final long start = SystemClock.elapsedRealtime();
+        Trace.beginSection("UpdaterController#loadUpdates");
+        try {
+            Trace.beginSection("cleanupDownloadsDir");
+            Utils.cleanupDownloadsDir(mContext);
+            Trace.endSection();
+            final long cleanupDone = SystemClock.elapsedRealtime();
+
+            Trace.beginSection("getUpdates");
+            List<Update> updates = mUpdatesDbWriter.getDbHelper().getUpdates();
+            Trace.endSection();
+            for (Update update : updates) {
+                mergeStoredUpdate(update);
+            }
+            removeUnusedImports();
+            Log.d(TAG, "Loaded " + updates.size() + " updates in " +
+                    (SystemClock.elapsedRealtime() - start) + "ms (cleanup " +
+                    (cleanupDone - start) + "ms)");
+        } finally {
+            Trace.endSection();
+            onLoaded();
+        }
+    }
+
+    /**
+     * Copies of imported packages are named after their ID. Drop the ones no update
+     * refers to, e.g. left by a crash between the copy and its database entry.
+     */
+    private void removeUnusedImports() {
+        File[] files = Utils.getDownloadPath(mContext).listFiles((dir, name) ->
+                name.startsWith(Update.LOCAL_ID_PREFIX) && name.endsWith(".zip"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            DownloadEntry entry = mDownloads.get(name.substring(0, name.length() - 4));
+            if (entry == null || !file.equals(entry.mUpdate.getFile())) {
+                Log.d(TAG, "Removing unused import " + file);
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
 
-        for (Update update : mUpdatesDbHelper.getUpdates()) {
-            addUpdate(update, false);
+    /**
+     * Entries might have been added while the database was being read, e.g. from the
+     * cached catalog. The stored entry knows about the local file, so it wins unless
+     * the entry we have has already moved on.
+     */
+    private void mergeStoredUpdate(Update stored) {
+        DownloadEntry entry = mDownloads.get(stored.getDownloadId());
+        if (entry == null) {
+            addUpdate(stored, false);
+            return;
+        }
+        DownloadEntry merged;
+        synchronized (entry) {
+            Update current = entry.mUpdate;
+            if (entry.mClaimed || entry.mDownloadClient != null ||
+                    current.getPersistentStatus() != UpdateStatus.Persistent.UNKNOWN ||
+                    current.getStatus() != UpdateStatus.UNKNOWN) {
+                return;
+            }
+            Update update = new Update(stored);
+            if (!fixUpdateStatus(update) && !current.getAvailableOnline()) {
+                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                deleteUpdateAsync(update);
+                return;
+            }
+            update.setAvailableOnline(current.getAvailableOnline());
+            if (current.getDownloadUrl() != null) {
+                update.setDownloadUrl(current.getDownloadUrl());
+            }
+            merged = new DownloadEntry(update);
+            if (!mDownloads.replace(update.getDownloadId(), entry, merged)) {
+                // Replaced or removed meanwhile, what is there now is more recent
+                return;
+            }
+        }
+        markChanged(merged);
+    }
+
+    /**
+     * Get the entry of downloadId to start working on it. A claimed entry is never
+     * replaced by mergeStoredUpdate(), so changes made to it can't be lost.
+     */
+    private DownloadEntry claimEntry(String downloadId) {
+        while (true) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null) {
+                return null;
+            }
+            synchronized (entry) {
+                if (mDownloads.get(downloadId) == entry) {
+                    entry.mClaimed = true;
+                    return entry;
+                }
+            }
+        }
+    }
+
+    private void onLoaded() {
+        List<Runnable> pending;
+        synchronized (mPendingUntilLoaded) {
+            mLoaded = true;
+            pending = new ArrayList<>(mPendingUntilLoaded);
+            mPendingUntilLoaded.clear();
+        }
+        mLoadedLatch.countDown();
+        mMainHandler.post(() -> {
+            for (Runnable runnable : pending) {
+                runnable.run();
+            }
+            mBroadcastManager.sendBroadcast(new Intent(ACTION_UPDATES_LOADED));
+        });
+    }
+
+    /**
+     * Whether the stored updates have been loaded. Until then, only the entries
+     * added since the controller was created are known.
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Run the given action on the main thread once the stored updates have been
+     * loaded, or right away if they already are and we are on the main thread.
+     */
+    public void runWhenLoaded(Runnable action) {
+        synchronized (mPendingUntilLoaded) {
+            if (!mLoaded) {
+                mPendingUntilLoaded.add(action);
+                return;
+            }
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            action.run();
+        } else {
+            mMainHandler.post(action);
+        }
+    }
+
+    /**
+     * Block until the stored updates have been loaded. Never call this from the
+     * main thread.
+     */
+    public void awaitLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        try {
+            if (!mLoadedLatch.await(LOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Timed out while waiting for the updates to load");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private static class DownloadEntry {
         final Update mUpdate;
         DownloadClient mDownloadClient;
+        // Shared by all the attempts to download the update since the app started
+        DownloadMetrics mMetrics;
+        long mProgressCallbacks;
+        long mProgressNotifications;
+        // Guarded by mTombstones
+        long mGeneration;
+        // Guarded by the entry itself, see claimEntry()
+        boolean mClaimed;
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
     }
 
-    private final Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    private final Map<String, DownloadEntry> mDownloads = new ConcurrentHashMap<>();
+    // Imported packages that were not copied, they are read from these descriptors
+    private final Map<String, ParcelFileDescriptor> mImportedDescriptors =
+            new ConcurrentHashMap<>();
 
-    public void notifyUpdateChange(String downloadId) {
-        new Thread(() -> {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * What changed in the updates since a generation, see getChangesSince().
+     */
+    public static class Changes {
+        private final long mEpoch;
+        private final long mGeneration;
+        private final long mPosition;
+        private final boolean mReset;
+        private final boolean mHasMore;
+        private final List<UpdateInfo> mChanged;
+        private final List<String> mRemoved;
+
+        private Changes(long epoch, long generation, long position, boolean reset,
+                boolean hasMore, List<UpdateInfo> changed, List<String> removed) {
+            mEpoch = epoch;
+            mGeneration = generation;
+            mPosition = position;
+            mReset = reset;
+            mHasMore = hasMore;
+            mChanged = changed;
+            mRemoved = removed;
+        }
+
+        public long getEpoch() {
+            return mEpoch;
+        }
+
+        /**
+         * The generation to ask the next changes from.
+         */
+        public long getGeneration() {
+            return mGeneration;
+        }
+
+        /**
+         * Where a listing of all the updates is, 0 outside of one.
+         */
+        public long getPosition() {
+            return mPosition;
+        }
+
+        /**
+         * Whether the changes start from scratch, the updates known so far should be
+         * forgotten.
+         */
+        public boolean isReset() {
+            return mReset;
+        }
+
+        /**
+         * Whether more changes are waiting, ask for them right away.
+         */
+        public boolean hasMore() {
+            return mHasMore;
+        }
+
+        public List<UpdateInfo> getChanged() {
+            return mChanged;
+        }
+
+        public List<String> getRemoved() {
+            return mRemoved;
+        }
+    }
+
+    // Every change of an entry gives it the next generation. The generations start over
+    // with the process, clients notice it with the epoch
+    private final long mGenerationEpoch = System.currentTimeMillis();
+    // Removed download IDs and their generation, oldest first. Guarded by itself
+    private final Map<String, Long> mTombstones = new LinkedHashMap<>();
+    // Guarded by mTombstones
+    private long mGeneration;
+    private long mDroppedTombstoneGeneration;
+
+    private void markChanged(DownloadEntry entry) {
+        synchronized (mTombstones) {
+            entry.mGeneration = ++mGeneration;
+        }
+    }
+
+    private void markChanged(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null) {
+            markChanged(entry);
+        }
+    }
+
+    private void markRemoved(String downloadId) {
+        synchronized (mTombstones) {
+            mTombstones.remove(downloadId);
+            mTombstones.put(downloadId, ++mGeneration);
+            if (mTombstones.size() > MAX_TOMBSTONES) {
+                Iterator<Map.Entry<String, Long>> iterator = mTombstones.entrySet().iterator();
+                mDroppedTombstoneGeneration = iterator.next().getValue();
+                iterator.remove();
             }
+        }
+    }
+
+    /**
+     * Get the updates added, changed and removed after generation, oldest changes first.
+     * Clients pass the epoch, generation and position of the previous Changes they got,
+     * or 0 for all of them the first time.
+     *
+     * When starting over, all the updates are listed in pages: each page keeps the
+     * generation the listing started from and moves the position forward. Only the
+     * removals after that generation matter to the client, so the listing isn't started
+     * over again as long as these are kept.
+     *
+     * @param maxCount how many updates and removals to return at most
+     */
+    public Changes getChangesSince(long epoch, long generation, long position,
+            int maxCount) {
+        synchronized (mTombstones) {
+            // Start over if the generations were reset or the removals were forgotten
+            if (epoch != mGenerationEpoch || generation > mGeneration ||
+                    generation < mDroppedTombstoneGeneration) {
+                return listUpdates(mGeneration, 0, true, maxCount);
+            }
+            if (position > 0) {
+                return listUpdates(generation, position, false, maxCount);
+            }
+
+            List<DownloadEntry> entries = new ArrayList<>();
+            for (DownloadEntry entry : mDownloads.values()) {
+                if (entry.mGeneration > generation) {
+                    entries.add(entry);
+                }
+            }
+            entries.sort((a, b) -> Long.compare(a.mGeneration, b.mGeneration));
+
+            List<UpdateInfo> changed = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            Iterator<Map.Entry<String, Long>> tombstones = mTombstones.entrySet().iterator();
+            Map.Entry<String, Long> tombstone = nextTombstone(tombstones, generation);
+            int entryIndex = 0;
+            long last = generation;
+            while (changed.size() + removed.size() < maxCount) {
+                DownloadEntry entry = entryIndex < entries.size() ?
+                        entries.get(entryIndex) : null;
+                if (entry == null && tombstone == null) {
+                    return new Changes(mGenerationEpoch, mGeneration, 0, false, false,
+                            changed, removed);
+                }
+                if (tombstone == null ||
+                        (entry != null && entry.mGeneration < tombstone.getValue())) {
+                    changed.add(entry.mUpdate);
+                    last = entry.mGeneration;
+                    entryIndex++;
+                } else {
+                    removed.add(tombstone.getKey());
+                    last = tombstone.getValue();
+                    tombstone = nextTombstone(tombstones, generation);
+                }
+            }
+            final boolean hasMore = entryIndex < entries.size() || tombstone != null;
+            return new Changes(mGenerationEpoch, hasMore ? last : mGeneration, 0, false,
+                    hasMore, changed, removed);
+        }
+    }
+
+    /**
+     * List the updates that didn't change after snapshot, from position on.
+     */
+    private Changes listUpdates(long snapshot, long position, boolean reset, int maxCount) {
+        List<DownloadEntry> entries = new ArrayList<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.mGeneration > position && entry.mGeneration <= snapshot) {
+                entries.add(entry);
+            }
+        }
+        entries.sort((a, b) -> Long.compare(a.mGeneration, b.mGeneration));
+        List<UpdateInfo> listed = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < maxCount; i++) {
+            listed.add(entries.get(i).mUpdate);
+        }
+        if (entries.size() > maxCount) {
+            return new Changes(mGenerationEpoch, snapshot,
+                    entries.get(maxCount - 1).mGeneration, reset, true, listed,
+                    new ArrayList<>());
+        }
+        // What changed during the listing comes next, as a regular delta
+        return new Changes(mGenerationEpoch, snapshot, 0, reset, mGeneration > snapshot,
+                listed, new ArrayList<>());
+    }
+
+    private Map.Entry<String, Long> nextTombstone(Iterator<Map.Entry<String, Long>> iterator,
+            long since) {
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> tombstone = iterator.next();
+            // Skip the updates that came back since
+            if (tombstone.getValue() > since && !mDownloads.containsKey(tombstone.getKey())) {
+                return tombstone;
+            }
+        }
+        return null;
+    }
+
+    public void notifyUpdateChange(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null && entry.mUpdate.getStatus() != null) {
+            recordEvent(EVENT_STATUS, downloadId, entry.mUpdate.getStatus().ordinal(), 0);
+        }
+        ProgressMemory progressMemory = mProgressMemory;
+        if (progressMemory != null && entry != null) {
+            progressMemory.publish(entry.mUpdate);
+        }
+        markChanged(downloadId);
+        mMainHandler.postDelayed(() -> {
             Intent intent = new Intent();
             intent.setAction(ACTION_UPDATE_STATUS);
             intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
             mBroadcastManager.sendBroadcast(intent);
-        }).start();
+        }, UPDATE_STATUS_DELAY_MS);
     }
 
     void notifyUpdateDelete(String downloadId) {
+        markRemoved(downloadId);
+        ProgressMemory progressMemory = mProgressMemory;
+        if (progressMemory != null) {
+            progressMemory.remove(downloadId);
+        }
         Intent intent = new Intent();
         intent.setAction(ACTION_UPDATE_REMOVED);
         intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
@@ -121,6 +551,7 @@ public class UpdaterController {
     }
 
     void notifyDownloadProgress(String downloadId) {
+        markChanged(downloadId);
         Intent intent = new Intent();
         intent.setAction(ACTION_DOWNLOAD_PROGRESS);
         intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
@@ -128,6 +559,12 @@ public class UpdaterController {
     }
 
     void notifyInstallProgress(String downloadId) {
+        markChanged(downloadId);
+        ProgressMemory progressMemory = mProgressMemory;
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (progressMemory != null && entry != null) {
+            progressMemory.publish(entry.mUpdate);
+        }
         Intent intent = new Intent();
         intent.setAction(ACTION_INSTALL_PROGRESS);
         intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
@@ -177,10 +614,14 @@ public class UpdaterController {
                         Log.e(TAG, "Could not get content-length");
                     }
                 }
+                String eTag = headers.get("ETag");
+                if (eTag != null) {
+                    update.setETag(eTag);
+                }
+                recordEvent(EVENT_DOWNLOAD_RESPONSE, downloadId, update.getFileSize(), 0);
                 update.setStatus(UpdateStatus.DOWNLOADING);
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
-                new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
-                        SQLiteDatabase.CONFLICT_REPLACE)).start();
+                mUpdatesDbWriter.addUpdate(update);
                 notifyUpdateChange(downloadId);
             }
 
@@ -190,7 +631,12 @@ public class UpdaterController {
                 DownloadEntry entry = mDownloads.get(downloadId);
                 if (entry != null) {
                     Update update = entry.mUpdate;
+                    logProgressStats(entry);
+                    recordEvent(EVENT_DOWNLOAD_SUCCESS, downloadId,
+                            update.getDownloadedBytes(), 0);
+                    saveMetrics(entry, MetricsEntry.RESULT_DOWNLOADED);
                     update.setStatus(UpdateStatus.VERIFYING);
+                    mUpdatesDbWriter.changeDownloadProgress(update);
                     removeDownloadClient(entry);
                     verifyUpdateAsync(downloadId);
                     notifyUpdateChange(downloadId);
@@ -203,11 +649,21 @@ public class UpdaterController {
                 if (cancelled) {
                     Log.d(TAG, "Download cancelled");
                     // Already notified
+                    DownloadEntry entry = mDownloads.get(downloadId);
+                    if (entry != null) {
+                        recordEvent(EVENT_DOWNLOAD_FAILURE, downloadId, 1,
+                                entry.mUpdate.getDownloadedBytes());
+                        saveMetrics(entry, MetricsEntry.RESULT_PAUSED);
+                    }
                 } else {
                     DownloadEntry entry = mDownloads.get(downloadId);
                     if (entry != null) {
                         Update update = entry.mUpdate;
                         Log.e(TAG, "Download failed");
+                        recordEvent(EVENT_DOWNLOAD_FAILURE, downloadId, 0,
+                                update.getDownloadedBytes());
+                        saveMetrics(entry, MetricsEntry.RESULT_FAILED);
+                        mUpdatesDbWriter.changeDownloadProgress(update);
                         removeDownloadClient(entry);
                         update.setStatus(UpdateStatus.PAUSED_ERROR);
                         notifyUpdateChange(downloadId);
@@ -229,7 +685,16 @@ public class UpdaterController {
                 if (entry == null) {
                     return;
                 }
+                entry.mProgressCallbacks++;
                 Update update = entry.mUpdate;
+                update.setDownloadedBytes(bytesRead);
+                // Unlike the notifications, the shared memory is kept current
+                ProgressMemory progressMemory = mProgressMemory;
+                if (progressMemory != null) {
+                    progressMemory.publish(downloadId, bytesRead,
+                            contentLength > 0 ? contentLength : update.getFileSize(), speed,
+                            eta, 0);
+                }
                 if (contentLength <= 0) {
                     if (update.getFileSize() <= 0) {
                         return;
@@ -242,42 +707,185 @@ public class UpdaterController {
                 }
                 final long now = SystemClock.elapsedRealtime();
                 int progress = Math.round(bytesRead * 100f / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
+                if (progress != mProgress || now - mLastUpdate > MAX_REPORT_INTERVAL_MS) {
                     mProgress = progress;
                     mLastUpdate = now;
                     update.setProgress(progress);
                     update.setEta(eta);
                     update.setSpeed(speed);
+                    entry.mProgressNotifications++;
+                    mUpdatesDbWriter.changeDownloadProgress(update);
                     notifyDownloadProgress(downloadId);
                 }
             }
         };
     }
 
+    private void logProgressStats(DownloadEntry entry) {
+        long bytes = entry.mUpdate.getDownloadedBytes();
+        if (bytes <= 0) {
+            return;
+        }
+        final double gigabytes = bytes / (1024.0 * 1024.0 * 1024.0);
+        Log.d(TAG, entry.mProgressCallbacks + " progress callbacks and " +
+                entry.mProgressNotifications + " notifications for " + bytes + " bytes (" +
+                Math.round(entry.mProgressCallbacks / gigabytes) + " callbacks/GB)");
+    }
+
+    private void saveMetrics(DownloadEntry entry, String result) {
+        if (entry.mMetrics == null) {
+            return;
+        }
+        DownloadMetrics.Summary summary = entry.mMetrics.getSummary();
+        summary.setDownloadId(entry.mUpdate.getDownloadId());
+        summary.setResult(result);
+        Log.d(TAG, "Download metrics: " + summary);
+        mUpdatesDbWriter.addMetrics(summary);
+    }
+
+    /**
+     * Get the metrics of the download of an update, from the database if it isn't
+     * being downloaded since the app started. Don't call from the main thread.
+     *
+     * @return the metrics or null if there are none
+     */
+    public DownloadMetrics.Summary getMetrics(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null && entry.mMetrics != null) {
+            DownloadMetrics.Summary summary = entry.mMetrics.getSummary();
+            summary.setDownloadId(downloadId);
+            return summary;
+        }
+        return mUpdatesDbWriter.getDbHelper().getMetrics(downloadId);
+    }
+
+    /**
+     * Get the metrics of the last downloads, most recent first. The ones of the updates
+     * being downloaded are live. Don't call from the main thread.
+     */
+    public List<DownloadMetrics.Summary> getMetricsHistory() {
+        List<DownloadMetrics.Summary> history = new ArrayList<>();
+        Set<String> live = new HashSet<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.mMetrics != null && entry.mDownloadClient != null) {
+                DownloadMetrics.Summary summary = entry.mMetrics.getSummary();
+                summary.setDownloadId(entry.mUpdate.getDownloadId());
+                history.add(summary);
+                live.add(summary.getDownloadId());
+            }
+        }
+        for (DownloadMetrics.Summary summary :
+                mUpdatesDbWriter.getDbHelper().getMetrics(null, null)) {
+            if (!live.contains(summary.getDownloadId())) {
+                history.add(summary);
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Get the updates being downloaded, verified or installed.
+     */
+    public List<UpdateInfo> getActiveUpdates() {
+        List<UpdateInfo> updates = new ArrayList<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            String downloadId = entry.mUpdate.getDownloadId();
+            if (entry.mDownloadClient != null || isVerifyingUpdate(downloadId) ||
+                    isInstallingUpdate(downloadId)) {
+                updates.add(entry.mUpdate);
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * The shared memory where the progress of the updates is published, created on
+     * first use.
+     *
+     * @return null if it couldn't be created
+     */
+    public ProgressMemory getProgressMemory() {
+        ProgressMemory progressMemory = mProgressMemory;
+        if (progressMemory != null) {
+            return progressMemory;
+        }
+        synchronized (this) {
+            if (mProgressMemory == null) {
+                try {
+                    progressMemory = ProgressMemory.create();
+                } catch (ErrnoException e) {
+                    Log.e(TAG, "Could not create the progress memory", e);
+                    return null;
+                }
+                for (UpdateInfo update : getActiveUpdates()) {
+                    progressMemory.publish(update);
+                }
+                mProgressMemory = progressMemory;
+            }
+            return mProgressMemory;
+        }
+    }
+
+    void onInstallFinished(String downloadId, boolean success, long installMillis) {
+        recordEvent(EVENT_INSTALL_END, downloadId, success ? 1 : 0, installMillis);
+        String result = success ? MetricsEntry.RESULT_INSTALLED :
+                MetricsEntry.RESULT_INSTALLATION_FAILED;
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null && entry.mMetrics != null) {
+            entry.mMetrics.setInstallMillis(installMillis);
+            saveMetrics(entry, result);
+        } else {
+            mUpdatesDbWriter.changeInstallMetrics(downloadId, result, installMillis);
+        }
+    }
+
     @SuppressLint("SetWorldReadable")
     private void verifyUpdateAsync(final String downloadId) {
         mVerifyingUpdates.add(downloadId);
-        new Thread(() -> {
+        recordEvent(EVENT_VERIFY_START, downloadId, 0, 0);
+        try {
+            TaskExecutors.io().execute(() -> verifyUpdate(downloadId));
+        } catch (RejectedExecutionException e) {
+            // Keep the package, verifying it again is up to the user
+            Log.e(TAG, "Could not verify " + downloadId, e);
+            mVerifyingUpdates.remove(downloadId);
             DownloadEntry entry = mDownloads.get(downloadId);
             if (entry != null) {
-                Update update = entry.mUpdate;
-                File file = update.getFile();
-                if (file.exists() && verifyPackage(file)) {
-                    //noinspection ResultOfMethodCallIgnored
-                    file.setReadable(true, false);
-                    update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                    mUpdatesDbHelper.changeUpdateStatus(update);
-                    update.setStatus(UpdateStatus.VERIFIED);
-                } else {
-                    update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                    mUpdatesDbHelper.removeUpdate(downloadId);
-                    update.setProgress(0);
-                    update.setStatus(UpdateStatus.VERIFICATION_FAILED);
-                }
-                mVerifyingUpdates.remove(downloadId);
+                entry.mUpdate.setStatus(UpdateStatus.VERIFICATION_FAILED);
                 notifyUpdateChange(downloadId);
             }
-        }).start();
+        }
+    }
+
+    private void verifyUpdate(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry != null) {
+            Update update = entry.mUpdate;
+            File file = update.getFile();
+            final long verifyStart = SystemClock.elapsedRealtime();
+            boolean verified = file != null && file.exists() && verifyPackage(file);
+            recordEvent(EVENT_VERIFY_END, downloadId, verified ? 1 : 0,
+                    SystemClock.elapsedRealtime() - verifyStart);
+            if (entry.mMetrics != null) {
+                entry.mMetrics.setVerifyMillis(SystemClock.elapsedRealtime() - verifyStart);
+                saveMetrics(entry, verified ? MetricsEntry.RESULT_VERIFIED :
+                        MetricsEntry.RESULT_VERIFICATION_FAILED);
+            }
+            if (verified) {
+                //noinspection ResultOfMethodCallIgnored
+                file.setReadable(true, false);
+                update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+                mUpdatesDbWriter.changeUpdateStatus(update);
+                update.setStatus(UpdateStatus.VERIFIED);
+            } else {
+                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+                mUpdatesDbWriter.removeUpdate(downloadId);
+                update.setProgress(0);
+                update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+            }
+            mVerifyingUpdates.remove(downloadId);
+            notifyUpdateChange(downloadId);
+        }
     }
 
     private boolean verifyPackage(File file) {
@@ -299,6 +907,10 @@ public class UpdaterController {
     }
 
     private boolean fixUpdateStatus(Update update) {
+        if (update.isDescriptorBacked()) {
+            // Nothing on disk to check, the descriptor comes with the update
+            return true;
+        }
         switch (update.getPersistentStatus()) {
             case UpdateStatus.Persistent.VERIFIED:
             case UpdateStatus.Persistent.INCOMPLETE:
@@ -306,9 +918,11 @@ public class UpdaterController {
                     update.setStatus(UpdateStatus.UNKNOWN);
                     return false;
                 } else if (update.getFileSize() > 0) {
+                    // The file is what we'll resume from, trust it over the database
+                    update.setDownloadedBytes(update.getFile().length());
                     update.setStatus(UpdateStatus.PAUSED);
                     int progress = Math.round(
-                            update.getFile().length() * 100f / update.getFileSize());
+                            update.getDownloadedBytes() * 100f / update.getFileSize());
                     update.setProgress(progress);
                 }
                 break;
@@ -320,7 +934,10 @@ public class UpdaterController {
         List<String> toRemove = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
             boolean online = downloadIds.contains(entry.mUpdate.getDownloadId());
-            entry.mUpdate.setAvailableOnline(online);
+            if (entry.mUpdate.getAvailableOnline() != online) {
+                entry.mUpdate.setAvailableOnline(online);
+                markChanged(entry);
+            }
             if (!online && purgeList &&
                     entry.mUpdate.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN) {
                 toRemove.add(entry.mUpdate.getDownloadId());
@@ -346,6 +963,14 @@ public class UpdaterController {
                 Update updateAdded = entry.mUpdate;
                 updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
                 updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+                if (updateInfo.getDigest() != null) {
+                    updateAdded.setDigest(updateInfo.getDigest());
+                }
+                if (updateAdded.getPersistentStatus() != UpdateStatus.Persistent.UNKNOWN) {
+                    // Keep the catalog entry up to date for the next restart
+                    mUpdatesDbWriter.addUpdate(updateAdded);
+                }
+                markChanged(entry);
             }
             return false;
         }
@@ -357,28 +982,102 @@ public class UpdaterController {
             return false;
         }
         update.setAvailableOnline(availableOnline);
-        mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
+        // The stored updates are loaded in the background, don't overwrite what they added
+        DownloadEntry entry = new DownloadEntry(update);
+        if (mDownloads.putIfAbsent(update.getDownloadId(), entry) != null) {
+            return false;
+        }
+        markChanged(entry);
         return true;
     }
 
+    /**
+     * Add an imported package, replacing any previous import with the same ID.
+     *
+     * @param pfd the descriptor of the package if it wasn't copied, the controller
+     *            takes ownership of it
+     */
+    public boolean addImportedUpdate(UpdateInfo updateInfo, ParcelFileDescriptor pfd) {
+        String downloadId = updateInfo.getDownloadId();
+        if (isInstallingUpdate(downloadId) || isDownloading(downloadId)) {
+            Log.e(TAG, downloadId + " is busy, can't replace it");
+            closeDescriptor(pfd);
+            return false;
+        }
+        if (mDownloads.remove(downloadId) != null) {
+            markRemoved(downloadId);
+        }
+        closeDescriptor(pfd != null ? mImportedDescriptors.put(downloadId, pfd) :
+                mImportedDescriptors.remove(downloadId));
+        if (!addUpdate(updateInfo, false)) {
+            return false;
+        }
+        if (pfd == null) {
+            // Copies are kept across restarts like downloads, descriptors can't be
+            mUpdatesDbWriter.addUpdate(new Update(updateInfo));
+        } else {
+            mUpdatesDbWriter.removeUpdate(downloadId);
+        }
+        return true;
+    }
+
+    /**
+     * Open the package of an update, through its descriptor if it is descriptor backed.
+     */
+    public FileInputStream openPackage(String downloadId) throws IOException {
+        ParcelFileDescriptor pfd = mImportedDescriptors.get(downloadId);
+        if (pfd != null) {
+            return new ParcelFileDescriptor.AutoCloseInputStream(pfd.dup());
+        }
+        UpdateInfo update = getUpdate(downloadId);
+        if (update == null || update.getFile() == null) {
+            throw new FileNotFoundException("No package for " + downloadId);
+        }
+        return new FileInputStream(update.getFile());
+    }
+
+    public boolean isABUpdate(String downloadId) throws IOException {
+        try (FileInputStream is = openPackage(downloadId)) {
+            return Utils.isABUpdate(is.getChannel());
+        }
+    }
+
+    /**
+     * Get the descriptor of an imported package that wasn't copied, null otherwise.
+     */
+    ParcelFileDescriptor getImportedDescriptor(String downloadId) {
+        return mImportedDescriptors.get(downloadId);
+    }
+
+    private void closeDescriptor(ParcelFileDescriptor pfd) {
+        if (pfd == null) {
+            return;
+        }
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close descriptor", e);
+        }
+    }
+
     @SuppressLint("WakelockTimeout")
     public void startDownload(String downloadId) {
         Log.d(TAG, "Starting " + downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return;
         }
-        DownloadEntry entry = mDownloads.get(downloadId);
+        DownloadEntry entry = claimEntry(downloadId);
         if (entry == null) {
             Log.e(TAG, "Could not get download entry");
             return;
         }
         Update update = entry.mUpdate;
-        File destination = new File(mDownloadRoot, update.getName());
-        if (destination.exists()) {
-            destination = Utils.appendSequentialNumber(destination);
-            Log.d(TAG, "Changing name with " + destination.getName());
-        }
+        File destination = mDownloadPlacement.getDestination(update.getName(),
+                update.getFileSize());
         update.setFile(destination);
+        update.setDownloadedBytes(0);
+        update.setETag(null);
+        entry.mMetrics = new DownloadMetrics();
         DownloadClient downloadClient;
         try {
             downloadClient = new DownloadClient.Builder()
@@ -387,6 +1086,7 @@ public class UpdaterController {
                     .setDownloadCallback(getDownloadCallback(downloadId))
                     .setProgressListener(getProgressListener(downloadId))
                     .setUseDuplicateLinks(true)
+                    .setMetrics(entry.mMetrics)
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -395,6 +1095,7 @@ public class UpdaterController {
             return;
         }
         addDownloadClient(entry, downloadClient);
+        recordEvent(EVENT_DOWNLOAD_START, downloadId, update.getFileSize(), 0);
         update.setStatus(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
@@ -407,7 +1108,7 @@ public class UpdaterController {
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return;
         }
-        DownloadEntry entry = mDownloads.get(downloadId);
+        DownloadEntry entry = claimEntry(downloadId);
         if (entry == null) {
             Log.e(TAG, "Could not get download entry");
             return;
@@ -426,6 +1127,10 @@ public class UpdaterController {
             verifyUpdateAsync(downloadId);
             notifyUpdateChange(downloadId);
         } else {
+            if (entry.mMetrics == null) {
+                // What happened before the app was restarted is lost
+                entry.mMetrics = new DownloadMetrics();
+            }
             DownloadClient downloadClient;
             try {
                 downloadClient = new DownloadClient.Builder()
@@ -434,6 +1139,8 @@ public class UpdaterController {
                         .setDownloadCallback(getDownloadCallback(downloadId))
                         .setProgressListener(getProgressListener(downloadId))
                         .setUseDuplicateLinks(true)
+                        .setIfRange(update.getETag())
+                        .setMetrics(entry.mMetrics)
                         .build();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
@@ -442,6 +1149,7 @@ public class UpdaterController {
                 return;
             }
             addDownloadClient(entry, downloadClient);
+            recordEvent(EVENT_DOWNLOAD_RESUME, downloadId, file.length(), 0);
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
             downloadClient.resume();
@@ -459,21 +1167,41 @@ public class UpdaterController {
         if (entry != null) {
             entry.mDownloadClient.cancel();
             removeDownloadClient(entry);
+            recordEvent(EVENT_DOWNLOAD_PAUSE, downloadId, entry.mUpdate.getDownloadedBytes(), 0);
             entry.mUpdate.setStatus(UpdateStatus.PAUSED);
             entry.mUpdate.setEta(0);
             entry.mUpdate.setSpeed(0);
+            mUpdatesDbWriter.changeDownloadProgress(entry.mUpdate);
             notifyUpdateChange(downloadId);
         }
     }
 
     private void deleteUpdateAsync(final Update update) {
-        new Thread(() -> {
+        final ParcelFileDescriptor pfd = mImportedDescriptors.remove(update.getDownloadId());
+        try {
+            TaskExecutors.io().execute(() -> deleteUpdateFiles(update, pfd));
+        } catch (RejectedExecutionException e) {
+            // The stale file is removed with the next cleanup of the download dir
+            Log.e(TAG, "Could not delete " + update.getDownloadId(), e);
+            closeDescriptor(pfd);
+            mUpdatesDbWriter.removeUpdate(update.getDownloadId());
+        }
+    }
+
+    private void deleteUpdateFiles(Update update, ParcelFileDescriptor pfd) {
+        if (pfd != null) {
+            // We don't own the file, just let it go
+            closeDescriptor(pfd);
+        } else if (update.getFile() != null) {
             File file = update.getFile();
             if (file.exists() && !file.delete()) {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
-            mUpdatesDbHelper.removeUpdate(update.getDownloadId());
-        }).start();
+            // Drop any partial copy made for uncrypt along with it
+            ResumableCopier.discard(new File(file.getAbsolutePath() +
+                    Constants.UNCRYPT_FILE_EXT));
+        }
+        mUpdatesDbWriter.removeUpdate(update.getDownloadId());
     }
 
     public void deleteUpdate(String downloadId) {
@@ -484,12 +1212,15 @@ public class UpdaterController {
         DownloadEntry entry = mDownloads.get(downloadId);
         if (entry != null) {
             Update update = entry.mUpdate;
+            recordEvent(EVENT_DELETE, downloadId, 0, 0);
             update.setStatus(UpdateStatus.DELETED);
             update.setProgress(0);
+            update.setDownloadedBytes(0);
+            update.setETag(null);
             update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
             deleteUpdateAsync(update);
 
-            final boolean isLocalUpdate = Update.LOCAL_ID.equals(downloadId);
+            final boolean isLocalUpdate = Update.isLocalId(downloadId);
             if (!isLocalUpdate && !update.getAvailableOnline()) {
                 Log.d(TAG, "Download no longer available online, removing");
                 mDownloads.remove(downloadId);
@@ -518,6 +1249,23 @@ public class UpdaterController {
         return entry != null ? entry.mUpdate : null;
     }
 
+    /**
+     * Wait until all the pending database writes have been committed.
+     */
+    public void flushDatabase() {
+        mUpdatesDbWriter.flush();
+    }
+
+    /**
+     * Commit the pending database writes without waiting for them.
+     *
+     * @param onFlushed run on the database writer thread once they are committed,
+     *                  may be null
+     */
+    public void flushDatabase(Runnable onFlushed) {
+        mUpdatesDbWriter.flush(onFlushed);
+    }
+
     public boolean isDownloading(String downloadId) {
         //noinspection ConstantConditions
         return mDownloads.containsKey(downloadId) &&
@@ -560,4 +1308,61 @@ public class UpdaterController {
         }
         ABUpdateInstaller.getInstance(mContext, this).setPerformanceMode(enable);
     }
+
+    /**
+     * Keep track of something that happened for dumpsys. Cheap enough to be called
+     * from any thread at any time, it doesn't lock nor allocate.
+     */
+    void recordEvent(int type, String downloadId, long arg1, long arg2) {
+        mEvents.record(type, downloadId, arg1, arg2);
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("UpdaterController: loaded=" + mLoaded + " activeDownloads=" +
+                mActiveDownloads + " verifying=" + mVerifyingUpdates +
+                " wakelockHeld=" + mWakeLock.isHeld());
+        pw.println("  Updates:");
+        final long[] sampleTimes = new long[MAX_DUMPED_SAMPLES];
+        final int[] sampleSpeeds = new int[MAX_DUMPED_SAMPLES];
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update update = entry.mUpdate;
+            pw.println("    " + update.getDownloadId() + " " + update.getName() + " status=" +
+                    update.getStatus() + " persistent=" + update.getPersistentStatus() +
+                    " online=" + update.getAvailableOnline());
+            pw.println("      file=" + update.getFile() + " bytes=" +
+                    update.getDownloadedBytes() + "/" + update.getFileSize() + " progress=" +
+                    update.getProgress() + "% install=" + update.getInstallProgress() +
+                    "% etag=" + update.getETag() + " imported=" +
+                    mImportedDescriptors.containsKey(update.getDownloadId()));
+            if (entry.mDownloadClient != null) {
+                pw.println("      downloading: speed=" + update.getSpeed() + "B/s eta=" +
+                        update.getEta() + "s callbacks=" + entry.mProgressCallbacks +
+                        " notifications=" + entry.mProgressNotifications);
+            }
+            if (entry.mMetrics != null) {
+                pw.println("      metrics: " + entry.mMetrics.getSummary());
+                int count = entry.mMetrics.getRecentSamples(sampleTimes, sampleSpeeds);
+                if (count > 0) {
+                    StringBuilder samples = new StringBuilder("      last KiB/s:");
+                    for (int i = 0; i < count; i++) {
+                        samples.append(' ').append(sampleSpeeds[i]);
+                    }
+                    pw.println(samples);
+                }
+            }
+        }
+        pw.println("  Installer: installing=" + isInstallingUpdate() + " uncrypt=" +
+                UpdateInstaller.isInstalling());
+        ABUpdateInstaller.dumpInstance(pw);
+        ProgressMemory progressMemory = mProgressMemory;
+        if (progressMemory != null) {
+            progressMemory.dump(pw);
+        }
+        synchronized (mTombstones) {
+            pw.println("  Generation: " + mGeneration + " epoch=" + mGenerationEpoch +
+                    " tombstones=" + mTombstones.size());
+        }
+        TaskExecutors.dump(pw);
+        mEvents.dump(pw, MAX_EVENTS);
+    }
 }
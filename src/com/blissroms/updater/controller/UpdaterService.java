@@ -40,16 +40,20 @@ import com.blissroms.updater.R;
 import com.blissroms.updater.UpdaterReceiver;
 import com.blissroms.updater.misc.BuildInfoUtils;
 import com.blissroms.updater.misc.Constants;
+import com.blissroms.updater.misc.NotificationPublisher;
 import com.blissroms.updater.misc.StringGenerator;
+import com.blissroms.updater.misc.UpdateCheckStats;
 import com.blissroms.updater.misc.Utils;
 import com.blissroms.updater.model.Update;
 import com.blissroms.updater.model.UpdateInfo;
 import com.blissroms.updater.model.UpdateStatus;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.DateFormat;
-import java.text.NumberFormat;
+import java.util.Objects;
 
 public class UpdaterService extends Service {
 
@@ -72,6 +76,8 @@ public class UpdaterService extends Service {
 
     private static final int NOTIFICATION_ID = 10;
 
+    private static final long NOTIFICATION_PROGRESS_INTERVAL_MS = 1000;
+
     private final IBinder mBinder = new LocalBinder();
     private boolean mHasClients;
 
@@ -82,6 +88,8 @@ public class UpdaterService extends Service {
 
     private UpdaterController mUpdaterController;
 
+    private NotificationPublisher mNotificationPublisher;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -106,11 +114,15 @@ public class UpdaterService extends Service {
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         mNotificationBuilder.setContentIntent(intent);
 
+        mNotificationPublisher = new NotificationPublisher(this, ONGOING_NOTIFICATION_CHANNEL,
+                NOTIFICATION_PROGRESS_INTERVAL_MS);
+
         mBroadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
                 if (UpdaterController.ACTION_UPDATE_STATUS.equals(intent.getAction())) {
+                    mNotificationPublisher.cancelPending(NOTIFICATION_ID);
                     UpdateInfo update = mUpdaterController.getUpdate(downloadId);
                     setNotificationTitle(update);
                     Bundle extras = new Bundle();
@@ -122,17 +134,16 @@ public class UpdaterService extends Service {
                     handleDownloadProgressChange(update);
                 } else if (UpdaterController.ACTION_INSTALL_PROGRESS.equals(intent.getAction())) {
                     UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-                    setNotificationTitle(update);
                     handleInstallProgress(update);
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
-                    final boolean isLocalUpdate = Update.LOCAL_ID.equals(downloadId);
+                    final boolean isLocalUpdate = Update.isLocalId(downloadId);
                     Bundle extras = mNotificationBuilder.getExtras();
                     if (extras != null && !isLocalUpdate && downloadId.equals(
                             extras.getString(UpdaterController.EXTRA_DOWNLOAD_ID))) {
                         mNotificationBuilder.setExtras(null);
                         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
                         if (update.getStatus() != UpdateStatus.INSTALLED) {
-                            mNotificationManager.cancel(NOTIFICATION_ID);
+                            mNotificationPublisher.cancel(NOTIFICATION_ID);
                         }
                     }
                 }
@@ -150,6 +161,9 @@ public class UpdaterService extends Service {
     @Override
     public void onDestroy() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mNotificationPublisher.cancelPending(NOTIFICATION_ID);
+        // The writer outlives the service, don't wait for it
+        mUpdaterController.flushDatabase(null);
         super.onDestroy();
     }
 
@@ -172,16 +186,42 @@ public class UpdaterService extends Service {
         return false;
     }
 
+    // adb shell dumpsys activity service com.blissroms.updater/.controller.UpdaterService
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("UpdaterService: hasClients=" + mHasClients);
+        mNotificationPublisher.dump(pw);
+        pw.println("  Update checks: " + UpdateCheckStats.get());
+        mUpdaterController.dump(pw);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Starting service");
 
+        // Commands refer to stored updates, wait until they are known
+        mUpdaterController.runWhenLoaded(() -> handleCommand(intent));
+        // The command may not have run yet, stay sticky for the ones that can start an
+        // installation so that a restarted service reconnects to it
+        return ABUpdateInstaller.isInstallingUpdate(this) || isInstallCommand(intent) ?
+                START_STICKY : START_NOT_STICKY;
+    }
+
+    private static boolean isInstallCommand(Intent intent) {
+        return intent != null && (ACTION_INSTALL_UPDATE.equals(intent.getAction()) ||
+                ACTION_INSTALL_RESUME.equals(intent.getAction()));
+    }
+
+    private void handleCommand(Intent intent) {
         if (intent == null || intent.getAction() == null) {
             if (ABUpdateInstaller.isInstallingUpdate(this)) {
                 // The service is being restarted.
                 ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
                         mUpdaterController);
                 installer.reconnect();
+            } else {
+                // Restarted after a command that didn't leave an installation running
+                tryStopSelf();
             }
         } else if (ACTION_DOWNLOAD_CONTROL.equals(intent.getAction())) {
             String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
@@ -199,8 +239,10 @@ public class UpdaterService extends Service {
             if (update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED) {
                 throw new IllegalArgumentException(update.getDownloadId() + " is not verified");
             }
+            // Every path to a reboot flushes again, just start committing now
+            mUpdaterController.flushDatabase(null);
             try {
-                if (Utils.isABUpdate(update.getFile())) {
+                if (mUpdaterController.isABUpdate(downloadId)) {
                     ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
                             mUpdaterController);
                     installer.install(downloadId);
@@ -241,7 +283,6 @@ public class UpdaterService extends Service {
                 installer.resume();
             }
         }
-        return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
     }
 
     public UpdaterController getUpdaterController() {
@@ -261,7 +302,7 @@ public class UpdaterService extends Service {
             case DELETED: {
                 stopForeground(STOP_FOREGROUND_DETACH);
                 mNotificationBuilder.setOngoing(false);
-                mNotificationManager.cancel(NOTIFICATION_ID);
+                mNotificationPublisher.cancel(NOTIFICATION_ID);
                 tryStopSelf();
                 break;
             }
@@ -277,7 +318,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
                 startForeground(NOTIFICATION_ID, mNotificationBuilder.build());
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 break;
             }
             case DOWNLOADING: {
@@ -292,7 +333,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 break;
             }
             case PAUSED: {
@@ -310,7 +351,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -330,7 +371,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -343,7 +384,7 @@ public class UpdaterService extends Service {
                 String text = getString(R.string.verifying_download_notification);
                 mNotificationStyle.bigText(text);
                 mNotificationBuilder.setTicker(text);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 break;
             }
             case VERIFIED: {
@@ -357,7 +398,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -372,7 +413,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -395,7 +436,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
                 startForeground(NOTIFICATION_ID, mNotificationBuilder.build());
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 break;
             }
             case INSTALLED: {
@@ -413,11 +454,11 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
 
                 SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
                 boolean deleteUpdate = pref.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false);
-                boolean isLocal = Update.LOCAL_ID.equals(update.getDownloadId());
+                boolean isLocal = Update.isLocalId(update.getDownloadId());
                 // Always delete local updates
                 if (deleteUpdate || isLocal) {
                     mUpdaterController.deleteUpdate(update.getDownloadId());
@@ -437,7 +478,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(true);
                 mNotificationBuilder.mActions.clear();
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -461,7 +502,7 @@ public class UpdaterService extends Service {
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(true);
                 mNotificationBuilder.setAutoCancel(false);
-                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                mNotificationPublisher.publishNow(NOTIFICATION_ID, mNotificationBuilder.build());
                 tryStopSelf();
                 break;
             }
@@ -469,34 +510,76 @@ public class UpdaterService extends Service {
     }
 
     private void handleDownloadProgressChange(UpdateInfo update) {
-        int progress = update.getProgress();
-        mNotificationBuilder.setProgress(100, progress, false);
-
-        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-        String speed = Formatter.formatFileSize(this, update.getSpeed());
-        mNotificationStyle.setSummaryText(percent + " • " + speed + "/s");
-
-        setNotificationTitle(update);
-
-        CharSequence eta = StringGenerator.formatETA(this, update.getEta() * 1000);
-        mNotificationStyle.bigText(
-                getString(R.string.text_download_speed, eta, speed));
-
-        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+        final String downloadId = update.getDownloadId();
+        final int progress = update.getProgress();
+        final long speedBytes = update.getSpeed();
+        final long etaMillis = update.getEta() * 1000;
+        int signature = Objects.hash(downloadId, progress, getSpeedKey(speedBytes),
+                StringGenerator.getETAKey(etaMillis));
+        mNotificationPublisher.publish(NOTIFICATION_ID, signature, () -> {
+            UpdateInfo current = mUpdaterController.getUpdate(downloadId);
+            if (current == null || current.getStatus() != UpdateStatus.DOWNLOADING) {
+                return null;
+            }
+            String speed = Formatter.formatFileSize(this, speedBytes);
+            CharSequence eta = StringGenerator.formatETA(this, etaMillis);
+            mNotificationBuilder.setProgress(100, progress, false);
+            String percent = mNotificationPublisher.formatPercent(progress);
+            mNotificationStyle.setSummaryText(percent + " • " + speed + "/s");
+            setNotificationTitle(current);
+            mNotificationStyle.bigText(getString(R.string.text_download_speed, eta, speed));
+            return mNotificationBuilder.build();
+        });
     }
 
     private void handleInstallProgress(UpdateInfo update) {
-        setNotificationTitle(update);
-        int progress = update.getInstallProgress();
-        mNotificationBuilder.setProgress(100, progress, false);
-        String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-        mNotificationStyle.setSummaryText(percent);
-        boolean notAB = UpdateInstaller.isInstalling();
-        mNotificationStyle.bigText(notAB ? getString(R.string.dialog_prepare_zip_message) :
-                update.getFinalizing() ?
+        final String downloadId = update.getDownloadId();
+        final int progress = update.getInstallProgress();
+        final boolean finalizing = update.getFinalizing();
+        final boolean notAB = UpdateInstaller.isInstalling();
+        // Only the copy made for uncrypt has a speed, A/B updates report none
+        final boolean hasSpeed = notAB && update.getSpeed() > 0;
+        final long speedBytes = update.getSpeed();
+        final long etaMillis = update.getEta() * 1000;
+        int signature = hasSpeed ? Objects.hash(downloadId, progress, finalizing,
+                getSpeedKey(speedBytes), StringGenerator.getETAKey(etaMillis)) :
+                Objects.hash(downloadId, progress, finalizing);
+        mNotificationPublisher.publish(NOTIFICATION_ID, signature, () -> {
+            UpdateInfo current = mUpdaterController.getUpdate(downloadId);
+            if (current == null || current.getStatus() != UpdateStatus.INSTALLING) {
+                return null;
+            }
+            String speed = hasSpeed ? Formatter.formatFileSize(this, speedBytes) : null;
+            CharSequence eta = hasSpeed ? StringGenerator.formatETA(this, etaMillis) : null;
+            setNotificationTitle(current);
+            mNotificationBuilder.setProgress(100, progress, false);
+            String percent = mNotificationPublisher.formatPercent(progress);
+            mNotificationStyle.setSummaryText(speed != null ?
+                    percent + " • " + speed + "/s" : percent);
+            if (notAB) {
+                String text = getString(R.string.dialog_prepare_zip_message);
+                mNotificationStyle.bigText(speed != null ?
+                        text + "\n" + getString(R.string.text_download_speed, eta, speed) :
+                        text);
+            } else {
+                mNotificationStyle.bigText(finalizing ?
                         getString(R.string.finalizing_package) :
                         getString(R.string.preparing_ota_first_boot));
-        mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+            }
+            return mNotificationBuilder.build();
+        });
+    }
+
+    /**
+     * Keep 4 significant digits, at least as many as formatFileSize() shows, so that
+     * the key only changes when the text might.
+     */
+    private static long getSpeedKey(long bytesPerSecond) {
+        long scale = 1;
+        while (bytesPerSecond / scale >= 10000) {
+            scale *= 10;
+        }
+        return bytesPerSecond / scale * scale;
     }
 
     private void setNotificationTitle(UpdateInfo update) {
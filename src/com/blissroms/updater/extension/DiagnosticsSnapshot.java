@@ -0,0 +1,143 @@
+package com.blissroms.updater.extension;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the updater measured so far. The update check statistics cover the checks made
+ * since the app process started, the download statistics the last downloads.
+ */
+public class DiagnosticsSnapshot implements Parcelable {
+
+    private long mTimestamp;
+    private long mCheckCount;
+    private long mCheckFailureCount;
+    private long mCheckAverageMillis;
+    private long mCheckMaxMillis;
+    private long mLastCheckMillis;
+    private float mCheckCacheHitRate;
+    private List<DownloadStats> mDownloads = new ArrayList<>();
+
+    public DiagnosticsSnapshot() {
+    }
+
+    private DiagnosticsSnapshot(Parcel in) {
+        mTimestamp = in.readLong();
+        mCheckCount = in.readLong();
+        mCheckFailureCount = in.readLong();
+        mCheckAverageMillis = in.readLong();
+        mCheckMaxMillis = in.readLong();
+        mLastCheckMillis = in.readLong();
+        mCheckCacheHitRate = in.readFloat();
+        in.readTypedList(mDownloads, DownloadStats.CREATOR);
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mTimestamp);
+        dest.writeLong(mCheckCount);
+        dest.writeLong(mCheckFailureCount);
+        dest.writeLong(mCheckAverageMillis);
+        dest.writeLong(mCheckMaxMillis);
+        dest.writeLong(mLastCheckMillis);
+        dest.writeFloat(mCheckCacheHitRate);
+        dest.writeTypedList(mDownloads);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<DiagnosticsSnapshot> CREATOR =
+            new Creator<DiagnosticsSnapshot>() {
+        @Override
+        public DiagnosticsSnapshot createFromParcel(Parcel in) {
+            return new DiagnosticsSnapshot(in);
+        }
+
+        @Override
+        public DiagnosticsSnapshot[] newArray(int size) {
+            return new DiagnosticsSnapshot[size];
+        }
+    };
+
+    /**
+     * Wall clock time of the snapshot.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        mTimestamp = timestamp;
+    }
+
+    public long getCheckCount() {
+        return mCheckCount;
+    }
+
+    public void setCheckCount(long count) {
+        mCheckCount = count;
+    }
+
+    public long getCheckFailureCount() {
+        return mCheckFailureCount;
+    }
+
+    public void setCheckFailureCount(long count) {
+        mCheckFailureCount = count;
+    }
+
+    public long getCheckAverageMillis() {
+        return mCheckAverageMillis;
+    }
+
+    public void setCheckAverageMillis(long millis) {
+        mCheckAverageMillis = millis;
+    }
+
+    public long getCheckMaxMillis() {
+        return mCheckMaxMillis;
+    }
+
+    public void setCheckMaxMillis(long millis) {
+        mCheckMaxMillis = millis;
+    }
+
+    /**
+     * Duration of the last check, -1 if none.
+     */
+    public long getLastCheckMillis() {
+        return mLastCheckMillis;
+    }
+
+    public void setLastCheckMillis(long millis) {
+        mLastCheckMillis = millis;
+    }
+
+    /**
+     * Share of the successful checks that downloaded the same list as the previous one.
+     */
+    public float getCheckCacheHitRate() {
+        return mCheckCacheHitRate;
+    }
+
+    public void setCheckCacheHitRate(float rate) {
+        mCheckCacheHitRate = rate;
+    }
+
+    /**
+     * The last downloads, most recent first.
+     */
+    public List<DownloadStats> getDownloads() {
+        return mDownloads;
+    }
+
+    public void setDownloads(List<DownloadStats> downloads) {
+        mDownloads = downloads;
+    }
+}
@@ -0,0 +1,226 @@
+package com.blissroms.updater.extension;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * How the download of an update went, across all its attempts. See the metrics table
+ * of UpdatesDbHelper for the meaning of each value, durations are -1 when not known.
+ */
+public class DownloadStats implements Parcelable {
+
+    private String mDownloadId;
+    private String mResult;
+    private long mStartTime;
+    private int mAttempts;
+    private long mFirstTtfbMillis;
+    private long mLastTtfbMillis;
+    private String mMirror;
+    private long mBytes;
+    private long mWastedBytes;
+    private int mStalls;
+    private long mStallMillis;
+    private long mActiveMillis;
+    private long mP10KibPerSecond;
+    private long mMedianKibPerSecond;
+    private long mP90KibPerSecond;
+    private long mVerifyMillis;
+    private long mInstallMillis;
+
+    public DownloadStats() {
+    }
+
+    private DownloadStats(Parcel in) {
+        mDownloadId = in.readString();
+        mResult = in.readString();
+        mStartTime = in.readLong();
+        mAttempts = in.readInt();
+        mFirstTtfbMillis = in.readLong();
+        mLastTtfbMillis = in.readLong();
+        mMirror = in.readString();
+        mBytes = in.readLong();
+        mWastedBytes = in.readLong();
+        mStalls = in.readInt();
+        mStallMillis = in.readLong();
+        mActiveMillis = in.readLong();
+        mP10KibPerSecond = in.readLong();
+        mMedianKibPerSecond = in.readLong();
+        mP90KibPerSecond = in.readLong();
+        mVerifyMillis = in.readLong();
+        mInstallMillis = in.readLong();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mDownloadId);
+        dest.writeString(mResult);
+        dest.writeLong(mStartTime);
+        dest.writeInt(mAttempts);
+        dest.writeLong(mFirstTtfbMillis);
+        dest.writeLong(mLastTtfbMillis);
+        dest.writeString(mMirror);
+        dest.writeLong(mBytes);
+        dest.writeLong(mWastedBytes);
+        dest.writeInt(mStalls);
+        dest.writeLong(mStallMillis);
+        dest.writeLong(mActiveMillis);
+        dest.writeLong(mP10KibPerSecond);
+        dest.writeLong(mMedianKibPerSecond);
+        dest.writeLong(mP90KibPerSecond);
+        dest.writeLong(mVerifyMillis);
+        dest.writeLong(mInstallMillis);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<DownloadStats> CREATOR = new Creator<DownloadStats>() {
+        @Override
+        public DownloadStats createFromParcel(Parcel in) {
+            return new DownloadStats(in);
+        }
+
+        @Override
+        public DownloadStats[] newArray(int size) {
+            return new DownloadStats[size];
+        }
+    };
+
+    public String getDownloadId() {
+        return mDownloadId;
+    }
+
+    public void setDownloadId(String downloadId) {
+        mDownloadId = downloadId;
+    }
+
+    public String getResult() {
+        return mResult;
+    }
+
+    public void setResult(String result) {
+        mResult = result;
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public void setStartTime(long startTime) {
+        mStartTime = startTime;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    public void setAttempts(int attempts) {
+        mAttempts = attempts;
+    }
+
+    public long getFirstTtfbMillis() {
+        return mFirstTtfbMillis;
+    }
+
+    public void setFirstTtfbMillis(long firstTtfbMillis) {
+        mFirstTtfbMillis = firstTtfbMillis;
+    }
+
+    public long getLastTtfbMillis() {
+        return mLastTtfbMillis;
+    }
+
+    public void setLastTtfbMillis(long lastTtfbMillis) {
+        mLastTtfbMillis = lastTtfbMillis;
+    }
+
+    public String getMirror() {
+        return mMirror;
+    }
+
+    public void setMirror(String mirror) {
+        mMirror = mirror;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public void setBytes(long bytes) {
+        mBytes = bytes;
+    }
+
+    public long getWastedBytes() {
+        return mWastedBytes;
+    }
+
+    public void setWastedBytes(long wastedBytes) {
+        mWastedBytes = wastedBytes;
+    }
+
+    public int getStalls() {
+        return mStalls;
+    }
+
+    public void setStalls(int stalls) {
+        mStalls = stalls;
+    }
+
+    public long getStallMillis() {
+        return mStallMillis;
+    }
+
+    public void setStallMillis(long stallMillis) {
+        mStallMillis = stallMillis;
+    }
+
+    public long getActiveMillis() {
+        return mActiveMillis;
+    }
+
+    public void setActiveMillis(long activeMillis) {
+        mActiveMillis = activeMillis;
+    }
+
+    public long getP10KibPerSecond() {
+        return mP10KibPerSecond;
+    }
+
+    public void setP10KibPerSecond(long p10KibPerSecond) {
+        mP10KibPerSecond = p10KibPerSecond;
+    }
+
+    public long getMedianKibPerSecond() {
+        return mMedianKibPerSecond;
+    }
+
+    public void setMedianKibPerSecond(long medianKibPerSecond) {
+        mMedianKibPerSecond = medianKibPerSecond;
+    }
+
+    public long getP90KibPerSecond() {
+        return mP90KibPerSecond;
+    }
+
+    public void setP90KibPerSecond(long p90KibPerSecond) {
+        mP90KibPerSecond = p90KibPerSecond;
+    }
+
+    public long getVerifyMillis() {
+        return mVerifyMillis;
+    }
+
+    public void setVerifyMillis(long verifyMillis) {
+        mVerifyMillis = verifyMillis;
+    }
+
+    public long getInstallMillis() {
+        return mInstallMillis;
+    }
+
+    public void setInstallMillis(long installMillis) {
+        mInstallMillis = installMillis;
+    }
+}
@@ -0,0 +1,138 @@
+package com.blissroms.updater.extension;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * State of an update being downloaded, verified or installed at a given time.
+ */
+public class MetricsSample implements Parcelable {
+
+    private long mTimestamp;
+    private String mDownloadId;
+    private String mStatus;
+    private long mDownloadedBytes;
+    private long mFileSize;
+    private long mSpeed;
+    private long mEta;
+    private int mInstallProgress;
+
+    public MetricsSample() {
+    }
+
+    private MetricsSample(Parcel in) {
+        mTimestamp = in.readLong();
+        mDownloadId = in.readString();
+        mStatus = in.readString();
+        mDownloadedBytes = in.readLong();
+        mFileSize = in.readLong();
+        mSpeed = in.readLong();
+        mEta = in.readLong();
+        mInstallProgress = in.readInt();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mTimestamp);
+        dest.writeString(mDownloadId);
+        dest.writeString(mStatus);
+        dest.writeLong(mDownloadedBytes);
+        dest.writeLong(mFileSize);
+        dest.writeLong(mSpeed);
+        dest.writeLong(mEta);
+        dest.writeInt(mInstallProgress);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<MetricsSample> CREATOR = new Creator<MetricsSample>() {
+        @Override
+        public MetricsSample createFromParcel(Parcel in) {
+            return new MetricsSample(in);
+        }
+
+        @Override
+        public MetricsSample[] newArray(int size) {
+            return new MetricsSample[size];
+        }
+    };
+
+    /**
+     * Wall clock time of the sample.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        mTimestamp = timestamp;
+    }
+
+    public String getDownloadId() {
+        return mDownloadId;
+    }
+
+    public void setDownloadId(String downloadId) {
+        mDownloadId = downloadId;
+    }
+
+    /**
+     * Name of the UpdateStatus of the update.
+     */
+    public String getStatus() {
+        return mStatus;
+    }
+
+    public void setStatus(String status) {
+        mStatus = status;
+    }
+
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    public void setDownloadedBytes(long downloadedBytes) {
+        mDownloadedBytes = downloadedBytes;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        mFileSize = fileSize;
+    }
+
+    /**
+     * Bytes per second, of the download or of the copy made before installing.
+     */
+    public long getSpeed() {
+        return mSpeed;
+    }
+
+    public void setSpeed(long speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * Seconds left.
+     */
+    public long getEta() {
+        return mEta;
+    }
+
+    public void setEta(long eta) {
+        mEta = eta;
+    }
+
+    public int getInstallProgress() {
+        return mInstallProgress;
+    }
+
+    public void setInstallProgress(int installProgress) {
+        mInstallProgress = installProgress;
+    }
+}
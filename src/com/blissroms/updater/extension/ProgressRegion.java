@@ -0,0 +1,55 @@
+package com.blissroms.updater.extension;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SharedMemory;
+
+/**
+ * Read only shared memory where the progress of the updates is published, see
+ * com.blissroms.updater.misc.ProgressTable for the layout and how to read it.
+ */
+public class ProgressRegion implements Parcelable {
+
+    private SharedMemory mMemory;
+
+    public ProgressRegion() {
+    }
+
+    private ProgressRegion(Parcel in) {
+        mMemory = in.readParcelable(SharedMemory.class.getClassLoader());
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeParcelable(mMemory, flags);
+    }
+
+    @Override
+    public int describeContents() {
+        return CONTENTS_FILE_DESCRIPTOR;
+    }
+
+    public static final Creator<ProgressRegion> CREATOR = new Creator<ProgressRegion>() {
+        @Override
+        public ProgressRegion createFromParcel(Parcel in) {
+            return new ProgressRegion(in);
+        }
+
+        @Override
+        public ProgressRegion[] newArray(int size) {
+            return new ProgressRegion[size];
+        }
+    };
+
+    /**
+     * Map it with mapReadOnly(), the mapping can be kept for as long as the client is
+     * bound.
+     */
+    public SharedMemory getMemory() {
+        return mMemory;
+    }
+
+    public void setMemory(SharedMemory memory) {
+        mMemory = memory;
+    }
+}
@@ -0,0 +1,137 @@
+package com.blissroms.updater.extension;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.blissos.updatersdk.UpdateItemInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Updates added, changed and removed since a generation.
+ */
+public class UpdatesDelta implements Parcelable {
+
+    private long mEpoch;
+    private long mGeneration;
+    private long mPosition;
+    private boolean mReset;
+    private boolean mHasMore;
+    private List<UpdateItemInfo> mChanged = new ArrayList<>();
+    private List<String> mRemoved = new ArrayList<>();
+
+    public UpdatesDelta() {
+    }
+
+    private UpdatesDelta(Parcel in) {
+        mEpoch = in.readLong();
+        mGeneration = in.readLong();
+        mPosition = in.readLong();
+        mReset = in.readInt() != 0;
+        mHasMore = in.readInt() != 0;
+        in.readTypedList(mChanged, UpdateItemInfo.CREATOR);
+        in.readStringList(mRemoved);
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mEpoch);
+        dest.writeLong(mGeneration);
+        dest.writeLong(mPosition);
+        dest.writeInt(mReset ? 1 : 0);
+        dest.writeInt(mHasMore ? 1 : 0);
+        dest.writeTypedList(mChanged);
+        dest.writeStringList(mRemoved);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Creator<UpdatesDelta> CREATOR = new Creator<UpdatesDelta>() {
+        @Override
+        public UpdatesDelta createFromParcel(Parcel in) {
+            return new UpdatesDelta(in);
+        }
+
+        @Override
+        public UpdatesDelta[] newArray(int size) {
+            return new UpdatesDelta[size];
+        }
+    };
+
+    /**
+     * Identifies the generations, they start over when it changes.
+     */
+    public long getEpoch() {
+        return mEpoch;
+    }
+
+    public void setEpoch(long epoch) {
+        mEpoch = epoch;
+    }
+
+    /**
+     * Pass it with the epoch to get the next changes.
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    public void setGeneration(long generation) {
+        mGeneration = generation;
+    }
+
+    /**
+     * Pass it with the generation to get the next page of a listing of all the updates,
+     * 0 outside of one.
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    public void setPosition(long position) {
+        mPosition = position;
+    }
+
+    /**
+     * Whether the updates known so far must be forgotten, the delta then lists all of
+     * them.
+     */
+    public boolean isReset() {
+        return mReset;
+    }
+
+    public void setReset(boolean reset) {
+        mReset = reset;
+    }
+
+    /**
+     * Whether more changes didn't fit, ask for them right away.
+     */
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+    public void setHasMore(boolean hasMore) {
+        mHasMore = hasMore;
+    }
+
+    public List<UpdateItemInfo> getChanged() {
+        return mChanged;
+    }
+
+    public void setChanged(List<UpdateItemInfo> changed) {
+        mChanged = changed;
+    }
+
+    public List<String> getRemoved() {
+        return mRemoved;
+    }
+
+    public void setRemoved(List<String> removed) {
+        mRemoved = removed;
+    }
+}
@@ -47,6 +47,17 @@ public final class Constants {
     public static final String PROP_UPDATER_URI = "bliss.updater.uri";
     public static final String PROP_RELEASE_VARIANT = "ro.bliss.build.variant";
 
+    // Only honored on debuggable builds, see FakeInstallEngine
+    public static final String PROP_DEBUGGABLE = "ro.debuggable";
+    public static final String PROP_FAKE_ENGINE = "bliss.updater.fake_engine";
+    public static final String PROP_FAKE_ENGINE_RATE = "bliss.updater.fake_engine.rate";
+    public static final String PROP_FAKE_ENGINE_DURATION = "bliss.updater.fake_engine.duration";
+    public static final String PROP_FAKE_ENGINE_FINALIZING =
+            "bliss.updater.fake_engine.finalizing";
+    public static final String PROP_FAKE_ENGINE_FAIL_AT = "bliss.updater.fake_engine.fail_at";
+    public static final String PROP_FAKE_ENGINE_BIND_DELAY =
+            "bliss.updater.fake_engine.bind_delay";
+
     public static final String PREF_INSTALL_OLD_TIMESTAMP = "install_old_timestamp";
     public static final String PREF_INSTALL_NEW_TIMESTAMP = "install_new_timestamp";
     public static final String PREF_INSTALL_PACKAGE_PATH = "install_package_path";
@@ -0,0 +1,272 @@
+package com.blissroms.updater.misc;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Exports a file using the cheapest strategy that works.
+ *
+ * A hard link is tried first when source and destination are on the same filesystem.
+ * Otherwise the file is copied in large chunks with FileChannel.transferTo(), which
+ * the platform turns into sendfile() or copy_file_range(), so the data doesn't go
+ * through the Java heap. When the digest of the source is known, the copy is verified
+ * against it.
+ *
+ * Destinations we only have a descriptor of, like Storage Access Framework documents,
+ * go through exportToChannel() instead.
+ */
+public class FileExporter {
+
+    private static final String TAG = "FileExporter";
+
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int VERIFY_BUFFER_SIZE = 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final long CHECKPOINT_BYTES = 64 * 1024 * 1024;
+
+    public enum Method {
+        LINK,
+        COPY,
+    }
+
+    /**
+     * What was written doesn't match the source, resuming from it is pointless.
+     */
+    public static class MismatchException extends IOException {
+        public MismatchException(String message) {
+            super(message);
+        }
+    }
+
+    public interface CheckpointListener {
+        /**
+         * Called from the copying thread once the first length bytes are on disk.
+         */
+        void onCheckpoint(long length);
+    }
+
+    private FileExporter() {
+    }
+
+    /**
+     * @param digest the SHA-256 of the source in hex, can be null
+     * @param progressCallBack called when the percentage changes, can be null
+     * @return how the file was exported
+     */
+    public static Method export(File source, File destination, String digest,
+            FileUtils.ProgressCallBack progressCallBack) throws IOException {
+        if (isSameFilesystem(source, destination.getParentFile())) {
+            try {
+                Os.link(source.getAbsolutePath(), destination.getAbsolutePath());
+                Log.d(TAG, "Linked " + source + " to " + destination);
+                if (progressCallBack != null) {
+                    progressCallBack.update(100);
+                }
+                return Method.LINK;
+            } catch (ErrnoException e) {
+                // e.g. the filesystem doesn't support links
+                Log.d(TAG, "Could not link " + source + ", copying it", e);
+            }
+        }
+
+        try {
+            copy(source, destination, progressCallBack);
+            if (digest != null) {
+                verify(destination, digest);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            destination.delete();
+            throw e;
+        }
+        return Method.COPY;
+    }
+
+    /**
+     * Copy source into destination, starting at offset if the destination can seek,
+     * hashing the whole source in the same pass. The destination is synced every
+     * CHECKPOINT_BYTES and once done, the listener is told after each sync.
+     *
+     * When given a way to read it, a seekable destination is then read back, the
+     * resumed prefix included, and has to match the source. Other destinations are only
+     * known by what we wrote to them.
+     *
+     * @param readBack destination opened for reading, null if it can't be read
+     * @param offset where to resume from, the bytes before it are only read to hash them
+     * @return the SHA-256 of the destination in hex
+     * @throws MismatchException if the destination doesn't match the source
+     */
+    public static String exportToChannel(File source, FileChannel destination,
+            FileChannel readBack, long offset, FileUtils.ProgressCallBack progressCallBack,
+            CheckpointListener listener) throws IOException {
+        final MessageDigest messageDigest = newSha256();
+        try (FileChannel sourceChannel = new FileInputStream(source).getChannel()) {
+            final long size = sourceChannel.size();
+            boolean seekable;
+            try {
+                // Never resume past what is actually there
+                offset = Math.min(offset, destination.size());
+                seekable = true;
+            } catch (IOException e) {
+                // Some providers give us a pipe, it can't be resumed nor synced
+                Log.d(TAG, "Streaming to a pipe");
+                seekable = false;
+            }
+            if (!seekable || offset > size) {
+                offset = 0;
+            }
+            if (offset > 0) {
+                destination.truncate(offset);
+                destination.position(offset);
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+            long position = 0;
+            long lastCheckpoint = offset;
+            int lastProgress = -1;
+            while (position < size) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Export cancelled");
+                }
+                buffer.clear();
+                if (position < offset) {
+                    buffer.limit((int) Math.min(buffer.capacity(), offset - position));
+                }
+                int read = sourceChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException(source + " shrunk while exporting it");
+                }
+                buffer.flip();
+                messageDigest.update(buffer.duplicate());
+                if (position >= offset) {
+                    while (buffer.hasRemaining()) {
+                        destination.write(buffer);
+                    }
+                }
+                position += read;
+
+                if (seekable && position >= offset &&
+                        position - lastCheckpoint >= CHECKPOINT_BYTES) {
+                    destination.force(false);
+                    lastCheckpoint = position;
+                    if (listener != null) {
+                        listener.onCheckpoint(position);
+                    }
+                }
+                int progress = (int) (position * 100 / size);
+                if (progressCallBack != null && progress != lastProgress) {
+                    progressCallBack.update(progress);
+                    lastProgress = progress;
+                }
+            }
+            if (seekable) {
+                destination.force(false);
+            }
+            if (listener != null) {
+                listener.onCheckpoint(size);
+            }
+
+            final String sourceDigest = FileUtils.toHexString(messageDigest.digest());
+            if (!seekable || readBack == null) {
+                return sourceDigest;
+            }
+            final String writtenDigest = digest(readBack, size);
+            if (!writtenDigest.equalsIgnoreCase(sourceDigest)) {
+                throw new MismatchException("Exported copy of " + source +
+                        " doesn't match it: " + writtenDigest);
+            }
+            return writtenDigest;
+        }
+    }
+
+    private static boolean isSameFilesystem(File a, File b) {
+        try {
+            StructStat statA = Os.stat(a.getAbsolutePath());
+            StructStat statB = Os.stat(b.getAbsolutePath());
+            return statA.st_dev == statB.st_dev;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static void copy(File source, File destination,
+            FileUtils.ProgressCallBack progressCallBack) throws IOException {
+        try (FileChannel sourceChannel = new FileInputStream(source).getChannel();
+             FileChannel destChannel = new FileOutputStream(destination).getChannel()) {
+            final long size = sourceChannel.size();
+            long position = 0;
+            int lastProgress = -1;
+            while (position < size) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Export cancelled");
+                }
+                long count = sourceChannel.transferTo(position,
+                        Math.min(CHUNK_SIZE, size - position), destChannel);
+                if (count <= 0) {
+                    throw new IOException("Could not copy " + source + " at " + position);
+                }
+                position += count;
+                int progress = (int) (position * 100 / size);
+                if (progressCallBack != null && progress != lastProgress) {
+                    progressCallBack.update(progress);
+                    lastProgress = progress;
+                }
+            }
+        }
+    }
+
+    private static void verify(File file, String digest) throws IOException {
+        final String actual;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            actual = digest(channel, channel.size());
+        }
+        if (!actual.equalsIgnoreCase(digest)) {
+            throw new MismatchException("Digest mismatch for " + file + ": " + actual);
+        }
+        Log.d(TAG, "Verified " + file);
+    }
+
+    /**
+     * @return the SHA-256 in hex of the first size bytes of channel
+     */
+    private static String digest(FileChannel channel, long size) throws IOException {
+        final MessageDigest messageDigest = newSha256();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(VERIFY_BUFFER_SIZE);
+        long position = 0;
+        while (position < size) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Export cancelled");
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new MismatchException("Unexpected end of the copy at " + position);
+            }
+            buffer.flip();
+            messageDigest.update(buffer);
+            position += read;
+        }
+        return FileUtils.toHexString(messageDigest.digest());
+    }
+
+    private static MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.blissroms.updater.misc;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.text.NumberFormat;
+import java.util.function.Supplier;
+
+/**
+ * Posts notifications, rate limiting progress updates.
+ *
+ * The limit applies to each notification ID on its own, not to a channel: progress
+ * updates are published at most once per interval for each ID.
+ * Updates whose content signature matches what is already shown are dropped; when
+ * updates come in too fast only the latest one is kept and it is published at the end
+ * of the interval. State changes go through publishNow() and are never delayed, they
+ * also discard any pending progress update.
+ *
+ * Notifications are always built and posted on the main thread, the methods can be
+ * called from any thread.
+ */
+public class NotificationPublisher {
+
+    private final NotificationManager mNotificationManager;
+    // Tells the publishers apart in dumps
+    private final String mName;
+    private final long mMinIntervalMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+
+    private final NumberFormat mPercentFormat = NumberFormat.getPercentInstance();
+    private final String[] mPercentStrings = new String[101];
+
+    private long mPublishedCount;
+    private long mDedupedCount;
+    private long mCoalescedCount;
+
+    private static final int NO_SIGNATURE = 0;
+
+    private class Entry implements Runnable {
+        final int mId;
+        long mLastPublishMillis;
+        int mPublishedSignature = NO_SIGNATURE;
+        int mPendingSignature;
+        Supplier<Notification> mPending;
+
+        private Entry(int id) {
+            mId = id;
+        }
+
+        @Override
+        public void run() {
+            Supplier<Notification> pending = mPending;
+            if (pending == null) {
+                return;
+            }
+            mPending = null;
+            Notification notification = pending.get();
+            if (notification != null) {
+                notify(mPendingSignature, notification);
+            }
+        }
+
+        void notify(int signature, Notification notification) {
+            mNotificationManager.notify(mId, notification);
+            mPublishedSignature = signature;
+            mLastPublishMillis = SystemClock.uptimeMillis();
+            mPublishedCount++;
+        }
+
+        void cancelPending() {
+            if (mPending != null) {
+                mPending = null;
+                mHandler.removeCallbacks(this);
+            }
+        }
+    }
+
+    public NotificationPublisher(Context context, String name, long minIntervalMillis) {
+        mNotificationManager = context.getSystemService(NotificationManager.class);
+        mName = name;
+        mMinIntervalMillis = minIntervalMillis;
+    }
+
+    private Entry getEntry(int id) {
+        Entry entry = mEntries.get(id);
+        if (entry == null) {
+            entry = new Entry(id);
+            mEntries.put(id, entry);
+        }
+        return entry;
+    }
+
+    private boolean runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            return false;
+        }
+        mHandler.post(runnable);
+        return true;
+    }
+
+    /**
+     * Publish a progress update. The factory is called on the main thread when the
+     * update is actually published, it can return null if the update is no longer
+     * relevant by then.
+     *
+     * @param signature a hash of the content, updates with the same signature as the
+     *                  notification being shown are dropped
+     */
+    public void publish(int id, int signature, Supplier<Notification> factory) {
+        if (runOnMainThread(() -> publish(id, signature, factory))) {
+            return;
+        }
+        Entry entry = getEntry(id);
+        if (entry.mPending == null && signature == entry.mPublishedSignature) {
+            mDedupedCount++;
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long nextPublishMillis = entry.mLastPublishMillis + mMinIntervalMillis;
+        if (now >= nextPublishMillis && entry.mPending == null) {
+            Notification notification = factory.get();
+            if (notification != null) {
+                entry.notify(signature, notification);
+            }
+            return;
+        }
+        if (entry.mPending != null) {
+            mCoalescedCount++;
+        } else {
+            mHandler.postAtTime(entry, nextPublishMillis);
+        }
+        entry.mPending = factory;
+        entry.mPendingSignature = signature;
+    }
+
+    /**
+     * Publish a notification right away, dropping any pending progress update.
+     */
+    public void publishNow(int id, Notification notification) {
+        if (runOnMainThread(() -> publishNow(id, notification))) {
+            return;
+        }
+        Entry entry = getEntry(id);
+        entry.cancelPending();
+        entry.notify(NO_SIGNATURE, notification);
+    }
+
+    /**
+     * Cancel the notification and any pending update for it.
+     */
+    public void cancel(int id) {
+        if (runOnMainThread(() -> cancel(id))) {
+            return;
+        }
+        Entry entry = mEntries.get(id);
+        if (entry != null) {
+            entry.cancelPending();
+            mEntries.remove(id);
+        }
+        mNotificationManager.cancel(id);
+    }
+
+    /**
+     * Drop the pending progress update, if any, leaving the notification as it is.
+     */
+    public void cancelPending(int id) {
+        if (runOnMainThread(() -> cancelPending(id))) {
+            return;
+        }
+        Entry entry = mEntries.get(id);
+        if (entry != null) {
+            entry.cancelPending();
+        }
+    }
+
+    /**
+     * Cached percent strings, only use them on the main thread.
+     */
+    public String formatPercent(int progress) {
+        progress = Math.max(0, Math.min(100, progress));
+        String percent = mPercentStrings[progress];
+        if (percent == null) {
+            percent = mPercentFormat.format(progress / 100.f);
+            mPercentStrings[progress] = percent;
+        }
+        return percent;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("  " + mName + ": published=" + mPublishedCount +
+                " deduped=" + mDedupedCount + " coalesced=" + mCoalescedCount);
+    }
+}
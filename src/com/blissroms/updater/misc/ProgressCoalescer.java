@@ -0,0 +1,116 @@
+package com.blissroms.updater.misc;
+
+import android.view.Choreographer;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coalesces progress events per key and delivers them on the main thread at most once
+ * per display frame.
+ *
+ * Only keys are queued, never values: consumers read the current state when the key is
+ * delivered, so they always see the latest progress and a burst of events for the same
+ * key results in a single delivery.
+ */
+public class ProgressCoalescer {
+
+    public interface Consumer {
+        void onProgress(String key);
+    }
+
+    private final Choreographer mChoreographer;
+    private final Consumer mConsumer;
+
+    private final Choreographer.FrameCallback mFrameCallback = frameTimeNanos -> deliver();
+
+    // Guarded by mDirtyKeys
+    private final Set<String> mDirtyKeys = new LinkedHashSet<>();
+    private boolean mScheduled;
+    private long mOfferedCount;
+    private long mDeliveredCount;
+
+    private ProgressCoalescer(Choreographer choreographer, Consumer consumer) {
+        mChoreographer = choreographer;
+        mConsumer = consumer;
+    }
+
+    /**
+     * Deliver at most once per frame. Must be created on the main thread.
+     */
+    public static ProgressCoalescer forFrames(Consumer consumer) {
+        return new ProgressCoalescer(Choreographer.getInstance(), consumer);
+    }
+
+    /**
+     * Signal that the progress of key changed. Can be called from any thread.
+     */
+    public void offer(String key) {
+        synchronized (mDirtyKeys) {
+            mOfferedCount++;
+            mDirtyKeys.add(key);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+
+    /**
+     * Drop the pending event of key, if any. Use it when a state change makes the
+     * progress irrelevant.
+     */
+    public void remove(String key) {
+        synchronized (mDirtyKeys) {
+            mDirtyKeys.remove(key);
+        }
+    }
+
+    /**
+     * Drop all the pending events.
+     */
+    public void cancel() {
+        synchronized (mDirtyKeys) {
+            mDirtyKeys.clear();
+            mScheduled = false;
+        }
+        mChoreographer.removeFrameCallback(mFrameCallback);
+    }
+
+    public long getOfferedCount() {
+        synchronized (mDirtyKeys) {
+            return mOfferedCount;
+        }
+    }
+
+    public long getDeliveredCount() {
+        synchronized (mDirtyKeys) {
+            return mDeliveredCount;
+        }
+    }
+
+    public void dump(PrintWriter pw, String name) {
+        pw.println("  " + name + ": offered=" + getOfferedCount() +
+                " delivered=" + getDeliveredCount());
+    }
+
+    private void deliver() {
+        List<String> keys;
+        synchronized (mDirtyKeys) {
+            mScheduled = false;
+            if (mDirtyKeys.isEmpty()) {
+                return;
+            }
+            keys = new ArrayList<>(mDirtyKeys);
+            mDirtyKeys.clear();
+            mDeliveredCount += keys.size();
+        }
+        for (String key : keys) {
+            mConsumer.onProgress(key);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.blissroms.updater.misc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Copies a file in chunks so that an interrupted copy can be resumed.
+ *
+ * The destination is synced every CHECKPOINT_BYTES and the synced length is then
+ * written to a journal next to it, together with what identifies the source. A copy
+ * started again resumes from the journaled length as long as the source didn't change;
+ * whatever was written after the last checkpoint is discarded.
+ */
+public class ResumableCopier {
+
+    private static final String TAG = "ResumableCopier";
+
+    public static final String JOURNAL_EXT = ".journal";
+
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final long CHECKPOINT_BYTES = 64 * 1024 * 1024;
+    private static final long SPEED_SAMPLE_MS = 500;
+    private static final long MAX_REPORT_INTERVAL_MS = 1000;
+
+    private static final String KEY_SOURCE = "source";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_MODIFIED = "modified";
+    private static final String KEY_SYNCED = "synced";
+
+    public interface Listener {
+        /**
+         * @param speed bytes per second, -1 if not known yet
+         * @param eta seconds, -1 if not known yet
+         */
+        void onProgress(long copied, long total, long speed, long eta);
+    }
+
+    private final File mSource;
+    private final File mDestination;
+    private final File mJournal;
+
+    private long mSpeed = -1;
+    private long mSampleBytes;
+    private long mSampleMillis;
+
+    public ResumableCopier(File source, File destination) {
+        mSource = source;
+        mDestination = destination;
+        mJournal = getJournal(destination);
+    }
+
+    private static File getJournal(File destination) {
+        return new File(destination.getAbsolutePath() + JOURNAL_EXT);
+    }
+
+    /**
+     * Get the length that can be kept from a previous copy, 0 if there's none.
+     */
+    public long getResumeOffset() {
+        if (!mJournal.exists() || !mDestination.exists()) {
+            return 0;
+        }
+        Properties journal = new Properties();
+        try (FileInputStream is = new FileInputStream(mJournal)) {
+            journal.load(is);
+            if (!mSource.getAbsolutePath().equals(journal.getProperty(KEY_SOURCE)) ||
+                    mSource.length() != Long.parseLong(journal.getProperty(KEY_LENGTH)) ||
+                    mSource.lastModified() != Long.parseLong(
+                            journal.getProperty(KEY_MODIFIED))) {
+                Log.d(TAG, "The source of " + mDestination + " changed");
+                return 0;
+            }
+            long synced = Long.parseLong(journal.getProperty(KEY_SYNCED));
+            return synced <= mDestination.length() ? synced : 0;
+        } catch (IOException | NumberFormatException | NullPointerException e) {
+            Log.e(TAG, "Invalid journal " + mJournal, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Copy what's missing. On interruption InterruptedIOException is thrown and the
+     * copy can be resumed from the last checkpoint; the journal is kept once done, call
+     * finish() to drop it.
+     */
+    public void copy(Listener listener) throws IOException {
+        final long offset = getResumeOffset();
+        try (FileChannel sourceChannel = new FileInputStream(mSource).getChannel();
+             FileChannel destChannel = new RandomAccessFile(mDestination, "rw").getChannel()) {
+            final long size = sourceChannel.size();
+            if (offset > 0) {
+                Log.d(TAG, "Resuming " + mDestination + " from " + offset + "/" + size);
+            }
+            destChannel.truncate(offset);
+            destChannel.position(offset);
+
+            long position = offset;
+            long lastCheckpoint = offset;
+            long lastReportMillis = 0;
+            int lastProgress = -1;
+            mSampleBytes = offset;
+            mSampleMillis = SystemClock.elapsedRealtime();
+            while (position < size) {
+                if (Thread.currentThread().isInterrupted()) {
+                    checkpoint(destChannel, position);
+                    throw new InterruptedIOException("Copy interrupted at " + position);
+                }
+                long count;
+                try {
+                    count = sourceChannel.transferTo(position,
+                            Math.min(CHUNK_SIZE, size - position), destChannel);
+                } catch (ClosedByInterruptException e) {
+                    // The channels are closed, the last checkpoint is what can be kept
+                    throw new InterruptedIOException("Copy interrupted after " +
+                            lastCheckpoint);
+                }
+                if (count <= 0) {
+                    throw new IOException("Could not copy " + mSource + " at " + position);
+                }
+                position += count;
+
+                if (position - lastCheckpoint >= CHECKPOINT_BYTES) {
+                    checkpoint(destChannel, position);
+                    lastCheckpoint = position;
+                }
+
+                final long millis = SystemClock.elapsedRealtime();
+                updateSpeed(position, millis);
+                int progress = (int) (position * 100 / size);
+                if (listener != null && (progress != lastProgress ||
+                        millis - lastReportMillis >= MAX_REPORT_INTERVAL_MS)) {
+                    long eta = mSpeed > 0 ? (size - position) / mSpeed : -1;
+                    listener.onProgress(position, size, mSpeed, eta);
+                    lastProgress = progress;
+                    lastReportMillis = millis;
+                }
+            }
+            checkpoint(destChannel, size);
+        }
+    }
+
+    /**
+     * The copy is complete and about to be used, forget about it.
+     */
+    public void finish() {
+        //noinspection ResultOfMethodCallIgnored
+        mJournal.delete();
+    }
+
+    private void updateSpeed(long position, long millis) {
+        final long delta = millis - mSampleMillis;
+        if (delta > SPEED_SAMPLE_MS) {
+            final long speed = ((position - mSampleBytes) * 1000) / delta;
+            mSpeed = mSpeed < 0 ? speed : ((mSpeed * 3) + speed) / 4;
+            mSampleBytes = position;
+            mSampleMillis = millis;
+        }
+    }
+
+    private void checkpoint(FileChannel channel, long length) throws IOException {
+        channel.force(false);
+        Properties journal = new Properties();
+        journal.setProperty(KEY_SOURCE, mSource.getAbsolutePath());
+        journal.setProperty(KEY_LENGTH, String.valueOf(mSource.length()));
+        journal.setProperty(KEY_MODIFIED, String.valueOf(mSource.lastModified()));
+        journal.setProperty(KEY_SYNCED, String.valueOf(length));
+
+        // Replace the journal atomically, a torn one would be worse than an old one
+        File tmp = new File(mJournal.getAbsolutePath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            journal.store(os, null);
+            os.getFD().sync();
+        }
+        if (!tmp.renameTo(mJournal)) {
+            throw new IOException("Could not write " + mJournal);
+        }
+    }
+
+    /**
+     * Whether the given destination is a partial copy that can still be resumed.
+     */
+    public static boolean isResumable(File source, File destination) {
+        return new ResumableCopier(source, destination).getResumeOffset() > 0;
+    }
+
+    /**
+     * Delete the destination and its journal.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static void discard(File destination) {
+        destination.delete();
+        getJournal(destination).delete();
+    }
+}
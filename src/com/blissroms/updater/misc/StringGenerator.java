@@ -70,6 +70,24 @@ public final class StringGenerator {
         }
     }
 
+    /**
+     * Round millis the way formatETA() does: two durations with the same key are
+     * formatted the same, without formatting them.
+     */
+    public static long getETAKey(long millis) {
+        final long SECOND_IN_MILLIS = 1000;
+        final long MINUTE_IN_MILLIS = SECOND_IN_MILLIS * 60;
+        final long HOUR_IN_MILLIS = MINUTE_IN_MILLIS * 60;
+        // The unit is part of the key, "60 minutes" isn't "1 hour"
+        if (millis >= HOUR_IN_MILLIS) {
+            return (millis + 1800000) / HOUR_IN_MILLIS * 3 + 2;
+        } else if (millis >= MINUTE_IN_MILLIS) {
+            return (millis + 30000) / MINUTE_IN_MILLIS * 3 + 1;
+        } else {
+            return (millis + 500) / SECOND_IN_MILLIS * 3;
+        }
+    }
+
     public static Locale getCurrentLocale(Context context) {
         return context.getResources().getConfiguration().getLocales()
                 .getFirstMatch(context.getResources().getAssets().getLocales());
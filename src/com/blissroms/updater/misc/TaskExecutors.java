@@ -0,0 +1,249 @@
+package com.blissroms.updater.misc;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared executors for all the background work of the app.
+ *
+ * copy() is meant for copies that can take minutes (export, import), io() for the
+ * other disk heavy tasks (verify, delete, loading), light() for short tasks (database,
+ * notifications). Keeping the copies apart means they can't hold up the rest.
+ * install() only runs the installation of an update, which must not wait behind the
+ * user's exports and imports once the update shows as installing. callbacks() calls the
+ * IUpdater clients, which can take as long as they like to answer.
+ *
+ * All the pools are bounded. When a queue is full the task is rejected with a
+ * RejectedExecutionException: it is never run on the caller thread, which is usually
+ * the main one.
+ */
+public final class TaskExecutors {
+
+    private static final String TAG = "TaskExecutors";
+
+    private static final int COPY_POOL_SIZE = 2;
+    private static final int COPY_QUEUE_CAPACITY = 16;
+    private static final int INSTALL_POOL_SIZE = 1;
+    private static final int INSTALL_QUEUE_CAPACITY = 2;
+    private static final int CALLBACKS_POOL_SIZE = 3;
+    private static final int CALLBACKS_QUEUE_CAPACITY = 64;
+    private static final int IO_POOL_SIZE = 2;
+    private static final int IO_QUEUE_CAPACITY = 32;
+    private static final int LIGHT_POOL_SIZE = 2;
+    private static final int LIGHT_QUEUE_CAPACITY = 128;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static MonitoredExecutor sCopyExecutor;
+    private static MonitoredExecutor sInstallExecutor;
+    private static MonitoredExecutor sCallbacksExecutor;
+    private static MonitoredExecutor sIoExecutor;
+    private static MonitoredExecutor sLightExecutor;
+
+    private TaskExecutors() {
+    }
+
+    public static synchronized MonitoredExecutor copy() {
+        if (sCopyExecutor == null) {
+            sCopyExecutor = new MonitoredExecutor("updater-copy", COPY_POOL_SIZE,
+                    COPY_QUEUE_CAPACITY, Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        return sCopyExecutor;
+    }
+
+    public static synchronized MonitoredExecutor install() {
+        if (sInstallExecutor == null) {
+            sInstallExecutor = new MonitoredExecutor("updater-install", INSTALL_POOL_SIZE,
+                    INSTALL_QUEUE_CAPACITY, Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        return sInstallExecutor;
+    }
+
+    public static synchronized MonitoredExecutor callbacks() {
+        if (sCallbacksExecutor == null) {
+            sCallbacksExecutor = new MonitoredExecutor("updater-callbacks", CALLBACKS_POOL_SIZE,
+                    CALLBACKS_QUEUE_CAPACITY, Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        return sCallbacksExecutor;
+    }
+
+    public static synchronized MonitoredExecutor io() {
+        if (sIoExecutor == null) {
+            sIoExecutor = new MonitoredExecutor("updater-io", IO_POOL_SIZE,
+                    IO_QUEUE_CAPACITY, Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        return sIoExecutor;
+    }
+
+    public static synchronized MonitoredExecutor light() {
+        if (sLightExecutor == null) {
+            sLightExecutor = new MonitoredExecutor("updater-light", LIGHT_POOL_SIZE,
+                    LIGHT_QUEUE_CAPACITY, Process.THREAD_PRIORITY_BACKGROUND +
+                    Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        }
+        return sLightExecutor;
+    }
+
+    public static void dump(PrintWriter pw) {
+        copy().dump(pw);
+        install().dump(pw);
+        callbacks().dump(pw);
+        io().dump(pw);
+        light().dump(pw);
+    }
+
+    public static final class MonitoredExecutor extends ThreadPoolExecutor {
+        private final String mName;
+
+        private final AtomicLong mSubmitted = new AtomicLong();
+        private final AtomicLong mFinished = new AtomicLong();
+        private final AtomicLong mRejected = new AtomicLong();
+        private final AtomicLong mTotalWaitMillis = new AtomicLong();
+        private final AtomicLong mMaxWaitMillis = new AtomicLong();
+        private final AtomicLong mTotalRunMillis = new AtomicLong();
+        private final AtomicLong mMaxRunMillis = new AtomicLong();
+
+        private MonitoredExecutor(String name, int poolSize, int queueCapacity,
+                int threadPriority) {
+            super(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(queueCapacity),
+                    new NamedThreadFactory(name, threadPriority),
+                    new RejectHandler());
+            mName = name;
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mSubmitted.incrementAndGet();
+            super.execute(new TimedRunnable(command));
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getQueueDepth() {
+            return getQueue().size();
+        }
+
+        public long getSubmittedCount() {
+            return mSubmitted.get();
+        }
+
+        public long getFinishedCount() {
+            return mFinished.get();
+        }
+
+        public long getRejectedCount() {
+            return mRejected.get();
+        }
+
+        public long getAverageWaitMillis() {
+            long finished = mFinished.get();
+            return finished > 0 ? mTotalWaitMillis.get() / finished : 0;
+        }
+
+        public long getMaxWaitMillis() {
+            return mMaxWaitMillis.get();
+        }
+
+        public long getAverageRunMillis() {
+            long finished = mFinished.get();
+            return finished > 0 ? mTotalRunMillis.get() / finished : 0;
+        }
+
+        public long getMaxRunMillis() {
+            return mMaxRunMillis.get();
+        }
+
+        public void dump(PrintWriter pw) {
+            pw.println("  " + mName + ": active=" + getActiveCount() +
+                    " queued=" + getQueueDepth() +
+                    " submitted=" + getSubmittedCount() +
+                    " finished=" + getFinishedCount() +
+                    " rejected=" + getRejectedCount());
+            pw.println("    wait avg=" + getAverageWaitMillis() + "ms max=" +
+                    getMaxWaitMillis() + "ms, run avg=" + getAverageRunMillis() +
+                    "ms max=" + getMaxRunMillis() + "ms");
+        }
+
+        private void onTaskFinished(long waitMillis, long runMillis) {
+            mFinished.incrementAndGet();
+            mTotalWaitMillis.addAndGet(waitMillis);
+            mTotalRunMillis.addAndGet(runMillis);
+            updateMax(mMaxWaitMillis, waitMillis);
+            updateMax(mMaxRunMillis, runMillis);
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) {
+                    return;
+                }
+            }
+        }
+
+        private final class TimedRunnable implements Runnable {
+            private final Runnable mTask;
+            private final long mEnqueuedMillis;
+
+            private TimedRunnable(Runnable task) {
+                mTask = task;
+                mEnqueuedMillis = SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                try {
+                    mTask.run();
+                } finally {
+                    onTaskFinished(start - mEnqueuedMillis,
+                            SystemClock.elapsedRealtime() - start);
+                }
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        private NamedThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(() -> {
+                Process.setThreadPriority(mPriority);
+                r.run();
+            }, mName + "-" + mCount.incrementAndGet());
+        }
+    }
+
+    private static class RejectHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            MonitoredExecutor monitoredExecutor = (MonitoredExecutor) executor;
+            monitoredExecutor.mRejected.incrementAndGet();
+            Log.e(TAG, monitoredExecutor.getName() + " is saturated, rejecting a task from " +
+                    Thread.currentThread().getName());
+            throw new RejectedExecutionException(monitoredExecutor.getName() + " is saturated");
+        }
+    }
+}
@@ -31,29 +31,22 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.blissos.updatersdk.UpdateItemStatus;
-import com.blissroms.updater.UpdatesDbHelper;
+import com.blissroms.updater.UpdatesDbWriter;
 import com.blissroms.updater.controller.UpdaterService;
 import com.blissroms.updater.model.Update;
 import com.blissroms.updater.model.UpdateBaseInfo;
 import com.blissroms.updater.model.UpdateInfo;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import com.blissroms.updater.R;
 import com.blissroms.updater.model.UpdateStatus;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 public class Utils {
@@ -82,19 +75,6 @@ public class Utils {
         return new File(context.getCacheDir(), "updates.json");
     }
 
-    // This should really return an UpdateBaseInfo object, but currently this only
-    // used to initialize UpdateInfo objects
-    private static UpdateInfo parseJsonUpdate(JSONObject object) throws JSONException {
-        Update update = new Update();
-        update.setTimestamp(object.getLong("datetime"));
-        update.setName(object.getString("filename"));
-        update.setDownloadId(object.getString("id"));
-        update.setFileSize(object.getLong("size"));
-        update.setDownloadUrl(object.getString("url"));
-        update.setVersion(object.getString("version"));
-        return update;
-    }
-
     public static boolean isCompatible(UpdateBaseInfo update) {
         if (update.getVersion().compareTo(SystemProperties.get(Constants.PROP_BUILD_VERSION)) < 0) {
             Log.d(TAG, update.getName() + " is older than current Android version");
@@ -115,34 +95,8 @@ public class Utils {
 
     public static List<UpdateInfo> parseJson(File file, boolean compatibleOnly)
             throws IOException, JSONException {
-        List<UpdateInfo> updates = new ArrayList<>();
-
-        StringBuilder json = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            for (String line; (line = br.readLine()) != null;) {
-                json.append(line);
-            }
-        }
-
-        JSONObject obj = new JSONObject(json.toString());
-        JSONArray updatesList = obj.getJSONArray("response");
-        for (int i = 0; i < updatesList.length(); i++) {
-            if (updatesList.isNull(i)) {
-                continue;
-            }
-            try {
-                UpdateInfo update = parseJsonUpdate(updatesList.getJSONObject(i));
-                if (!compatibleOnly || isCompatible(update)) {
-                    updates.add(update);
-                } else {
-                    Log.d(TAG, "Ignoring incompatible update " + update.getName());
-                }
-            } catch (JSONException e) {
-                Log.e(TAG, "Could not parse update object, index=" + i, e);
-            }
-        }
-
-        return updates;
+        return new ArrayList<>(UpdateCatalog.parse(file, Update::new,
+                compatibleOnly ? Utils::isCompatible : null));
     }
 
     public static String getServerURL(Context context) {
@@ -197,59 +151,30 @@ public class Utils {
             throws IOException, JSONException {
         List<UpdateInfo> oldList = parseJson(oldJson, true);
         List<UpdateInfo> newList = parseJson(newJson, true);
-        Set<String> oldIds = new HashSet<>();
-        for (UpdateInfo update : oldList) {
-            oldIds.add(update.getDownloadId());
-        }
-        // In case of no new updates, the old list should
-        // have all (if not more) the updates
-        for (UpdateInfo update : newList) {
-            if (!oldIds.contains(update.getDownloadId())) {
-                return true;
-            }
-        }
-        return false;
+        return UpdateCatalog.hasNewUpdates(oldList, newList);
     }
 
     /**
-     * Get the offset to the compressed data of a file inside the given zip
-     *
-     * @param zipFile input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
+     * Remove the uncrypt copies, except the partial ones that can still be resumed.
      */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
-        }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
-    }
-
     public static void removeUncryptFiles(File downloadPath) {
         File[] uncryptFiles = downloadPath.listFiles(
-                (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT));
+                (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT) ||
+                        name.endsWith(Constants.UNCRYPT_FILE_EXT + ResumableCopier.JOURNAL_EXT));
         if (uncryptFiles == null) {
             return;
         }
         for (File file : uncryptFiles) {
-            //noinspection ResultOfMethodCallIgnored
-            file.delete();
+            String path = file.getAbsolutePath();
+            if (path.endsWith(ResumableCopier.JOURNAL_EXT)) {
+                path = path.substring(0, path.length() - ResumableCopier.JOURNAL_EXT.length());
+            }
+            File uncryptFile = new File(path);
+            File source = new File(path.substring(0,
+                    path.length() - Constants.UNCRYPT_FILE_EXT.length()));
+            if (!ResumableCopier.isResumable(source, uncryptFile)) {
+                ResumableCopier.discard(uncryptFile);
+            }
         }
     }
 
@@ -296,9 +221,8 @@ public class Utils {
         }
 
         // Ideally the database is empty when we get here
-        UpdatesDbHelper dbHelper = new UpdatesDbHelper(context);
         List<String> knownPaths = new ArrayList<>();
-        for (UpdateInfo update : dbHelper.getUpdates()) {
+        for (UpdateInfo update : UpdatesDbWriter.getInstance(context).getDbHelper().getUpdates()) {
             knownPaths.add(update.getFile().getAbsolutePath());
         }
         for (File file : files) {
@@ -349,6 +273,12 @@ public class Utils {
         return isAB;
     }
 
+    public static boolean isABUpdate(FileChannel channel) throws IOException {
+        ZipReader zipReader = new ZipReader(channel);
+        return zipReader.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
+                zipReader.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    }
+
     public static boolean hasTouchscreen(Context context) {
         return context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_TOUCHSCREEN);
     }
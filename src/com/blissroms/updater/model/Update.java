@@ -24,10 +24,15 @@ import java.io.File;
 
 public class Update extends UpdateBase implements UpdateInfo {
     public static final String LOCAL_ID = "local";
+    // Imported packages are identified by their content, see UpdateImporter
+    public static final String LOCAL_ID_PREFIX = LOCAL_ID + "-";
 
     private UpdateStatus mStatus = UpdateStatus.UNKNOWN;
     private int mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
     private File mFile;
+    private boolean mDescriptorBacked;
+    private long mDownloadedBytes;
+    private String mETag;
     private int mProgress;
     private long mEta;
     private long mSpeed;
@@ -38,11 +43,19 @@ public class Update extends UpdateBase implements UpdateInfo {
     public Update() {
     }
 
+    public static boolean isLocalId(String downloadId) {
+        return LOCAL_ID.equals(downloadId) ||
+                (downloadId != null && downloadId.startsWith(LOCAL_ID_PREFIX));
+    }
+
     public Update(UpdateInfo update) {
         super(update);
         mStatus = update.getStatus();
         mPersistentStatus = update.getPersistentStatus();
         mFile = update.getFile();
+        mDescriptorBacked = update.isDescriptorBacked();
+        mDownloadedBytes = update.getDownloadedBytes();
+        mETag = update.getETag();
         mProgress = update.getProgress();
         mEta = update.getEta();
         mSpeed = update.getSpeed();
@@ -78,6 +91,33 @@ public class Update extends UpdateBase implements UpdateInfo {
         mFile = file;
     }
 
+    @Override
+    public boolean isDescriptorBacked() {
+        return mDescriptorBacked;
+    }
+
+    public void setDescriptorBacked(boolean descriptorBacked) {
+        mDescriptorBacked = descriptorBacked;
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    public void setDownloadedBytes(long downloadedBytes) {
+        mDownloadedBytes = downloadedBytes;
+    }
+
+    @Override
+    public String getETag() {
+        return mETag;
+    }
+
+    public void setETag(String eTag) {
+        mETag = eTag;
+    }
+
     @Override
     public int getProgress() {
         return mProgress;
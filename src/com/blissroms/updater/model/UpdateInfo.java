@@ -22,10 +22,23 @@ public interface UpdateInfo extends UpdateBaseInfo {
 
     int getPersistentStatus();
 
+    /**
+     * @return null if the package is descriptor backed
+     */
     File getFile();
 
+    /**
+     * Whether the package is only reachable through a descriptor held by the controller,
+     * e.g. an A/B package imported without copying it.
+     */
+    boolean isDescriptorBacked();
+
     long getFileSize();
 
+    long getDownloadedBytes();
+
+    String getETag();
+
     int getProgress();
 
     long getEta();